@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks building the connection options used by the examples.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionOptionsBenchmark {
+
+	private final String broker = "tcp://localhost:1883";
+	private final String topic = "MQTTV5";
+	private final byte[] willContent = "I've Disconnected, sorry!".getBytes();
+
+	@Benchmark
+	public MqttConnectionOptions buildAppOptions() {
+		MqttConnectionOptionsBuilder conOptsBuilder = new MqttConnectionOptionsBuilder();
+		return conOptsBuilder.serverURI(broker).cleanSession(true).sessionExpiryInterval(120)
+				.automaticReconnect(true).will(topic, new MqttMessage(willContent, 1, false)).topicAliasMaximum(1000)
+				.build();
+	}
+
+	@Benchmark
+	public MqttConnectionOptions buildMinimalOptions() {
+		return new MqttConnectionOptionsBuilder().serverURI(broker).build();
+	}
+}
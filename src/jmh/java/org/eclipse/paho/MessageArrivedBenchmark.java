@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks decoding an incoming payload the way the examples'
+ * messageArrived callbacks do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageArrivedBenchmark {
+
+	@Param({ "16", "1024", "65536" })
+	public int payloadSize;
+
+	private MqttMessage message;
+
+	@Setup
+	public void setup() {
+		byte[] payload = new byte[payloadSize];
+		Arrays.fill(payload, (byte) 'x');
+		message = new MqttMessage(payload, 1, false);
+		message.setUTF8(true);
+	}
+
+	@Benchmark
+	public String decodeDefaultCharset() {
+		return new String(message.getPayload());
+	}
+
+	@Benchmark
+	public String decodeUtf8() {
+		return new String(message.getPayload(), StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public String toDebugString() {
+		return message.toDebugString();
+	}
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares encoding and decoding the main example's messages as strings with
+ * user properties, as {@link App#publishMessage(String)} does, and as binary
+ * {@link ReadingCodec} readings, as <code>--codec binary</code> does. Run the
+ * class's <code>main</code> to print the size of the PUBLISH packets each
+ * sends.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadCodecBenchmark {
+
+	private static final String TOPIC = "MQTTV5";
+	private static final String CONTENT = "This Message is being sent over MQTTv5!";
+
+	private final StringPayloadCodec stringCodec = new StringPayloadCodec();
+	private final ReadingCodec readingCodec = new ReadingCodec(App.EXAMPLE_SCHEMA);
+	private long counter;
+	private long sentMillis;
+	private MqttMessage stringMessage;
+	private MqttMessage binaryMessage;
+
+	@Setup
+	public void setup() {
+		counter = 1000;
+		sentMillis = System.currentTimeMillis();
+		stringMessage = encodeString(counter, 1);
+		binaryMessage = encodeBinary(counter, sentMillis, 1);
+	}
+
+	private static MqttMessage encodeString(long counter, int readings) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < readings; i++) {
+			if (i > 0) {
+				text.append('\n');
+			}
+			text.append(CONTENT).append(' ').append(counter + i);
+		}
+		MqttMessage message = new MqttMessage();
+		new StringPayloadCodec().encode(text.toString(), message);
+		App.setExampleProperties(message);
+		return message;
+	}
+
+	private static MqttMessage encodeBinary(long counter, long sentMillis, int readings) {
+		long[][] values = new long[readings][];
+		for (int i = 0; i < readings; i++) {
+			values[i] = new long[] { counter + i, sentMillis + i * 1000 };
+		}
+		MqttMessage message = new MqttMessage();
+		new ReadingCodec(App.EXAMPLE_SCHEMA).encode(values, message);
+		message.setExpiryInterval(120);
+		return message;
+	}
+
+	@Benchmark
+	public MqttMessage stringEncode() {
+		MqttMessage message = new MqttMessage();
+		stringCodec.encode(CONTENT + " " + counter++, message);
+		App.setExampleProperties(message);
+		return message;
+	}
+
+	@Benchmark
+	public MqttMessage binaryEncode() {
+		MqttMessage message = new MqttMessage();
+		readingCodec.encode(new long[][] { { counter++, sentMillis } }, message);
+		message.setExpiryInterval(120);
+		return message;
+	}
+
+	@Benchmark
+	public long stringDecode() {
+		String text = stringCodec.decode(stringMessage);
+		return Long.parseLong(text.substring(text.lastIndexOf(' ') + 1));
+	}
+
+	@Benchmark
+	public long binaryDecode() {
+		return readingCodec.decode(binaryMessage)[0][0];
+	}
+
+	/**
+	 * Prints the size of the PUBLISH packets sent for one and for sixteen
+	 * readings.
+	 *
+	 * @param args
+	 *            not used
+	 */
+	public static void main(String[] args) {
+		long now = System.currentTimeMillis();
+		System.out.println("codec,readings,payloadBytes,packetBytes");
+		for (int readings : new int[] { 1, 16 }) {
+			MqttMessage string = encodeString(1000, readings);
+			MqttMessage binary = encodeBinary(1000, now, readings);
+			System.out.println("string," + readings + "," + string.getPayload().length + ","
+					+ PacketSizes.publishPacketSize(TOPIC, string));
+			System.out.println("binary," + readings + "," + binary.getPayload().length + ","
+					+ PacketSizes.publishPacketSize(TOPIC, binary));
+		}
+	}
+}
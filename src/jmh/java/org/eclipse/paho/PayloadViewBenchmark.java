@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares decoding the whole payload into a String, as the examples used to,
+ * with reading it through a {@link PayloadView}. Run with
+ * <code>-prof gc</code> to see the allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadViewBenchmark {
+
+	private static final byte[] PREFIX = "{\"type\":\"reading\"".getBytes();
+
+	@Param({ "1024", "65536", "1048576" })
+	public int payloadSize;
+
+	private MqttMessage message;
+	private final PayloadView view = new PayloadView();
+
+	@Setup
+	public void setup() {
+		byte[] payload = new byte[payloadSize];
+		Arrays.fill(payload, (byte) 'x');
+		System.arraycopy(PREFIX, 0, payload, 0, PREFIX.length);
+		message = new MqttMessage(payload, 1, false);
+		message.setUTF8(true);
+	}
+
+	@Benchmark
+	public boolean newStringStartsWith() {
+		return new String(message.getPayload()).startsWith("{\"type\":\"reading\"");
+	}
+
+	@Benchmark
+	public boolean viewStartsWith() {
+		return view.reset(message).startsWith(PREFIX);
+	}
+
+	@Benchmark
+	public char newStringCharAt() {
+		return new String(message.getPayload()).charAt(payloadSize / 2);
+	}
+
+	@Benchmark
+	public char viewTextCharAt() {
+		return view.reset(message).text().charAt(payloadSize / 2);
+	}
+
+	@Benchmark
+	public int viewBufferGetInt() {
+		return view.reset(message).buffer().getInt(payloadSize / 2);
+	}
+
+	@Benchmark
+	public String viewTextToString() {
+		return view.reset(message).text().toString();
+	}
+}
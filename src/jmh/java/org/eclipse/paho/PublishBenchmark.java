@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.broker.EmbeddedBroker;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for building and publishing the messages sent by
+ * {@link App#publishMessage(String)}, against an {@link EmbeddedBroker} so
+ * that no network is needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublishBenchmark {
+
+	private static final String TOPIC = "MQTTV5";
+	private static final String CONTENT = "This Message is being sent over MQTTv5!";
+	private static final byte[] CONTENT_BYTES = CONTENT.getBytes(StandardCharsets.UTF_8);
+
+	private EmbeddedBroker broker;
+	private MqttAsyncClient asyncClient;
+	private MessagePool pool;
+	private long counter;
+
+	@Setup
+	public void setup() throws Exception {
+		broker = EmbeddedBroker.start(0);
+		asyncClient = new MqttAsyncClient(broker.getServerURI(), "PublishBenchmark", new MemoryPersistence());
+		asyncClient.connect(new MqttConnectionOptionsBuilder().serverURI(broker.getServerURI()).cleanSession(true)
+				.build()).waitForCompletion();
+		pool = new MessagePool(1, 0);
+	}
+
+	@TearDown
+	public void tearDown() throws MqttException {
+		asyncClient.disconnect().waitForCompletion();
+		asyncClient.close();
+		broker.stop();
+	}
+
+	private MqttMessage buildMessage(int qos) {
+		MqttMessage message = new MqttMessage((CONTENT + " " + counter++).getBytes(), qos, false);
+		App.setExampleProperties(message);
+		return message;
+	}
+
+	@Benchmark
+	public MqttMessage buildMessage() {
+		return buildMessage(1);
+	}
+
+	@Benchmark
+	public void buildPooledMessage() throws InterruptedException {
+		PooledMessage message = pool.acquire();
+		message.setText(CONTENT_BYTES, counter++);
+		message.setQos(1);
+		App.setExampleProperties(message);
+		message.release();
+	}
+
+	@Benchmark
+	public void publishQos0() throws MqttException {
+		asyncClient.publish(TOPIC, buildMessage(0)).waitForCompletion();
+	}
+
+	@Benchmark
+	public void publishQos1() throws MqttException {
+		asyncClient.publish(TOPIC, buildMessage(1)).waitForCompletion();
+	}
+
+	@Benchmark
+	public void publishQos2() throws MqttException {
+		asyncClient.publish(TOPIC, buildMessage(2)).waitForCompletion();
+	}
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.broker.EmbeddedBroker;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.client.MqttToken;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks formatting the CONNACK and SUBACK properties held by real tokens,
+ * as done by {@link SampleUtilities#printConnectDetails(MqttToken)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenDetailsBenchmark {
+
+	private EmbeddedBroker broker;
+	private MqttAsyncClient asyncClient;
+	private MqttToken connectToken;
+	private MqttToken subscribeToken;
+
+	@Setup
+	public void setup() throws Exception {
+		broker = EmbeddedBroker.start(0);
+		asyncClient = new MqttAsyncClient(broker.getServerURI(), "TokenDetailsBenchmark", new MemoryPersistence());
+		IMqttToken token = asyncClient.connect(
+				new MqttConnectionOptionsBuilder().serverURI(broker.getServerURI()).cleanSession(true).build());
+		token.waitForCompletion();
+		connectToken = (MqttToken) token;
+		token = asyncClient.subscribe("MQTTV5", 1);
+		token.waitForCompletion();
+		subscribeToken = (MqttToken) token;
+	}
+
+	@TearDown
+	public void tearDown() throws MqttException {
+		asyncClient.disconnect().waitForCompletion();
+		asyncClient.close();
+		broker.stop();
+	}
+
+	@Benchmark
+	public String formatConnectDetails() {
+		return SampleUtilities.formatConnectDetails(connectToken);
+	}
+
+	@Benchmark
+	public String formatSubscriptionDetails() {
+		return SampleUtilities.formatSubscriptionDetails(subscribeToken);
+	}
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares routing a message to its handler through a {@link TopicDispatcher}
+ * by Subscription Identifier and through its topic tree with matching every
+ * filter in turn. One filter in ten has a <code>+</code> wildcard.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicDispatcherBenchmark {
+
+	private static final int TOPICS = 1024;
+
+	@Param({ "100", "10000" })
+	public int filterCount;
+
+	private final TopicDispatcher dispatcher = new TopicDispatcher();
+	private String[] filters;
+	private String[] topics;
+	private Integer[] identifiers;
+	private final MqttMessage message = new MqttMessage(new byte[16], 0, false);
+	private long handled;
+	private int next;
+
+	@Setup
+	public void setup() {
+		SharedSubscriptionConsumer.MessageHandler handler = new SharedSubscriptionConsumer.MessageHandler() {
+			@Override
+			public void handle(String topic, MqttMessage message) {
+				handled++;
+			}
+		};
+		filters = new String[filterCount];
+		int[] filterIdentifiers = new int[filterCount];
+		for (int i = 0; i < filterCount; i++) {
+			filters[i] = i % 10 == 0 ? "site/" + i + "/alerts/+" : "site/" + i + "/sensors/temperature";
+			filterIdentifiers[i] = dispatcher.register(filters[i], 1, handler);
+		}
+		Random random = new Random(42);
+		topics = new String[TOPICS];
+		identifiers = new Integer[TOPICS];
+		for (int i = 0; i < TOPICS; i++) {
+			int filter = random.nextInt(filterCount);
+			topics[i] = filters[filter].replace("+", "high");
+			identifiers[i] = filterIdentifiers[filter];
+		}
+	}
+
+	@Benchmark
+	public boolean byIdentifier() throws Exception {
+		int i = next++ & (TOPICS - 1);
+		return dispatcher.dispatch(topics[i], identifiers[i], message);
+	}
+
+	@Benchmark
+	public boolean byTree() throws Exception {
+		int i = next++ & (TOPICS - 1);
+		return dispatcher.dispatch(topics[i], null, message);
+	}
+
+	@Benchmark
+	public int linearScan() {
+		String topic = topics[next++ & (TOPICS - 1)];
+		int matched = 0;
+		for (String filter : filters) {
+			if (TopicDispatcher.matches(filter, topic)) {
+				matched++;
+			}
+		}
+		return matched;
+	}
+}
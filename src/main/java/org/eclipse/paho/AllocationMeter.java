@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the bytes allocated on the heap between {@link #start()} and
+ * {@link #stop()}, both by the calling thread and by the whole JVM.
+ *
+ * Relies on the HotSpot <code>com.sun.management.ThreadMXBean</code>
+ * extension, on other JVMs every measurement is reported as -1.
+ */
+public class AllocationMeter {
+
+	private final com.sun.management.ThreadMXBean threadBean;
+	private final long threadId;
+	private long threadStart;
+	private long threadAllocated = -1;
+	private long jvmStart;
+	private long jvmAllocated = -1;
+
+	/**
+	 * Creates a meter for the calling thread.
+	 */
+	public AllocationMeter() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			this.threadBean = (com.sun.management.ThreadMXBean) bean;
+			this.threadBean.setThreadAllocatedMemoryEnabled(true);
+		} else {
+			this.threadBean = null;
+		}
+		this.threadId = Thread.currentThread().getId();
+	}
+
+	public void start() {
+		if (threadBean != null) {
+			threadStart = threadBean.getThreadAllocatedBytes(threadId);
+			jvmStart = jvmAllocatedBytes();
+		}
+	}
+
+	public void stop() {
+		if (threadBean != null) {
+			threadAllocated = threadBean.getThreadAllocatedBytes(threadId) - threadStart;
+			jvmAllocated = jvmAllocatedBytes() - jvmStart;
+		}
+	}
+
+	/**
+	 * @return bytes allocated by the measured thread, or -1 if not supported
+	 */
+	public long getThreadAllocatedBytes() {
+		return threadAllocated;
+	}
+
+	/**
+	 * @return bytes allocated by all live threads, or -1 if not supported
+	 */
+	public long getJvmAllocatedBytes() {
+		return jvmAllocated;
+	}
+
+	private long jvmAllocatedBytes() {
+		long total = 0;
+		for (long allocated : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+			if (allocated > 0) {
+				total += allocated;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @param operations
+	 *            the number of operations performed whilst measuring
+	 * @return a summary of the bytes allocated per operation
+	 */
+	public String report(long operations) {
+		if (threadBean == null || operations == 0) {
+			return "Allocation Report: [unsupported]";
+		}
+		return String.format("Allocation Report: [threadBytesPerOp=%.1f, jvmBytesPerOp=%.1f]",
+				(double) threadAllocated / operations, (double) jvmAllocated / operations);
+	}
+}
@@ -12,18 +12,24 @@
  */
 package org.eclipse.paho;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
 import org.eclipse.paho.mqttv5.client.IMqttToken;
 import org.eclipse.paho.mqttv5.client.MqttActionListener;
 import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
 import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
 import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
 import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
 import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
 import org.eclipse.paho.mqttv5.client.MqttToken;
-import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
 import org.eclipse.paho.mqttv5.common.MqttException;
 import org.eclipse.paho.mqttv5.common.MqttMessage;
 import org.eclipse.paho.mqttv5.common.packet.UserProperty;
@@ -45,12 +51,44 @@ import org.eclipse.paho.mqttv5.common.packet.UserProperty;
  * <li>More to come, watch this space!</li>
  * </ul>
  * 
+ * Passing <code>--load</code> turns the App into a load generator, see
+ * {@link PublishLoadGenerator} for the options it accepts. The broker, topic
+ * and QoS can be changed with <code>--broker</code>, <code>--topic</code> and
+ * <code>--qos</code>, or <code>--embedded</code> runs against an in-process
+ * broker. In load mode the publish to ack and publish to loopback
+ * latencies are recorded, <code>--csv</code> names a file to write them to.
+ * <code>--executor virtual|platform</code> moves message processing and
+ * blocking token waits off the client's callback thread, see
+ * {@link SampleExecutors}. Callback output goes through an
+ * {@link AsyncConsole}, see {@link SampleUtilities#configureConsole} for its
+ * options. Messages published whilst automatic reconnect is in progress are
+ * held in an {@link OfflinePublishBuffer} and sent once the connection is
+ * back, see its constructor for the options. <code>--persistence log</code>
+ * keeps in-flight QoS 1 and 2 messages in a {@link LogPersistence}. Counters
+ * for the client are published over JMX by {@link ClientMetrics}, and
+ * <code>--metricsInterval</code> also logs them every so many seconds.
+ * <code>--codec binary</code> sends each message as a {@link ReadingCodec}
+ * reading instead of a string with user properties.
+ * <code>--record</code> names a file to record the incoming messages to, see
+ * {@link TrafficRecorder}.
+ * <code>--startupReport</code> prints how long it took from the JVM starting
+ * to the CONNACK arriving, see {@link StartupProfile}. Anything not needed to
+ * connect is set up once it is first used, or once the client has connected.
+ * 
  * - - - -
  * 
  * @author James Sutton (2017) - Initial Contribution
  */
 public class App implements MqttCallback {
 
+	static final ReadingSchema EXAMPLE_SCHEMA = new ReadingSchema(1, "example", "counter", "sentMillis");
+
+	private static final ArrayList<UserProperty> USER_PROPERTIES = new ArrayList<>();
+	static {
+		USER_PROPERTIES.add(new UserProperty("up1", "val1"));
+		USER_PROPERTIES.add(new UserProperty("up2", "val2"));
+	}
+
 	// ------ Client Configuration ------ //
 	String topic = "MQTTV5";
 	String content = "This Message is being sent over MQTTv5!";
@@ -61,45 +99,97 @@ public class App implements MqttCallback {
 	int messagesToSend = 5;
 	private int sentMessageCount = 0;
 	private MqttAsyncClient asyncClient;
+	private final byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+	private final MessagePool messagePool = new MessagePool(10, 0);
 	private boolean publishing = true;
+	private boolean loadMode = false;
+	private LatencyRecorder latencyRecorder;
+	private ExecutorService executor;
+	private OfflinePublishBuffer offlineBuffer;
+	private ClientMetrics metrics;
+	private MqttActionListener publishListener;
+	private MqttActionListener releaseListener;
+	private PayloadCodecs codecs;
+	private ReadingCodec readingCodec;
+	private boolean binaryPayloads = false;
+	private boolean startupReport = false;
+	private TrafficRecorder recorder;
+	private final AtomicLong undecodable = new AtomicLong();
 
 	/**
 	 * Main App Class, nothing fancy here.
 	 * 
+	 * @param options
+	 *            the command line options
 	 * @throws InterruptedException
 	 */
-	public App() throws InterruptedException {
+	public App(final SampleOptions options) throws InterruptedException {
+		broker = SampleUtilities.resolveBroker(options, broker);
+		topic = options.getString("topic", topic);
+		qos = options.getInt("qos", qos);
+		loadMode = options.has("load");
+		if (loadMode) {
+			latencyRecorder = new LatencyRecorder();
+		}
+		startupReport = options.has("startupReport");
+		binaryPayloads = "binary".equals(options.getString("codec", StringPayloadCodec.CONTENT_TYPE));
+		if (options.has("executor")) {
+			int executorThreads = options.getInt("executorThreads", 16);
+			try {
+				executor = SampleExecutors.create(options.getString("executor", SampleExecutors.VIRTUAL),
+						executorThreads);
+			} catch (IllegalArgumentException | UnsupportedOperationException e) {
+				System.err.println(e.getMessage() + ", using --executor " + SampleExecutors.PLATFORM
+						+ " with " + executorThreads + " threads instead.");
+				executor = SampleExecutors.create(SampleExecutors.PLATFORM, executorThreads);
+			}
+		}
 		try {
-			MemoryPersistence persistence = new MemoryPersistence();
+			MqttClientPersistence persistence = SampleUtilities.createPersistence(options);
 			this.asyncClient = new MqttAsyncClient(broker, clientId, persistence);
+			this.offlineBuffer = new OfflinePublishBuffer(asyncClient, options);
+			// Registered over JMX once connected, the MBean server is slow to start
+			this.metrics = new ClientMetrics(clientId, asyncClient);
+			this.publishListener = metrics.wrap((MqttActionListener) null);
+			this.releaseListener = metrics.wrap(MessagePool.RELEASER);
+			offlineBuffer.setMetrics(metrics);
 
 			// Lets build our Connection Options:
 			MqttConnectionOptionsBuilder conOptsBuilder = new MqttConnectionOptionsBuilder();
 			MqttConnectionOptions conOpts = conOptsBuilder.serverURI(broker).cleanSession(true)
 					.sessionExpiryInterval(120).automaticReconnect(true)
 					.will(topic, new MqttMessage(willContent.getBytes(), qos, false)).topicAliasMaximum(1000).build();
-			asyncClient.setCallback(this);
+			if (options.has("record")) {
+				try {
+					recorder = new TrafficRecorder(options);
+				} catch (IOException e) {
+					System.err.println("Exception Occured whilst opening the recording: " + e.getMessage());
+				}
+			}
+			asyncClient.setCallback(metrics.wrap(recorder == null ? this : recorder.wrap(this)));
+			StartupProfile.mark("clientConstructed");
 
 			System.out.println("Connecting to broker: " + broker);
 
-			asyncClient.connect(conOpts, null, new MqttActionListener() {
+			IMqttToken connectToken = asyncClient.connect(conOpts, null, new MqttActionListener() {
 
 				@Override
 				public void onSuccess(IMqttToken asyncActionToken) {
+					StartupProfile.mark("connack");
 					System.out.println("Connected");
+					if (startupReport) {
+						System.out.println(StartupProfile.report());
+					}
 
 					SampleUtilities.printConnectDetails((MqttToken) asyncActionToken);
-					try {
-						IMqttToken subToken = asyncClient.subscribe(topic, qos);
-						subToken.waitForCompletion();
-						SampleUtilities.printSubscriptionDetails((MqttToken) subToken);
-						MqttMessage msg = new MqttMessage(content.getBytes());
-						msg.setQos(qos);
-						asyncClient.publish(topic, msg);
-					} catch (MqttException e) {
-						System.err.println("Exception Occured whilst Subscribing:");
-						e.printStackTrace();
-					}
+					// Subscribing blocks, so keep it off the client's thread if we can
+					runBlocking(new Runnable() {
+						@Override
+						public void run() {
+							metrics.start(options);
+							subscribeAndPublish();
+						}
+					});
 
 				}
 
@@ -110,11 +200,29 @@ public class App implements MqttCallback {
 				}
 			});
 
+			if (loadMode) {
+				connectToken.waitForCompletion();
+				PublishLoadGenerator loadGenerator = new PublishLoadGenerator(asyncClient, topic, qos, options);
+				loadGenerator.run();
+				loadGenerator.printReport();
+				awaitLoopback(loadGenerator.getCompleted());
+				latencyRecorder.printReport();
+				String csvFile = options.getString("csv", null);
+				if (csvFile != null) {
+					try {
+						latencyRecorder.writeCsv(csvFile);
+						System.out.println("Latency percentiles written to " + csvFile);
+					} catch (IOException e) {
+						System.err.println("Exception Occured whilst writing " + csvFile + ": " + e.getMessage());
+					}
+				}
+				this.publishing = false;
+			}
+
 			while (this.publishing) {
 				Thread.sleep(1000);
 				System.out.println("Sending Message: " + sentMessageCount);
-				String message = content + " " + sentMessageCount;
-				publishMessage(message);
+				publishMessage(sentMessageCount);
 				if (sentMessageCount == messagesToSend) {
 					System.out.println("Have sent " + messagesToSend + ", stopping client.");
 					break;
@@ -122,9 +230,22 @@ public class App implements MqttCallback {
 				sentMessageCount++;
 
 			}
+			if (!offlineBuffer.awaitEmpty(5, TimeUnit.SECONDS)) {
+				System.out.println("Gave up waiting for " + offlineBuffer.getDepth() + " buffered messages.");
+			}
+			System.out.println(offlineBuffer);
+			System.out.println(metrics);
+			offlineBuffer.close();
 			asyncClient.disconnect(5000);
 			System.out.println("Disconnected");
 			asyncClient.close();
+			if (recorder != null) {
+				recorder.close();
+				System.out.println(recorder);
+			}
+			if (executor != null) {
+				executor.shutdown();
+			}
 			System.exit(0);
 
 		} catch (MqttException e) {
@@ -134,60 +255,215 @@ public class App implements MqttCallback {
 	}
 	
 	/**
-	 * Publish a message with example properties set.
+	 * Subscribes to the topic, waits for the SUBACK and then publishes a first
+	 * message to it.
+	 */
+	private void subscribeAndPublish() {
+		try {
+			IMqttToken subToken = asyncClient.subscribe(topic, qos);
+			subToken.waitForCompletion();
+			SampleUtilities.printSubscriptionDetails((MqttToken) subToken);
+			if (!loadMode) {
+				MqttMessage msg = new MqttMessage(content.getBytes());
+				msg.setQos(qos);
+				asyncClient.publish(topic, msg);
+			}
+		} catch (MqttException e) {
+			System.err.println("Exception Occured whilst Subscribing:");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Runs a task that blocks on the executor chosen with
+	 * <code>--executor</code>, or on the calling thread if there isn't one.
+	 * 
+	 * @param task
+	 *            the task to run
+	 */
+	private void runBlocking(Runnable task) {
+		if (executor == null) {
+			task.run();
+		} else {
+			executor.execute(task);
+		}
+	}
+
+	/**
+	 * Gives the loopback deliveries a few seconds to catch up with the acks.
+	 * 
+	 * @param expected
+	 *            the number of messages that were acknowledged
+	 * @throws InterruptedException
+	 */
+	private void awaitLoopback(long expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (latencyRecorder.getPublishToArrival().getTotalCount() < expected
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Publish a message with example properties set, or buffer it if the
+	 * client is disconnected.
 	 * @param messageContent the message payload to send.
 	 */
 	public void publishMessage(String messageContent) {
 		MqttMessage message = new MqttMessage(messageContent.getBytes(), qos, false);
-		message.setContentType("string");
-		message.setUTF8(true); // Message is UTF-8 encoded
-		message.setExpiryInterval(120); // Message should expire after 120 seconds
-		message.setResponseTopic("responseTopic"); // The Response Topic
-		ArrayList<UserProperty> userDefinedProperties = new ArrayList<>();
-		userDefinedProperties.add(new UserProperty("up1", "val1"));
-		userDefinedProperties.add(new UserProperty("up2", "val2"));
-		message.setUserProperties(userDefinedProperties);
+		setExampleProperties(message);
 		
 		try {
-		asyncClient.publish(topic, message);
+		if (offlineBuffer.publish(topic, message, null, publishListener)) {
+			metrics.recordPublish();
+		}
 		}catch (Exception e) {
+			metrics.recordPublishRefused();
 			System.err.println("Exception Occured whilst publishing the message: " + e.getMessage());
 		}
 		
 	}
 
+	/**
+	 * Publish "content counter" with example properties set, using a pooled
+	 * message so that nothing is allocated for the payload, message or
+	 * properties. If the client is disconnected a copy is buffered and the
+	 * message goes straight back to the pool.
+	 * @param counter the number to append to the content.
+	 * @throws InterruptedException if interrupted whilst waiting for a free message or buffer space
+	 */
+	public void publishMessage(long counter) throws InterruptedException {
+		if (binaryPayloads) {
+			publishReading(counter);
+			return;
+		}
+		PooledMessage message = messagePool.acquire();
+		message.setText(contentBytes, counter);
+		message.setQos(qos);
+		setExampleProperties(message);
+
+		if (offlineBuffer.publish(topic, message, message, releaseListener)) {
+			metrics.recordPublish();
+		} else {
+			message.release();
+		}
+	}
+
+	/**
+	 * Publish the counter and the time as a binary reading, or buffer it if
+	 * the client is disconnected.
+	 * @param counter the number to send.
+	 * @throws InterruptedException if interrupted whilst waiting for buffer space
+	 */
+	private void publishReading(long counter) throws InterruptedException {
+		MqttMessage message = new MqttMessage();
+		message.setQos(qos);
+		readingCodec().encode(new long[][] { { counter, System.currentTimeMillis() } }, message);
+		message.setExpiryInterval(120); // Message should expire after 120 seconds
+		if (offlineBuffer.publish(topic, message, null, publishListener)) {
+			metrics.recordPublish();
+		}
+	}
+
+	private synchronized PayloadCodecs codecs() {
+		if (codecs == null) {
+			codecs = PayloadCodecs.withDefaults();
+			readingCodec = codecs.register(EXAMPLE_SCHEMA);
+		}
+		return codecs;
+	}
+
+	private synchronized ReadingCodec readingCodec() {
+		codecs();
+		return readingCodec;
+	}
+
+	static void setExampleProperties(MqttMessage message) {
+		message.setContentType("string");
+		message.setUTF8(true); // Message is UTF-8 encoded
+		message.setExpiryInterval(120); // Message should expire after 120 seconds
+		message.setResponseTopic("responseTopic"); // The Response Topic
+		message.setUserProperties(USER_PROPERTIES); // Shared, never modified
+	}
+
 	/**
 	 * @param args
-	 *            - No arguments to process
+	 *            - Optional arguments, see {@link SampleOptions}
 	 * @throws InterruptedException
 	 */
 	public static void main(String[] args) throws InterruptedException {
+		StartupProfile.mark("main");
 		SampleUtilities.printBanner("MQTTv5 Sample Java App");
-		new App();
+		SampleOptions options = SampleOptions.parse(args);
+		SampleUtilities.configureConsole(options);
+		new App(options);
 
 	}
 
 	@Override
 	public void messageArrived(String topic, MqttMessage message) throws Exception {
-		String incomingMessage = new String(message.getPayload());
-		System.out.println("Incoming Message: [" + incomingMessage + "], topic:[" + topic + "]");
-		System.out.println("Incoming Message: " + message.toDebugString());
+		if (loadMode) {
+			latencyRecorder.recordArrival(message);
+			return;
+		}
+		if (executor != null) {
+			final String incomingTopic = topic;
+			final MqttMessage incomingMessage = message;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					printIncomingMessage(incomingTopic, incomingMessage);
+				}
+			});
+		} else {
+			printIncomingMessage(topic, message);
+		}
+	}
+
+	private void printIncomingMessage(String topic, MqttMessage message) {
+		AsyncConsole console = SampleUtilities.console();
+		if (console.shouldLog(AsyncConsole.Level.INFO)) {
+			PayloadCodec<?> codec = codecs().codecFor(message.getContentType());
+			CharSequence text;
+			if (codec instanceof ReadingCodec) {
+				try {
+					text = Arrays.deepToString(((ReadingCodec) codec).decode(message));
+				} catch (IllegalArgumentException e) {
+					// A bad payload from someone else shouldn't cost us the connection
+					console.warn("Could not decode " + message.getContentType()
+							+ " payload (" + undecodable.incrementAndGet() + " so far): " + e.getMessage());
+					text = PayloadView.of(message).text();
+				}
+			} else {
+				text = PayloadView.of(message).text();
+			}
+			console.log(AsyncConsole.Level.INFO, "Incoming Message: [" + text + "], topic:[" + topic + "]");
+			console.log(AsyncConsole.Level.INFO, "Incoming Message: " + message.toDebugString());
+		}
 	}
 
 	@Override
 	public void deliveryComplete(IMqttDeliveryToken token) {
-		System.out.println("Delivery Complete: Message ID: " + token.getMessageId());
+		if (loadMode) {
+			try {
+				latencyRecorder.recordAck(token.getMessage());
+			} catch (MqttException e) {
+				// The message is no longer available, nothing to record.
+			}
+			return;
+		}
+		SampleUtilities.console().info("Delivery Complete: Message ID: " + token.getMessageId());
 
 	}
 
 	@Override
 	public void disconnected(MqttDisconnectResponse disconnectResponse) {
-		System.out.println("Disconnection Complete! : " + disconnectResponse.toString());
+		SampleUtilities.console().warn("Disconnection Complete! : " + disconnectResponse.toString());
 
 	}
 
 	@Override
 	public void mqttErrorOccured(MqttException exception) {
-		System.out.println("MQTT Error Occured: " + exception.getMessage());
+		SampleUtilities.console().error("MQTT Error Occured: " + exception.getMessage());
 	}
 }
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A console that never blocks the thread writing to it.
+ * 
+ * Lines are put in a bounded ring buffer and a background thread prints them
+ * in batches, so MQTT callbacks are not held up by a slow terminal. If the ring
+ * is full the line is dropped and counted rather than waiting for room. The
+ * background thread parks whilst the ring is empty and is woken by the next
+ * line.
+ * 
+ * Lines below the configured {@link Level} are discarded, and DEBUG and INFO
+ * lines can be sampled so that only one in every N is printed. Callers that
+ * build expensive lines should check {@link #shouldLog(Level)} first and then
+ * call {@link #log(Level, String)}.
+ * 
+ * Anything still queued is printed when the JVM shuts down, unless the console
+ * has already been closed.
+ */
+public class AsyncConsole {
+
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR
+	}
+
+	private static final int BATCH_SIZE = 256;
+
+	private final PrintStream out;
+	private final Level threshold;
+	private final int sampleRate;
+	private final AtomicLong sampleCounter = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	// Bounded multi-producer ring buffer, after Dmitry Vyukov's MPMC queue: each
+	// slot's sequence says whether it is free for the producer of that lap or
+	// full for the consumer.
+	private final int mask;
+	private final AtomicReferenceArray<String> lines;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private long head = 0; // only used by the drain thread
+
+	private final Thread drainThread;
+	private final Thread shutdownHook;
+	private volatile boolean running = true;
+	// Set by the drain thread before it parks, so producers know to wake it
+	private volatile boolean parked = false;
+
+	/**
+	 * @param capacity
+	 *            the number of lines the ring can hold, rounded up to a power of
+	 *            two
+	 * @param threshold
+	 *            lines below this level are discarded
+	 * @param sampleRate
+	 *            print one in this many DEBUG and INFO lines
+	 * @param out
+	 *            the stream to print to
+	 */
+	public AsyncConsole(int capacity, Level threshold, int sampleRate, PrintStream out) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.mask = size - 1;
+		this.lines = new AtomicReferenceArray<>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		this.threshold = threshold;
+		this.sampleRate = Math.max(1, sampleRate);
+		this.out = out;
+		this.drainThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		}, "AsyncConsole");
+		drainThread.setDaemon(true);
+		drainThread.start();
+		// Print anything left when the samples call System.exit
+		this.shutdownHook = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		}, "AsyncConsole-shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * @param level
+	 *            the level of the line about to be logged
+	 * @return true if a line at this level passes the level filter and the
+	 *         sampling, so is worth building
+	 */
+	public boolean shouldLog(Level level) {
+		if (level.compareTo(threshold) < 0) {
+			return false;
+		}
+		if (level.compareTo(Level.WARN) >= 0 || sampleRate == 1) {
+			return true;
+		}
+		return sampleCounter.getAndIncrement() % sampleRate == 0;
+	}
+
+	/**
+	 * Queues a line if its level passes the level filter. It is not sampled,
+	 * so that callers that have already checked {@link #shouldLog(Level)} can
+	 * log several lines for the one check.
+	 * 
+	 * @param level
+	 *            the level of the line
+	 * @param line
+	 *            the line to print
+	 */
+	public void log(Level level, String line) {
+		if (level.compareTo(threshold) >= 0) {
+			enqueue(line);
+		}
+	}
+
+	public void debug(String line) {
+		if (shouldLog(Level.DEBUG)) {
+			enqueue(line);
+		}
+	}
+
+	public void info(String line) {
+		if (shouldLog(Level.INFO)) {
+			enqueue(line);
+		}
+	}
+
+	public void warn(String line) {
+		if (shouldLog(Level.WARN)) {
+			enqueue(line);
+		}
+	}
+
+	public void error(String line) {
+		if (shouldLog(Level.ERROR)) {
+			enqueue(line);
+		}
+	}
+
+	private void enqueue(String line) {
+		if (!offer(line)) {
+			dropped.incrementAndGet();
+			return;
+		}
+		if (parked) {
+			LockSupport.unpark(drainThread);
+		}
+	}
+
+	/**
+	 * @return the number of lines dropped because the ring was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	private boolean offer(String line) {
+		while (true) {
+			long position = tail.get();
+			int index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					lines.set(index, line);
+					sequences.set(index, position + 1);
+					return true;
+				}
+			} else if (difference < 0) {
+				return false; // Full
+			}
+			// Another producer claimed the slot, try the next one
+		}
+	}
+
+	/**
+	 * @return the number of lines printed
+	 */
+	private int drain() {
+		StringBuilder batch = null;
+		int count = 0;
+		while (count < BATCH_SIZE) {
+			int index = (int) head & mask;
+			if (sequences.get(index) != head + 1) {
+				break; // Empty, or a producer is still writing the slot
+			}
+			String line = lines.get(index);
+			lines.set(index, null);
+			sequences.set(index, head + mask + 1);
+			head++;
+			if (batch == null) {
+				batch = new StringBuilder();
+			}
+			batch.append(line).append(System.lineSeparator());
+			count++;
+		}
+		if (batch != null) {
+			out.print(batch);
+			out.flush();
+		}
+		return count;
+	}
+
+	private void drainLoop() {
+		while (running) {
+			if (drain() > 0) {
+				continue;
+			}
+			// Check again after saying we are parking, so a line queued in
+			// between either is seen here or unparks us
+			parked = true;
+			if (running && drain() == 0) {
+				LockSupport.park(this);
+			}
+			parked = false;
+		}
+	}
+
+	/**
+	 * Stops the background thread and prints anything still queued. If the
+	 * thread is still stuck writing to a slow stream after a second, whatever
+	 * it has not printed yet is left behind and only the dropped count is
+	 * printed.
+	 */
+	public synchronized void close() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		LockSupport.unpark(drainThread);
+		if (Thread.currentThread() != shutdownHook) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				// Already shutting down, the hook will find us closed
+			}
+		}
+		try {
+			drainThread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!drainThread.isAlive()) {
+			// The ring has a single consumer, only drain it once the thread is gone
+			while (drain() > 0) {
+				// Keep going until the ring is empty
+			}
+		}
+		if (dropped.get() > 0) {
+			out.println("AsyncConsole dropped " + dropped.get() + " lines");
+		}
+	}
+}
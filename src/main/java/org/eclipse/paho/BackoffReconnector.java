@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Reconnects clients after they are disconnected, waiting an exponentially
+ * growing, jittered delay between attempts.
+ *
+ * The client's own automatic reconnect waits exactly 1, 2, 4... seconds, so
+ * when a broker drops many clients at once they all come back at the same
+ * moments. Spreading each wait randomly over the interval (see {@link Jitter})
+ * turns those spikes of CONNECTs into a steady trickle.
+ *
+ * <pre>
+ * BackoffReconnector reconnector = new BackoffReconnector(scheduler, 100, 10000, Jitter.FULL);
+ * client.setCallback(reconnector.wrap(client, conOpts, callback, null));
+ * </pre>
+ *
+ * Connect with automatic reconnect turned off so that the two do not race.
+ */
+public class BackoffReconnector {
+
+	/**
+	 * How the delay before each attempt is picked, where <code>cap</code> is
+	 * the base delay doubled for each failed attempt, up to the maximum.
+	 */
+	public enum Jitter {
+		/** Wait exactly <code>cap</code>. */
+		NONE,
+		/** Wait between half of <code>cap</code> and <code>cap</code>. */
+		EQUAL,
+		/** Wait anywhere between 0 and <code>cap</code>. */
+		FULL
+	}
+
+	private final ScheduledExecutorService scheduler;
+	private final long baseMillis;
+	private final long maxMillis;
+	private final Jitter jitter;
+
+	private final AtomicLong disconnects = new AtomicLong();
+	private final AtomicLong attempts = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param scheduler
+	 *            runs the reconnect attempts
+	 * @param baseMillis
+	 *            the delay before the first attempt, before jitter
+	 * @param maxMillis
+	 *            the longest delay, before jitter
+	 * @param jitter
+	 *            how each delay is spread
+	 */
+	public BackoffReconnector(ScheduledExecutorService scheduler, long baseMillis, long maxMillis, Jitter jitter) {
+		this.scheduler = scheduler;
+		this.baseMillis = baseMillis;
+		this.maxMillis = maxMillis;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * @param attempt
+	 *            the number of attempts that have already failed
+	 * @return how long to wait before the next attempt, in milliseconds
+	 */
+	public long delayMillis(int attempt) {
+		long cap = baseMillis << Math.min(attempt, 30);
+		if (cap > maxMillis || cap <= 0) {
+			cap = maxMillis;
+		}
+		switch (jitter) {
+		case FULL:
+			return ThreadLocalRandom.current().nextLong(cap + 1);
+		case EQUAL:
+			return cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+		default:
+			return cap;
+		}
+	}
+
+	/**
+	 * @param client
+	 *            the client to reconnect
+	 * @param conOpts
+	 *            the options to reconnect with
+	 * @param callback
+	 *            the client's callback
+	 * @param connectListener
+	 *            told about every reconnect attempt that succeeds or fails, may
+	 *            be null
+	 * @return a callback to set on the client, which passes every event on to
+	 *         <code>callback</code> and starts reconnecting when the client is
+	 *         disconnected
+	 */
+	public MqttCallback wrap(final MqttAsyncClient client, final MqttConnectionOptions conOpts,
+			final MqttCallback callback, final MqttActionListener connectListener) {
+		final AtomicInteger attempt = new AtomicInteger();
+		final Runnable reconnect = new Runnable() {
+			@Override
+			public void run() {
+				attempts.incrementAndGet();
+				try {
+					client.connect(conOpts, null, new MqttActionListener() {
+
+						@Override
+						public void onSuccess(IMqttToken asyncActionToken) {
+							attempt.set(0);
+							if (connectListener != null) {
+								connectListener.onSuccess(asyncActionToken);
+							}
+						}
+
+						@Override
+						public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+							failures.incrementAndGet();
+							scheduleRetry();
+							if (connectListener != null) {
+								connectListener.onFailure(asyncActionToken, exception);
+							}
+						}
+					});
+				} catch (MqttException e) {
+					failures.incrementAndGet();
+					scheduleRetry();
+				}
+			}
+
+			private void scheduleRetry() {
+				schedule(this, attempt.incrementAndGet());
+			}
+		};
+		return new MqttCallback() {
+
+			@Override
+			public void messageArrived(String topic, MqttMessage message) throws Exception {
+				callback.messageArrived(topic, message);
+			}
+
+			@Override
+			public void deliveryComplete(IMqttDeliveryToken token) {
+				callback.deliveryComplete(token);
+			}
+
+			@Override
+			public void disconnected(MqttDisconnectResponse disconnectResponse) {
+				disconnects.incrementAndGet();
+				callback.disconnected(disconnectResponse);
+				schedule(reconnect, attempt.get());
+			}
+
+			@Override
+			public void mqttErrorOccured(MqttException exception) {
+				callback.mqttErrorOccured(exception);
+			}
+		};
+	}
+
+	private void schedule(Runnable reconnect, int attempt) {
+		try {
+			scheduler.schedule(reconnect, delayMillis(attempt), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shutting down, stop reconnecting
+		}
+	}
+
+	/**
+	 * @return the number of times a client has been disconnected
+	 */
+	public long getDisconnects() {
+		return disconnects.get();
+	}
+
+	/**
+	 * @return the number of reconnect attempts started, each one a CONNECT
+	 *         sent to the broker unless the client failed it first
+	 */
+	public long getAttempts() {
+		return attempts.get();
+	}
+
+	/**
+	 * @return the number of reconnect attempts that failed
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	@Override
+	public String toString() {
+		return "BackoffReconnector: [jitter=" + jitter + ", base=" + baseMillis + "ms, max=" + maxMillis
+				+ "ms, disconnects=" + getDisconnects() + ", attempts=" + getAttempts() + ", failures="
+				+ getFailures() + "]";
+	}
+}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.paho.broker.EmbeddedBroker;
+import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Sample MQTTv5 Eclipse Paho Java App.
+ * https://github.com/jpwsutton/EclipsePahoJavaMQTTv5Example
+ * 
+ * This example publishes a stream of small messages through a
+ * {@link BatchingPublisher} at each of a range of linger times, and prints
+ * the throughput against the publish to ack latency as CSV, so the cost of
+ * waiting for a batch to fill can be weighed against the packets it saves. A
+ * linger of 0 sends every message as its own PUBLISH. A subscriber splits the
+ * batches back up and counts the messages that arrive.
+ * 
+ * Options (see {@link SampleOptions}):
+ * <ul>
+ * <li><code>--lingers</code> - comma separated linger times in microseconds
+ * (default 0,250,1000,2000,5000)</li>
+ * <li><code>--messages</code> - messages to publish at each linger (default
+ * 200000)</li>
+ * <li><code>--rate</code> - messages published per second, 0 for as fast as
+ * possible (default 50000)</li>
+ * <li><code>--size</code> - payload size in bytes (default 32)</li>
+ * <li><code>--topics</code> - number of topics the messages are spread over
+ * (default 4)</li>
+ * <li><code>--batchBytes</code> - the batch size that is sent without waiting
+ * for the linger (default 16384)</li>
+ * <li><code>--qos</code> - QoS to publish at (default 1)</li>
+ * </ul>
+ */
+public class BatchingExample implements MqttCallback {
+
+	String topicPrefix = "batch/";
+	String broker = "tcp://localhost:1883";
+	String clientId = "PahoJavaV5Client";
+	int qos = 1;
+
+	private final AtomicLong arrived = new AtomicLong();
+
+	public BatchingExample(SampleOptions options) throws InterruptedException {
+		broker = SampleUtilities.resolveBroker(options, broker);
+		qos = options.getInt("qos", qos);
+		String[] lingers = options.getString("lingers", "0,250,1000,2000,5000").split(",");
+		int messages = options.getInt("messages", 200000);
+		int rate = options.getInt("rate", 50000);
+		int size = options.getInt("size", 32);
+		int topics = options.getInt("topics", 4);
+		int batchBytes = options.getInt("batchBytes", 16384);
+
+		System.out.println("lingerMicros,messages,messagesPerSecond,packets,messagesPerPacket,"
+				+ "ackP50Micros,ackP99Micros,ackMaxMicros,arrived,brokerPacketsIn,malformedBatches");
+		for (String linger : lingers) {
+			try {
+				run(Long.parseLong(linger.trim()), messages, rate, size, topics, batchBytes);
+			} catch (MqttException e) {
+				System.err.println("Exception Occured whilst running linger " + linger + ": " + e.getMessage());
+			}
+		}
+		System.exit(0);
+	}
+
+	private void run(long lingerMicros, int messages, int rate, int size, int topics, int batchBytes)
+			throws MqttException, InterruptedException {
+		arrived.set(0);
+		MqttAsyncClient subscriber = new MqttAsyncClient(broker, clientId + "-batch-subscriber",
+				new MemoryPersistence());
+		subscriber.setCallback(this);
+		subscriber.connect(new MqttConnectionOptionsBuilder().serverURI(broker).cleanSession(true).build())
+				.waitForCompletion(30000);
+		subscriber.subscribe(topicPrefix + "#", qos).waitForCompletion(30000);
+
+		MqttAsyncClient publisher = new MqttAsyncClient(broker, clientId + "-batch-publisher",
+				new MemoryPersistence());
+		publisher.connect(new MqttConnectionOptionsBuilder().serverURI(broker).cleanSession(true).build())
+				.waitForCompletion(30000);
+		BatchingPublisher batching = new BatchingPublisher(publisher, batchBytes, lingerMicros);
+		EmbeddedBroker embedded = SampleUtilities.embeddedBroker();
+		long packetsBefore = embedded == null ? 0 : embedded.getPacketsIn();
+
+		byte[] payload = new byte[size];
+		MqttMessage message = new MqttMessage(payload, qos, false);
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			if (rate > 0) {
+				long wait = start + (long) i * 1000000000L / rate - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+			}
+			// The payload is copied into the batch, so the message can be reused
+			batching.publish(topicPrefix + (i % topics), message);
+		}
+		batching.flush();
+		long deadline = System.currentTimeMillis() + 30000;
+		while ((batching.getAckLatency().getTotalCount() + batching.getFailed() < messages
+				|| arrived.get() < messages) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		batching.close();
+
+		LatencyHistogram acks = batching.getAckLatency();
+		System.out.println(String.format("%d,%d,%.1f,%d,%.2f,%d,%d,%d,%d,%s,%d", lingerMicros, messages,
+				acks.getTotalCount() / seconds, batching.getPackets(),
+				messages / (double) Math.max(1, batching.getPackets()), acks.getValueAtPercentile(50) / 1000,
+				acks.getValueAtPercentile(99) / 1000, acks.getMaxValue() / 1000, arrived.get(),
+				embedded == null ? "" : Long.toString(embedded.getPacketsIn() - packetsBefore),
+				BatchingPublisher.getMalformedBatches()));
+
+		publisher.disconnect().waitForCompletion(5000);
+		publisher.close();
+		subscriber.disconnect().waitForCompletion(5000);
+		subscriber.close();
+	}
+
+	/**
+	 * @param args
+	 *            - Optional arguments, see {@link SampleOptions}
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		SampleUtilities.printBanner("MQTTv5 Batching Example Java App");
+		new BatchingExample(SampleOptions.parse(args));
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+		arrived.addAndGet(BatchingPublisher.unbatch(message).size());
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+	}
+
+	@Override
+	public void disconnected(MqttDisconnectResponse disconnectResponse) {
+		System.out.println("Disconnection Complete! : " + disconnectResponse.toString());
+	}
+
+	@Override
+	public void mqttErrorOccured(MqttException exception) {
+		System.out.println("MQTT Error Occured: " + exception.getMessage());
+	}
+}
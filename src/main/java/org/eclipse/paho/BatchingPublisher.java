@@ -0,0 +1,560 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+
+/**
+ * Coalesces many small messages to the same topic into fewer PUBLISH packets.
+ *
+ * Every PUBLISH the client sends is its own socket write, so for small
+ * telemetry payloads the per-packet cost outweighs the payload. The client
+ * encodes and writes packets itself, so they cannot be gathered into one
+ * write from outside it; instead messages for the same topic and QoS are
+ * packed into a single batch message, which is published once it reaches
+ * <code>maxBatchBytes</code> or its first message has waited
+ * <code>lingerMicros</code>. Each batch carries a {@value #BATCH_PROPERTY} user
+ * property with its message count, and subscribers split it back up with
+ * {@link #unbatch(MqttMessage)}.
+ *
+ * Only plain messages are batched: a message that is retained, UTF-8 or has
+ * any other properties set is published on its own, after any batch already
+ * waiting for its topic so that the order is kept.
+ *
+ * Every publish returns its own {@link Delivery}, and its listener is told
+ * once the batch it went out in has been acknowledged (or, for QoS 0,
+ * written). The token passed to the listener is the batch's, so use the
+ * {@link Delivery} for the message's own user context.
+ *
+ * Batches are taken out of the map whilst holding this publisher's lock, and
+ * published after releasing it, so waiting for the client to accept a batch
+ * never stops other threads adding to theirs. Batches are published one at a
+ * time in the order they were taken, which keeps the order for each topic.
+ */
+public class BatchingPublisher {
+
+	/** The user property marking a batch, its value is the message count. */
+	public static final String BATCH_PROPERTY = "batch";
+
+	private static final AtomicLong MALFORMED_BATCHES = new AtomicLong();
+
+	private final MqttAsyncClient asyncClient;
+	private final int maxBatchBytes;
+	private final long lingerMicros;
+	private final ScheduledExecutorService scheduler;
+
+	// Batches waiting to be sent, by QoS and topic, guarded by this
+	private final Map<String, Batch> batches = new LinkedHashMap<>();
+	// Messages ready to publish in order, guarded by this
+	private final ArrayDeque<Outgoing> ready = new ArrayDeque<>();
+	// Held whilst publishing from ready, never taken whilst holding this
+	private final Object sendLock = new Object();
+
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong batchesSent = new AtomicLong();
+	private final AtomicLong packets = new AtomicLong();
+	private final AtomicLong unbatched = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final LatencyHistogram ackLatency = new LatencyHistogram("publish->ack");
+
+	/**
+	 * Reads <code>--batchBytes</code> (default 16384) and
+	 * <code>--linger</code> in microseconds (default 2000) from the options.
+	 *
+	 * @param asyncClient
+	 *            the client to publish with
+	 * @param options
+	 *            the sample's command line options
+	 */
+	public BatchingPublisher(MqttAsyncClient asyncClient, SampleOptions options) {
+		this(asyncClient, options.getInt("batchBytes", 16384), options.getLong("linger", 2000));
+	}
+
+	/**
+	 * @param asyncClient
+	 *            the client to publish with
+	 * @param maxBatchBytes
+	 *            send a batch as soon as its payload reaches this size
+	 * @param lingerMicros
+	 *            the longest a message waits for others to join its batch, 0
+	 *            to send every message straight away
+	 */
+	public BatchingPublisher(MqttAsyncClient asyncClient, int maxBatchBytes, long lingerMicros) {
+		this.asyncClient = asyncClient;
+		this.maxBatchBytes = maxBatchBytes;
+		this.lingerMicros = lingerMicros;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "BatchingPublisher-" + asyncClient.getClientId());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @see #publish(String, MqttMessage, Object, MqttActionListener)
+	 */
+	public Delivery publish(String topic, MqttMessage message) throws MqttException, InterruptedException {
+		return publish(topic, message, null, null);
+	}
+
+	/**
+	 * Adds a message to the batch for its topic. The payload is copied, so
+	 * the message can be reused as soon as this returns.
+	 *
+	 * @param topic
+	 *            the topic to publish to
+	 * @param message
+	 *            the message to publish
+	 * @param userContext
+	 *            returned by {@link Delivery#getUserContext()}
+	 * @param listener
+	 *            told when the message's batch has been delivered, may be null
+	 * @return the message's delivery
+	 * @throws MqttException
+	 *             if the client refused a batch sent whilst publishing
+	 * @throws InterruptedException
+	 *             if interrupted whilst waiting for the client to accept a
+	 *             batch
+	 */
+	public Delivery publish(String topic, MqttMessage message, Object userContext, MqttActionListener listener)
+			throws MqttException, InterruptedException {
+		Delivery delivery = new Delivery(userContext, listener);
+		messages.incrementAndGet();
+		String key = message.getQos() + topic;
+		synchronized (this) {
+			if (!isBatchable(message)) {
+				// Keep the order, anything already waiting for this topic goes first
+				Batch waiting = batches.remove(key);
+				if (waiting != null) {
+					ready.add(outgoing(waiting));
+				}
+				unbatched.incrementAndGet();
+				ready.add(new Outgoing(topic, message, delivery));
+			} else {
+				Batch batch = batches.get(key);
+				if (batch == null) {
+					batch = new Batch(topic, message.getQos());
+					batches.put(key, batch);
+					scheduleLinger(key, batch);
+				}
+				batch.add(message.getPayload(), delivery);
+				if (batch.bytes < maxBatchBytes && lingerMicros != 0) {
+					return delivery;
+				}
+				batches.remove(key);
+				ready.add(outgoing(batch));
+			}
+		}
+		sendReady();
+		return delivery;
+	}
+
+	private static boolean isBatchable(MqttMessage message) {
+		return !message.isRetained() && !message.isUTF8() && message.getExpiryInterval() == null
+				&& message.getContentType() == null && message.getResponseTopic() == null
+				&& message.getCorrelationData() == null
+				&& (message.getUserProperties() == null || message.getUserProperties().isEmpty());
+	}
+
+	private void scheduleLinger(final String key, final Batch batch) {
+		if (lingerMicros == 0) {
+			return;
+		}
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (BatchingPublisher.this) {
+					if (batches.get(key) != batch) {
+						return; // Already sent because it filled up
+					}
+					batches.remove(key);
+					ready.add(outgoing(batch));
+				}
+				try {
+					sendReady();
+				} catch (MqttException e) {
+					// The batch's deliveries have been failed
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, lingerMicros, TimeUnit.MICROSECONDS);
+	}
+
+	/**
+	 * Sends every batch that is waiting, without waiting for the linger time.
+	 */
+	public void flush() throws MqttException, InterruptedException {
+		synchronized (this) {
+			for (Batch batch : batches.values()) {
+				ready.add(outgoing(batch));
+			}
+			batches.clear();
+		}
+		sendReady();
+	}
+
+	/**
+	 * Publishes everything that is ready, in order. Only one thread publishes
+	 * at a time, the others wait their turn, which keeps each topic's batches
+	 * in order and holds publishers back whilst the client is full.
+	 *
+	 * @throws MqttException
+	 *             the first failure, once everything ready has been tried
+	 */
+	private void sendReady() throws MqttException, InterruptedException {
+		synchronized (sendLock) {
+			MqttException failure = null;
+			while (true) {
+				Outgoing next;
+				synchronized (this) {
+					next = ready.poll();
+				}
+				if (next == null) {
+					break;
+				}
+				try {
+					sendWithRetry(next.topic, next.message, next.listener);
+				} catch (MqttException e) {
+					// Its listener has been told, carry on with the rest
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	private Outgoing outgoing(final Batch batch) {
+		if (batch.deliveries.size() == 1) {
+			// Not worth the framing, send it as it came
+			return new Outgoing(batch.topic, new MqttMessage(batch.payloads.get(0), batch.qos, false),
+					batch.deliveries.get(0));
+		}
+		ByteBuffer payload = ByteBuffer.allocate(batch.bytes);
+		for (byte[] part : batch.payloads) {
+			writeVariableInt(payload, part.length);
+			payload.put(part);
+		}
+		MqttMessage message = new MqttMessage(payload.array(), batch.qos, false);
+		ArrayList<UserProperty> userProperties = new ArrayList<>();
+		userProperties.add(new UserProperty(BATCH_PROPERTY, Integer.toString(batch.deliveries.size())));
+		message.setUserProperties(userProperties);
+		batchesSent.incrementAndGet();
+		return new Outgoing(batch.topic, message, new MqttActionListener() {
+
+			@Override
+			public void onSuccess(IMqttToken asyncActionToken) {
+				for (Delivery delivery : batch.deliveries) {
+					delivery.onSuccess(asyncActionToken);
+				}
+			}
+
+			@Override
+			public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+				for (Delivery delivery : batch.deliveries) {
+					delivery.onFailure(asyncActionToken, exception);
+				}
+			}
+		});
+	}
+
+	private void sendWithRetry(String topic, MqttMessage message, MqttActionListener listener)
+			throws MqttException, InterruptedException {
+		while (true) {
+			try {
+				asyncClient.publish(topic, message, null, listener);
+				packets.incrementAndGet();
+				return;
+			} catch (MqttException e) {
+				// Most likely the client's own in-flight limit, give it a moment
+				if (!asyncClient.isConnected()) {
+					listener.onFailure(null, e);
+					throw e;
+				}
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	/**
+	 * Sends whatever is waiting and stops the linger timer.
+	 */
+	public void close() throws MqttException, InterruptedException {
+		flush();
+		scheduler.shutdown();
+	}
+
+	private static void writeVariableInt(ByteBuffer out, int value) {
+		do {
+			int digit = value & 0x7F;
+			value >>>= 7;
+			out.put((byte) (value > 0 ? digit | 0x80 : digit));
+		} while (value > 0);
+	}
+
+	/**
+	 * Splits a message received by a subscriber back into the payloads that
+	 * were published.
+	 *
+	 * A message whose {@value #BATCH_PROPERTY} property or payload does not
+	 * make a valid batch, such as one from another publisher that uses the
+	 * same property name, is returned whole and counted by
+	 * {@link #getMalformedBatches()}, so nothing is thrown out of
+	 * <code>messageArrived</code>.
+	 *
+	 * @param message
+	 *            a message as received
+	 * @return the payloads of the batch, or just the message's payload if it
+	 *         is not a valid batch
+	 */
+	public static List<byte[]> unbatch(MqttMessage message) {
+		String count = null;
+		if (message.getUserProperties() != null) {
+			for (UserProperty property : message.getUserProperties()) {
+				if (BATCH_PROPERTY.equals(property.getKey())) {
+					count = property.getValue();
+				}
+			}
+		}
+		if (count == null) {
+			return Collections.singletonList(message.getPayload());
+		}
+		List<byte[]> payloads = split(message.getPayload(), count);
+		if (payloads == null) {
+			MALFORMED_BATCHES.incrementAndGet();
+			return Collections.singletonList(message.getPayload());
+		}
+		return payloads;
+	}
+
+	/**
+	 * @return the payloads, or null if they are not a batch of this many
+	 */
+	private static List<byte[]> split(byte[] batch, String count) {
+		int expected;
+		try {
+			expected = Integer.parseInt(count);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		// Each payload takes at least its one byte length
+		if (expected <= 0 || batch == null || expected > batch.length) {
+			return null;
+		}
+		ByteBuffer in = ByteBuffer.wrap(batch);
+		List<byte[]> payloads = new ArrayList<>(expected);
+		while (in.hasRemaining()) {
+			int length = 0;
+			int shift = 0;
+			int digit;
+			do {
+				if (!in.hasRemaining() || shift > 21) {
+					return null; // Truncated, or longer than four bytes
+				}
+				digit = in.get();
+				length |= (digit & 0x7F) << shift;
+				shift += 7;
+			} while ((digit & 0x80) != 0);
+			if (length > in.remaining() || payloads.size() == expected) {
+				return null;
+			}
+			byte[] payload = new byte[length];
+			in.get(payload);
+			payloads.add(payload);
+		}
+		return payloads.size() == expected ? payloads : null;
+	}
+
+	/**
+	 * @return the number of messages {@link #unbatch(MqttMessage)} found a
+	 *         batch property on but could not split
+	 */
+	public static long getMalformedBatches() {
+		return MALFORMED_BATCHES.get();
+	}
+
+	/**
+	 * @return the time from each message being added to its batch being
+	 *         acknowledged
+	 */
+	public LatencyHistogram getAckLatency() {
+		return ackLatency;
+	}
+
+	public long getMessages() {
+		return messages.get();
+	}
+
+	/**
+	 * @return the number of batches of more than one message sent
+	 */
+	public long getBatches() {
+		return batchesSent.get();
+	}
+
+	/**
+	 * @return the number of PUBLISH packets sent, batches and single messages
+	 */
+	public long getPackets() {
+		return packets.get();
+	}
+
+	/**
+	 * @return the number of messages that were sent on their own because they
+	 *         had properties set
+	 */
+	public long getUnbatched() {
+		return unbatched.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	@Override
+	public String toString() {
+		return "BatchingPublisher: [messages=" + getMessages() + ", packets=" + getPackets() + ", batches=" + getBatches() + ", unbatched="
+				+ getUnbatched() + ", failed=" + getFailed() + ", linger=" + lingerMicros + "us, maxBatchBytes="
+				+ maxBatchBytes + ", " + ackLatency + "]";
+	}
+
+	/**
+	 * A message ready to publish.
+	 */
+	private static class Outgoing {
+
+		final String topic;
+		final MqttMessage message;
+		final MqttActionListener listener;
+
+		Outgoing(String topic, MqttMessage message, MqttActionListener listener) {
+			this.topic = topic;
+			this.message = message;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * Messages waiting to be sent to one topic at one QoS.
+	 */
+	private static class Batch {
+
+		final String topic;
+		final int qos;
+		final List<byte[]> payloads = new ArrayList<>();
+		final List<Delivery> deliveries = new ArrayList<>();
+		int bytes;
+
+		Batch(String topic, int qos) {
+			this.topic = topic;
+			this.qos = qos;
+		}
+
+		void add(byte[] payload, Delivery delivery) {
+			payloads.add(payload.clone());
+			deliveries.add(delivery);
+			bytes += PacketSizes.variableIntLength(payload.length) + payload.length;
+		}
+	}
+
+	/**
+	 * The delivery of one message published through the batching publisher.
+	 */
+	public class Delivery implements MqttActionListener {
+
+		private final long start = System.nanoTime();
+		private final Object userContext;
+		private final MqttActionListener listener;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Throwable exception;
+
+		Delivery(Object userContext, MqttActionListener listener) {
+			this.userContext = userContext;
+			this.listener = listener;
+		}
+
+		/**
+		 * Waits until the message has been delivered.
+		 *
+		 * @param timeout
+		 *            the longest to wait in milliseconds
+		 * @return true if the message was delivered, false if it failed or the
+		 *         timeout passed
+		 * @throws InterruptedException
+		 *             if interrupted whilst waiting
+		 */
+		public boolean waitForCompletion(long timeout) throws InterruptedException {
+			return done.await(timeout, TimeUnit.MILLISECONDS) && exception == null;
+		}
+
+		public boolean isComplete() {
+			return done.getCount() == 0;
+		}
+
+		/**
+		 * @return why the delivery failed, or null
+		 */
+		public Throwable getException() {
+			return exception;
+		}
+
+		public Object getUserContext() {
+			return userContext;
+		}
+
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			ackLatency.record(System.nanoTime() - start);
+			done.countDown();
+			if (listener != null) {
+				listener.onSuccess(asyncActionToken);
+			}
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			this.exception = exception;
+			failed.incrementAndGet();
+			done.countDown();
+			if (listener != null) {
+				listener.onFailure(asyncActionToken, exception);
+			}
+		}
+	}
+}
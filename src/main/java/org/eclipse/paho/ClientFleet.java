@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.TimerPingSender;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+
+/**
+ * A group of {@link MqttAsyncClient}s connected to the same broker, with client
+ * IDs derived from a common prefix so that they do not take over each other's
+ * sessions.
+ *
+ * If an executor is given every client runs its comms tasks on it, otherwise
+ * each client creates its own threads as usual.
+ */
+public class ClientFleet {
+
+	private final String broker;
+	private final String clientIdPrefix;
+	private final List<MqttAsyncClient> clients = new ArrayList<>();
+	private final LatencyHistogram connectTimes = new LatencyHistogram("connect");
+	private final AtomicLong connectFailures = new AtomicLong();
+
+	/**
+	 * @param broker
+	 *            the broker to connect to
+	 * @param clientIdPrefix
+	 *            client IDs are this prefix followed by "-" and the index
+	 * @param size
+	 *            the number of clients
+	 * @param executor
+	 *            the executor shared by every client, or null for the client
+	 *            default
+	 * @param callback
+	 *            the callback shared by every client
+	 * @throws MqttException
+	 *             if a client could not be created
+	 */
+	public ClientFleet(String broker, String clientIdPrefix, int size, ScheduledExecutorService executor,
+			MqttCallback callback) throws MqttException {
+		this.broker = broker;
+		this.clientIdPrefix = clientIdPrefix;
+		for (int i = 0; i < size; i++) {
+			MqttAsyncClient client;
+			if (executor == null) {
+				client = new MqttAsyncClient(broker, clientId(i), new MemoryPersistence());
+			} else {
+				client = new MqttAsyncClient(broker, clientId(i), new MemoryPersistence(), new TimerPingSender(),
+						executor);
+			}
+			client.setCallback(callback);
+			clients.add(client);
+		}
+	}
+
+	/**
+	 * @return the client ID of the client at the given index
+	 */
+	public String clientId(int index) {
+		return clientIdPrefix + "-" + index;
+	}
+
+	/**
+	 * Connects every client, starting one connect every
+	 * <code>staggerMicros</code> so that the broker does not see a storm of
+	 * CONNECTs, and waits for them all to complete.
+	 *
+	 * @param conOpts
+	 *            the connection options shared by every client
+	 * @param staggerMicros
+	 *            the delay between starting each connect
+	 * @param timeout
+	 *            how long to wait for the connects to complete
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return true if every connect completed (successfully or not) in time
+	 * @throws InterruptedException
+	 *             if interrupted whilst waiting
+	 */
+	public boolean connectAll(MqttConnectionOptions conOpts, long staggerMicros, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		final CountDownLatch connected = new CountDownLatch(clients.size());
+		long start = System.nanoTime();
+		for (int i = 0; i < clients.size(); i++) {
+			long wait = start + TimeUnit.MICROSECONDS.toNanos(i * staggerMicros) - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			final long connectStart = System.nanoTime();
+			try {
+				clients.get(i).connect(conOpts, null, new MqttActionListener() {
+
+					@Override
+					public void onSuccess(IMqttToken asyncActionToken) {
+						connectTimes.record(System.nanoTime() - connectStart);
+						connected.countDown();
+					}
+
+					@Override
+					public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+						connectFailures.incrementAndGet();
+						connected.countDown();
+					}
+				});
+			} catch (MqttException e) {
+				connectFailures.incrementAndGet();
+				connected.countDown();
+			}
+		}
+		return connected.await(timeout, unit);
+	}
+
+	/**
+	 * Disconnects and closes every client.
+	 */
+	public void close() {
+		for (MqttAsyncClient client : clients) {
+			try {
+				if (client.isConnected()) {
+					client.disconnect().waitForCompletion(5000);
+				}
+				client.close();
+			} catch (MqttException e) {
+				System.err.println("Exception Occured whilst closing " + client.getClientId() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	public List<MqttAsyncClient> getClients() {
+		return clients;
+	}
+
+	public int size() {
+		return clients.size();
+	}
+
+	/**
+	 * @return the time taken from starting each connect to its CONNACK
+	 */
+	public LatencyHistogram getConnectTimes() {
+		return connectTimes;
+	}
+
+	public long getConnectFailures() {
+		return connectFailures.get();
+	}
+
+	public String getBroker() {
+		return broker;
+	}
+}
@@ -0,0 +1,378 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Counts what a client is doing: publishes, acks, arrivals, errors,
+ * disconnects by reason code, publishes in flight and how long reconnects
+ * take.
+ *
+ * Counting happens in wrappers around the sample's {@link MqttCallback} and
+ * {@link MqttActionListener}s, see {@link #wrap(MqttCallback)} and
+ * {@link #wrap(MqttActionListener)}. Counters are {@link LongAdder}s, so the
+ * client's threads never contend on them, and the wrappers are created once
+ * rather than per message.
+ *
+ * The client has no connect complete callback, so after a disconnect the
+ * client is polled every 10ms until automatic reconnect has it connected
+ * again, and the time taken is recorded.
+ *
+ * The numbers are published over JMX (see {@link ClientMetricsMXBean}) and
+ * can also be printed every few seconds with the change since the last
+ * report.
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+
+	private static final long RECONNECT_POLL_MILLIS = 10;
+	private static ScheduledExecutorService scheduler;
+
+	private final String name;
+	private final MqttAsyncClient asyncClient;
+	private final LongAdder published = new LongAdder();
+	private final LongAdder publishFailures = new LongAdder();
+	private final LongAdder publishRefusals = new LongAdder();
+	private final LongAdder acked = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder arrived = new LongAdder();
+	private final LongAdder arrivedBytes = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder disconnects = new LongAdder();
+	private final LongAdder reconnects = new LongAdder();
+	private final ConcurrentHashMap<Integer, LongAdder> reasonCodes = new ConcurrentHashMap<>();
+	private final LatencyHistogram reconnectTimes = new LatencyHistogram("reconnect");
+
+	private long disconnectedAt;
+	private ScheduledFuture<?> reconnectPoll;
+	private long[] lastReport;
+
+	/**
+	 * @param name
+	 *            the name to report and register under, usually the client ID
+	 * @param asyncClient
+	 *            the client, polled to time reconnects
+	 */
+	public ClientMetrics(String name, MqttAsyncClient asyncClient) {
+		this.name = name;
+		this.asyncClient = asyncClient;
+	}
+
+	/**
+	 * Creates metrics for a client, registers them with the platform MBean
+	 * server, and if <code>--metricsInterval</code> is given prints a report
+	 * every that many seconds.
+	 *
+	 * @param name
+	 *            the name to report and register under, usually the client ID
+	 * @param asyncClient
+	 *            the client
+	 * @param options
+	 *            the sample's command line options
+	 * @return the metrics
+	 */
+	public static ClientMetrics register(String name, MqttAsyncClient asyncClient, SampleOptions options) {
+		return new ClientMetrics(name, asyncClient).start(options);
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server, and if
+	 * <code>--metricsInterval</code> is given prints a report every that many
+	 * seconds. Starting the MBean server takes a while, so a short lived run
+	 * can count from the start and call this once it has connected.
+	 *
+	 * @param options
+	 *            the sample's command line options
+	 * @return these metrics
+	 */
+	public ClientMetrics start(SampleOptions options) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("org.eclipse.paho:type=ClientMetrics,name=" + ObjectName.quote(name)));
+		} catch (JMException e) {
+			System.err.println("Exception Occured whilst registering metrics: " + e.getMessage());
+		}
+		long interval = options.getLong("metricsInterval", 0);
+		if (interval > 0) {
+			startReporting(interval, TimeUnit.SECONDS);
+		}
+		return this;
+	}
+
+	private static synchronized ScheduledExecutorService scheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "ClientMetrics");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Prints a report to the console at a fixed rate.
+	 *
+	 * @param interval
+	 *            the time between reports
+	 * @param unit
+	 *            the unit of the interval
+	 */
+	public void startReporting(final long interval, final TimeUnit unit) {
+		scheduler().scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				SampleUtilities.console().info(report(unit.toMillis(interval)));
+			}
+		}, interval, interval, unit);
+	}
+
+	/**
+	 * Counts a publish that the client accepted.
+	 */
+	public void recordPublish() {
+		published.increment();
+	}
+
+	/**
+	 * Counts a publish that the client refused, so was never published.
+	 */
+	public void recordPublishRefused() {
+		publishRefusals.increment();
+	}
+
+	/**
+	 * @param callback
+	 *            the sample's callback
+	 * @return a callback that counts each event and then passes it on
+	 */
+	public MqttCallback wrap(final MqttCallback callback) {
+		return new MqttCallback() {
+
+			@Override
+			public void messageArrived(String topic, MqttMessage message) throws Exception {
+				arrived.increment();
+				byte[] payload = message.getPayload();
+				arrivedBytes.add(payload == null ? 0 : payload.length);
+				callback.messageArrived(topic, message);
+			}
+
+			@Override
+			public void deliveryComplete(IMqttDeliveryToken token) {
+				delivered.increment();
+				callback.deliveryComplete(token);
+			}
+
+			@Override
+			public void disconnected(MqttDisconnectResponse disconnectResponse) {
+				recordDisconnect(disconnectResponse);
+				callback.disconnected(disconnectResponse);
+			}
+
+			@Override
+			public void mqttErrorOccured(MqttException exception) {
+				errors.increment();
+				callback.mqttErrorOccured(exception);
+			}
+		};
+	}
+
+	/**
+	 * @param listener
+	 *            a listener passed to publish, or null
+	 * @return a listener that counts acks and failed publishes and then passes
+	 *         them on
+	 */
+	public MqttActionListener wrap(final MqttActionListener listener) {
+		return new MqttActionListener() {
+
+			@Override
+			public void onSuccess(IMqttToken asyncActionToken) {
+				acked.increment();
+				if (listener != null) {
+					listener.onSuccess(asyncActionToken);
+				}
+			}
+
+			@Override
+			public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+				publishFailures.increment();
+				if (listener != null) {
+					listener.onFailure(asyncActionToken, exception);
+				}
+			}
+		};
+	}
+
+	private void recordDisconnect(MqttDisconnectResponse disconnectResponse) {
+		disconnects.increment();
+		int reasonCode = disconnectResponse == null ? -1 : disconnectResponse.getReturnCode();
+		LongAdder count = reasonCodes.get(reasonCode);
+		if (count == null) {
+			LongAdder added = new LongAdder();
+			count = reasonCodes.putIfAbsent(reasonCode, added);
+			if (count == null) {
+				count = added;
+			}
+		}
+		count.increment();
+		synchronized (this) {
+			if (reconnectPoll != null) {
+				return;
+			}
+			disconnectedAt = System.nanoTime();
+			reconnectPoll = scheduler().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					pollReconnect();
+				}
+			}, RECONNECT_POLL_MILLIS, RECONNECT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private synchronized void pollReconnect() {
+		if (reconnectPoll != null && asyncClient.isConnected()) {
+			reconnectTimes.record(System.nanoTime() - disconnectedAt);
+			reconnects.increment();
+			reconnectPoll.cancel(false);
+			reconnectPoll = null;
+		}
+	}
+
+	/**
+	 * @param intervalMillis
+	 *            the time since the last report, for the rates
+	 * @return the current numbers, with rates since the last report
+	 */
+	synchronized String report(long intervalMillis) {
+		long[] now = { published.sum(), acked.sum(), arrived.sum() };
+		long[] last = lastReport == null ? new long[now.length] : lastReport;
+		lastReport = now;
+		double seconds = intervalMillis / 1000.0;
+		return String.format(
+				"Metrics %s: [published=%d (%.1f/s), acked=%d (%.1f/s), arrived=%d (%.1f/s), inFlight=%d, "
+						+ "failures=%d, refused=%d, errors=%d, disconnects=%d %s, reconnects=%d, reconnectMax=%dms]",
+				name, now[0], (now[0] - last[0]) / seconds, now[1], (now[1] - last[1]) / seconds, now[2],
+				(now[2] - last[2]) / seconds, getInFlight(), getPublishFailures(), getPublishRefusals(), getErrors(), getDisconnects(),
+				getDisconnectReasonCodes(), getReconnects(), getReconnectMaxMillis());
+	}
+
+	@Override
+	public long getPublished() {
+		return published.sum();
+	}
+
+	@Override
+	public long getPublishFailures() {
+		return publishFailures.sum();
+	}
+
+	@Override
+	public long getPublishRefusals() {
+		return publishRefusals.sum();
+	}
+
+	@Override
+	public long getAcked() {
+		return acked.sum();
+	}
+
+	@Override
+	public long getDelivered() {
+		return delivered.sum();
+	}
+
+	@Override
+	public long getArrived() {
+		return arrived.sum();
+	}
+
+	@Override
+	public long getArrivedBytes() {
+		return arrivedBytes.sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public long getDisconnects() {
+		return disconnects.sum();
+	}
+
+	@Override
+	public long getReconnects() {
+		return reconnects.sum();
+	}
+
+	@Override
+	public long getInFlight() {
+		// An ack can be counted just before the publish it belongs to
+		return Math.max(0, published.sum() - acked.sum() - publishFailures.sum());
+	}
+
+	@Override
+	public Map<String, Long> getDisconnectReasonCodes() {
+		Map<String, Long> codes = new TreeMap<>();
+		for (Map.Entry<Integer, LongAdder> entry : reasonCodes.entrySet()) {
+			String code = entry.getKey() < 0 ? "none" : String.format("0x%02X", entry.getKey());
+			codes.put(code, entry.getValue().sum());
+		}
+		return codes;
+	}
+
+	@Override
+	public long getReconnectP50Millis() {
+		return TimeUnit.NANOSECONDS.toMillis(reconnectTimes.getValueAtPercentile(50));
+	}
+
+	@Override
+	public long getReconnectMaxMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(reconnectTimes.getMaxValue());
+	}
+
+	@Override
+	public String toString() {
+		return "ClientMetrics " + name + ": [published=" + getPublished() + ", acked=" + getAcked() + ", arrived="
+				+ getArrived() + ", inFlight=" + getInFlight() + ", failures=" + getPublishFailures() + ", refused="
+				+ getPublishRefusals() + ", errors="
+				+ getErrors() + ", disconnects=" + getDisconnects() + " " + getDisconnectReasonCodes()
+				+ ", reconnects=" + getReconnects() + ", reconnectMax=" + getReconnectMaxMillis() + "ms]";
+	}
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a {@link ClientMetrics}, registered as
+ * <code>org.eclipse.paho:type=ClientMetrics,name={clientId}</code>.
+ */
+public interface ClientMetricsMXBean {
+
+	long getPublished();
+
+	/**
+	 * @return publishes the client accepted that then failed
+	 */
+	long getPublishFailures();
+
+	/**
+	 * @return publishes the client refused, which were never published
+	 */
+	long getPublishRefusals();
+
+	long getAcked();
+
+	long getDelivered();
+
+	long getArrived();
+
+	long getArrivedBytes();
+
+	long getErrors();
+
+	long getDisconnects();
+
+	long getReconnects();
+
+	/**
+	 * @return publishes that have not yet succeeded or failed
+	 */
+	long getInFlight();
+
+	/**
+	 * @return the number of disconnects seen for each reason code
+	 */
+	Map<String, Long> getDisconnectReasonCodes();
+
+	long getReconnectP50Millis();
+
+	long getReconnectMaxMillis();
+}
@@ -18,7 +18,6 @@ import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
 import org.eclipse.paho.mqttv5.client.IMqttToken;
 import org.eclipse.paho.mqttv5.client.MqttActionListener;
 import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
-import org.eclipse.paho.mqttv5.client.MqttCallback;
 import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
 import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
 import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
@@ -58,7 +57,7 @@ import org.eclipse.paho.mqttv5.common.packet.UserProperty;
  *         </ul>
  * 
  */
-public class DisconnectExample implements MqttCallback {
+public class DisconnectExample extends PayloadViewCallback {
 
 	// ------ Client Configuration ------ //
 	String topic = "MQTTV5";
@@ -73,9 +72,13 @@ public class DisconnectExample implements MqttCallback {
 	/**
 	 * Main App Class, nothing fancy here.
 	 * 
+	 * @param options
+	 *            the command line options, <code>--broker</code> or
+	 *            <code>--embedded</code> choose the broker
 	 * @throws InterruptedException
 	 */
-	public DisconnectExample() throws InterruptedException {
+	public DisconnectExample(SampleOptions options) throws InterruptedException {
+		broker = SampleUtilities.resolveBroker(options, broker);
 		try {
 			MemoryPersistence persistence = new MemoryPersistence();
 			this.asyncClient = new MqttAsyncClient(broker, clientId, persistence);
@@ -86,7 +89,7 @@ public class DisconnectExample implements MqttCallback {
 					.sessionExpiryInterval(120).automaticReconnect(true)
 					.will(topic, new MqttMessage(willContent.getBytes(), qos, false)).topicAliasMaximum(1000)
 					.sessionExpiryInterval(10).build();
-			asyncClient.setCallback(this);
+			asyncClient.setCallback(ClientMetrics.register(clientId, asyncClient, options).wrap(this));
 
 			System.out.println("Connecting to broker: " + broker);
 
@@ -148,33 +151,37 @@ public class DisconnectExample implements MqttCallback {
 
 	/**
 	 * @param args
-	 *            - No arguments to process
+	 *            - Optional arguments, see {@link SampleOptions}
 	 * @throws InterruptedException
 	 */
 	public static void main(String[] args) throws InterruptedException {
 		SampleUtilities.printBanner("MQTTv5 Disconnect Example Java App");
-		new DisconnectExample();
+		SampleOptions options = SampleOptions.parse(args);
+		SampleUtilities.configureConsole(options);
+		new DisconnectExample(options);
 
 	}
 
 	@Override
-	public void messageArrived(String topic, MqttMessage message) throws Exception {
-		String incomingMessage = new String(message.getPayload());
-		System.out.println("Incoming Message: [" + incomingMessage + "], topic:[" + topic + "]");
+	public void payloadArrived(String topic, PayloadView payload) throws Exception {
+		AsyncConsole console = SampleUtilities.console();
+		if (console.shouldLog(AsyncConsole.Level.INFO)) {
+			console.log(AsyncConsole.Level.INFO, "Incoming Message: [" + payload.text() + "], topic:[" + topic + "]");
+		}
 	}
 
 	@Override
 	public void deliveryComplete(IMqttDeliveryToken token) {
-		System.out.println("Delivery Complete: Message ID: " + token.getMessageId());
+		SampleUtilities.console().info("Delivery Complete: Message ID: " + token.getMessageId());
 	}
 
 	@Override
 	public void disconnected(MqttDisconnectResponse disconnectResponse) {
-		System.out.println("Disconnection Complete! : " + disconnectResponse.toString());
+		SampleUtilities.console().warn("Disconnection Complete! : " + disconnectResponse.toString());
 	}
 
 	@Override
 	public void mqttErrorOccured(MqttException exception) {
-		System.out.println("MQTT Error Occured: " + exception.getMessage());
+		SampleUtilities.console().error("MQTT Error Occured: " + exception.getMessage());
 	}
 }
@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Compares running blocking work on platform threads and on virtual threads.
+ * 
+ * For each subscription count, a client subscribes to that many topics with
+ * every subscribe and its blocking <code>waitForCompletion()</code> running as
+ * its own task on the executor. One message is then published to each topic,
+ * and every <code>messageArrived</code> hands its processing to the executor,
+ * where it blocks for <code>--work</code> milliseconds to stand in for a
+ * database or HTTP call.
+ * 
+ * Options (see {@link SampleOptions}):
+ * <ul>
+ * <li><code>--subscriptions</code> - comma separated subscription counts
+ * (default 1000,10000,50000)</li>
+ * <li><code>--modes</code> - comma separated executor modes (default
+ * platform,virtual)</li>
+ * <li><code>--platformThreads</code> - size of the platform thread pool
+ * (default 200)</li>
+ * <li><code>--work</code> - milliseconds each message blocks for (default
+ * 1)</li>
+ * </ul>
+ */
+public class ExecutorComparison implements MqttCallback {
+
+	String broker = "tcp://localhost:1883";
+	String clientId = "PahoJavaV5Client";
+	int qos = 1;
+
+	private ExecutorService executor;
+	private CountDownLatch processed;
+	private long workMillis;
+	private final AtomicLong failures = new AtomicLong();
+
+	public ExecutorComparison(SampleOptions options) throws InterruptedException {
+		broker = SampleUtilities.resolveBroker(options, broker);
+		workMillis = options.getLong("work", 1);
+		int platformThreads = options.getInt("platformThreads", 200);
+		String[] modes = options.getString("modes", SampleExecutors.PLATFORM + "," + SampleExecutors.VIRTUAL)
+				.split(",");
+		String[] counts = options.getString("subscriptions", "1000,10000,50000").split(",");
+
+		System.out.println("mode,subscriptions,subscribeSeconds,messagesPerSecond,peakThreads,failures");
+		for (String count : counts) {
+			for (String mode : modes) {
+				if (SampleExecutors.VIRTUAL.equals(mode) && !SampleExecutors.isVirtualAvailable()) {
+					System.out.println(mode + "," + count + ",unavailable on Java " + System.getProperty("java.version"));
+					continue;
+				}
+				try {
+					run(mode, Integer.parseInt(count.trim()), platformThreads);
+				} catch (IllegalArgumentException e) {
+					System.out.println(mode + "," + count + "," + e.getMessage());
+				}
+			}
+		}
+		System.exit(0);
+	}
+
+	private void run(String mode, final int subscriptions, int platformThreads) throws InterruptedException {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		threadBean.resetPeakThreadCount();
+		failures.set(0);
+		executor = SampleExecutors.create(mode, platformThreads);
+		try {
+			final MqttAsyncClient asyncClient = new MqttAsyncClient(broker, clientId + "-" + mode,
+					new MemoryPersistence());
+			asyncClient.setCallback(this);
+			asyncClient.connect(new MqttConnectionOptionsBuilder().serverURI(broker).cleanSession(true).build())
+					.waitForCompletion();
+
+			final CountDownLatch subscribed = new CountDownLatch(subscriptions);
+			long start = System.nanoTime();
+			for (int i = 0; i < subscriptions; i++) {
+				final String topic = topic(i);
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							asyncClient.subscribe(topic, qos).waitForCompletion();
+						} catch (MqttException e) {
+							failures.incrementAndGet();
+						}
+						subscribed.countDown();
+					}
+				});
+			}
+			subscribed.await(5, TimeUnit.MINUTES);
+			double subscribeSeconds = (System.nanoTime() - start) / 1e9;
+
+			processed = new CountDownLatch(subscriptions);
+			start = System.nanoTime();
+			for (int i = 0; i < subscriptions; i++) {
+				publishWhenPossible(asyncClient, topic(i));
+			}
+			processed.await(5, TimeUnit.MINUTES);
+			double processSeconds = (System.nanoTime() - start) / 1e9;
+
+			System.out.println(String.format("%s,%d,%.3f,%.1f,%d,%d", mode, subscriptions, subscribeSeconds,
+					(subscriptions - processed.getCount()) / processSeconds, threadBean.getPeakThreadCount(),
+					failures.get()));
+
+			asyncClient.disconnect().waitForCompletion();
+			asyncClient.close();
+		} catch (MqttException e) {
+			System.err.println("Exception Occured whilst running " + mode + ": " + e.getMessage());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void publishWhenPossible(MqttAsyncClient asyncClient, String topic)
+			throws MqttException, InterruptedException {
+		while (true) {
+			try {
+				asyncClient.publish(topic, new MqttMessage(topic.getBytes(), qos, false));
+				return;
+			} catch (MqttException e) {
+				if (!asyncClient.isConnected()) {
+					throw e; // Lost the connection, give up on this run
+				}
+				// Most likely too many publishes in flight, give them a moment
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	private static String topic(int index) {
+		return "executor/" + index;
+	}
+
+	/**
+	 * @param args
+	 *            - Optional arguments, see {@link SampleOptions}
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		SampleUtilities.printBanner("MQTTv5 Executor Comparison Java App");
+		new ExecutorComparison(SampleOptions.parse(args));
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(workMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				processed.countDown();
+			}
+		});
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+	}
+
+	@Override
+	public void disconnected(MqttDisconnectResponse disconnectResponse) {
+		System.out.println("Disconnection Complete! : " + disconnectResponse.toString());
+	}
+
+	@Override
+	public void mqttErrorOccured(MqttException exception) {
+		System.out.println("MQTT Error Occured: " + exception.getMessage());
+	}
+}
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.broker.EmbeddedBroker;
+import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.MqttToken;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+
+/**
+ * Sample MQTTv5 Eclipse Paho Java App.
+ * https://github.com/jpwsutton/EclipsePahoJavaMQTTv5Example
+ * 
+ * This example compares publishing as fast as <code>publish</code> will take
+ * messages, catching and counting whatever goes wrong, with publishing through
+ * a {@link FlowControlledPublisher} that keeps within the server's Receive
+ * Maximum and Maximum Packet Size and tunes its window to the ack latency.
+ * Each mode uses a new connection and reports throughput, ack latency, failed
+ * and rejected publishes and disconnects as CSV.
+ * 
+ * Options (see {@link SampleOptions}):
+ * <ul>
+ * <li><code>--modes</code> - comma separated modes (default
+ * unbounded,flow)</li>
+ * <li><code>--messages</code> - number of messages to publish (default
+ * 50000)</li>
+ * <li><code>--size</code> - payload size in bytes (default 256)</li>
+ * <li><code>--large</code> - size of every 100th payload, 0 for none
+ * (default 0)</li>
+ * <li><code>--oversize</code> - REJECT or FRAGMENT (default FRAGMENT)</li>
+ * <li><code>--initialWindow</code> - the flow controlled window to start
+ * with (default 4)</li>
+ * <li><code>--latencyFactor</code> - how far above the lowest ack latency
+ * the latency can go before the window is cut (default 3)</li>
+ * <li><code>--qos</code> - QoS to publish at (default 1)</li>
+ * <li><code>--brokerReceiveMaximum</code> and
+ * <code>--brokerMaximumPacketSize</code> - limits for the embedded broker to
+ * send (default 32 and 0 for none)</li>
+ * </ul>
+ * 
+ * @author James Sutton (2017) - Initial Contribution
+ */
+public class FlowControlExample implements MqttCallback {
+
+	private static final String UNBOUNDED = "unbounded";
+	private static final String FLOW = "flow";
+
+	// ------ Client Configuration ------ //
+	String topic = "flow";
+	String broker = "tcp://localhost:1883";
+	String clientId = "PahoJavaV5Client";
+	int qos = 1;
+
+	private final LatencyRecorder latencyRecorder = new LatencyRecorder();
+	private final AtomicLong acked = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong disconnects = new AtomicLong();
+
+	private final MqttActionListener deliveryListener = new MqttActionListener() {
+
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			acked.incrementAndGet();
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			failed.incrementAndGet();
+		}
+	};
+
+	public FlowControlExample(SampleOptions options) throws InterruptedException {
+		broker = SampleUtilities.resolveBroker(options, broker);
+		qos = options.getInt("qos", qos);
+		EmbeddedBroker embeddedBroker = SampleUtilities.embeddedBroker();
+		if (embeddedBroker != null) {
+			embeddedBroker.setReceiveMaximum(options.getInt("brokerReceiveMaximum", 32));
+			embeddedBroker.setMaximumPacketSize(options.getInt("brokerMaximumPacketSize", 0));
+		}
+		String[] modes = options.getString("modes", UNBOUNDED + "," + FLOW).split(",");
+
+		List<String> results = new ArrayList<>();
+		for (String mode : modes) {
+			results.add(run(mode.trim(), options));
+		}
+		System.out.println(
+				"mode,messages,acked,failed,rejected,disconnects,seconds,messagesPerSecond,ackP50Micros,ackP99Micros");
+		for (String result : results) {
+			System.out.println(result);
+		}
+		System.exit(0);
+	}
+
+	private String run(String mode, SampleOptions options) throws InterruptedException {
+		int messages = options.getInt("messages", 50000);
+		int size = Math.max(LatencyRecorder.HEADER_LENGTH, options.getInt("size", 256));
+		int large = options.getInt("large", 0);
+		acked.set(0);
+		failed.set(0);
+		disconnects.set(0);
+		latencyRecorder.getPublishToAck().reset();
+		long rejected = 0;
+		double seconds = 0;
+		try {
+			MqttAsyncClient asyncClient = new MqttAsyncClient(broker, clientId + "-" + mode, new MemoryPersistence());
+			asyncClient.setCallback(this);
+			MqttToken connectToken = (MqttToken) asyncClient
+					.connect(new MqttConnectionOptionsBuilder().serverURI(broker).cleanSession(true).build());
+			connectToken.waitForCompletion();
+
+			FlowControlledPublisher publisher = null;
+			if (FLOW.equals(mode)) {
+				FlowControlledPublisher.OversizePolicy oversize = FlowControlledPublisher.OversizePolicy
+						.valueOf(options.getString("oversize", "FRAGMENT"));
+				publisher = new FlowControlledPublisher(asyncClient, connectToken, oversize,
+						options.getInt("initialWindow", 4), options.getDouble("latencyFactor", 3));
+			}
+
+			long start = System.nanoTime();
+			for (int i = 0; i < messages; i++) {
+				byte[] payload = new byte[large > 0 && i % 100 == 99 ? large : size];
+				LatencyRecorder.stamp(payload);
+				MqttMessage message = new MqttMessage(payload, qos, false);
+				try {
+					if (publisher != null) {
+						publisher.publish(topic, message, null, deliveryListener);
+					} else {
+						asyncClient.publish(topic, message, null, deliveryListener);
+					}
+				} catch (MqttException e) {
+					failed.incrementAndGet();
+				} catch (IllegalArgumentException e) {
+					rejected++;
+				}
+			}
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+			while (acked.get() + failed.get() + rejected < messages && System.nanoTime() < deadline
+					&& asyncClient.isConnected()) {
+				Thread.sleep(1);
+			}
+			seconds = (System.nanoTime() - start) / 1e9;
+			if (publisher != null) {
+				System.out.println(publisher);
+			}
+			if (asyncClient.isConnected()) {
+				asyncClient.disconnect().waitForCompletion();
+			}
+			asyncClient.close();
+		} catch (MqttException e) {
+			System.err.println("Exception Occured whilst running " + mode + ": " + e.getMessage());
+		}
+		LatencyHistogram acks = latencyRecorder.getPublishToAck();
+		return String.format("%s,%d,%d,%d,%d,%d,%.3f,%.1f,%d,%d", mode, messages, acked.get(), failed.get(), rejected,
+				disconnects.get(), seconds, acked.get() / seconds, acks.getValueAtPercentile(50) / 1000,
+				acks.getValueAtPercentile(99) / 1000);
+	}
+
+	/**
+	 * @param args
+	 *            - Optional arguments, see {@link SampleOptions}
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		SampleUtilities.printBanner("MQTTv5 Flow Control Example Java App");
+		SampleOptions options = SampleOptions.parse(args);
+		SampleUtilities.configureConsole(options);
+		new FlowControlExample(options);
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+		try {
+			MqttMessage message = token.getMessage();
+			if (!isLaterFragment(message)) {
+				latencyRecorder.recordAck(message);
+			}
+		} catch (MqttException e) {
+			// The message is no longer available, nothing to record.
+		}
+	}
+
+	/**
+	 * Only the first fragment of a message starts with its send timestamp.
+	 */
+	private static boolean isLaterFragment(MqttMessage message) {
+		if (message == null || message.getUserProperties() == null) {
+			return false;
+		}
+		for (UserProperty property : message.getUserProperties()) {
+			if (FlowControlledPublisher.FRAGMENT_PROPERTY.equals(property.getKey())) {
+				return !property.getValue().startsWith("0:");
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void disconnected(MqttDisconnectResponse disconnectResponse) {
+		disconnects.incrementAndGet();
+		SampleUtilities.console().warn("Disconnection Complete! : " + disconnectResponse.toString());
+	}
+
+	@Override
+	public void mqttErrorOccured(MqttException exception) {
+		SampleUtilities.console().error("MQTT Error Occured: " + exception.getMessage());
+	}
+}
@@ -0,0 +1,536 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttToken;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+
+/**
+ * Publishes QoS 1 and 2 messages within the limits the server sent in its
+ * CONNACK.
+ *
+ * The number of unacknowledged messages is held to a window that never goes
+ * above the server's Receive Maximum, and is tuned to the ack latency AIMD
+ * style: it grows by one message per window's worth of acks while the latency
+ * stays within <code>latencyFactor</code> times the lowest latency seen, and
+ * halves (at most once per round trip) when it goes above that or a publish
+ * fails, so the publisher runs as fast as the server can keep up with
+ * without queueing up latency.
+ *
+ * Messages whose PUBLISH packet would be larger than the server's Maximum
+ * Packet Size are either rejected before they are sent or split into
+ * fragments that fit. MQTT has no fragmentation of its own, so each fragment
+ * carries a {@value #FRAGMENT_PROPERTY} user property that a
+ * {@link FragmentAssembler} uses to put the message back together. The Payload
+ * Format Indicator is not sent on fragments, as a split could fall inside a
+ * UTF-8 character. Retained messages are never fragmented, as the server
+ * would only keep the last fragment, and are rejected instead.
+ *
+ * QoS 0 messages are only checked against the Maximum Packet Size, as they do
+ * not count towards the Receive Maximum.
+ */
+public class FlowControlledPublisher {
+
+	/**
+	 * What to do with a message that is larger than the server's Maximum
+	 * Packet Size.
+	 */
+	public enum OversizePolicy {
+		/** Throw an {@link IllegalArgumentException} without sending it. */
+		REJECT,
+		/** Send it in fragments that each fit. */
+		FRAGMENT
+	}
+
+	/** The user property naming a fragment: <code>index:count:id</code>. */
+	public static final String FRAGMENT_PROPERTY = "fragment";
+
+	// Room for the index:count: part of the fragment property, as two ints
+	private static final int FRAGMENT_INDEX_ROOM = 22;
+	// The Receive Maximum if the server did not send one
+	private static final int DEFAULT_RECEIVE_MAXIMUM = 65535;
+
+	private final MqttAsyncClient asyncClient;
+	private final int receiveMaximum;
+	private final int maximumPacketSize;
+	private final OversizePolicy oversizePolicy;
+	private final double latencyFactor;
+	private final AtomicLong fragmentIds = new AtomicLong();
+
+	// Window state, guarded by this
+	private double window;
+	private int inFlight;
+	private long minLatencyNanos = Long.MAX_VALUE;
+	private long lastDecreaseNanos;
+	private double maxWindow;
+	private long decreases;
+
+	private final AtomicLong acked = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong fragmented = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final LatencyHistogram ackLatency = new LatencyHistogram("publish->ack");
+
+	/**
+	 * @param asyncClient
+	 *            the connected client to publish with
+	 * @param connectToken
+	 *            the token from the connect, for the server's limits
+	 * @param oversizePolicy
+	 *            what to do with messages above the Maximum Packet Size
+	 * @param initialWindow
+	 *            the window to start with
+	 * @param latencyFactor
+	 *            how far above the lowest ack latency seen the latency can go
+	 *            before the window is cut
+	 */
+	public FlowControlledPublisher(MqttAsyncClient asyncClient, MqttToken connectToken, OversizePolicy oversizePolicy,
+			int initialWindow, double latencyFactor) {
+		this.asyncClient = asyncClient;
+		Integer serverReceiveMaximum = connectToken.getRecieveMaximum();
+		Integer serverMaximumPacketSize = connectToken.getMaximumPacketSize();
+		this.receiveMaximum = serverReceiveMaximum == null ? DEFAULT_RECEIVE_MAXIMUM : serverReceiveMaximum;
+		this.maximumPacketSize = serverMaximumPacketSize == null ? Integer.MAX_VALUE : serverMaximumPacketSize;
+		this.oversizePolicy = oversizePolicy;
+		this.latencyFactor = latencyFactor;
+		this.window = Math.max(1, Math.min(initialWindow, receiveMaximum));
+		this.maxWindow = window;
+	}
+
+	/**
+	 * Publishes a message once there is room in the window.
+	 *
+	 * @param topic
+	 *            the topic to publish to
+	 * @param message
+	 *            the message to publish
+	 * @param userContext
+	 *            passed to the listener
+	 * @param listener
+	 *            told when the message, or all of its fragments, have been
+	 *            acknowledged, may be null
+	 * @throws MqttException
+	 *             if the client is not connected
+	 * @throws InterruptedException
+	 *             if interrupted whilst waiting for room in the window
+	 * @throws IllegalArgumentException
+	 *             if the message is too large and the policy is
+	 *             {@link OversizePolicy#REJECT} or the message is retained
+	 */
+	public void publish(String topic, MqttMessage message, Object userContext, MqttActionListener listener)
+			throws MqttException, InterruptedException {
+		int size = PacketSizes.publishPacketSize(topic, message);
+		if (size <= maximumPacketSize) {
+			send(topic, message, userContext, listener);
+			return;
+		}
+		if (oversizePolicy == OversizePolicy.REJECT) {
+			rejected.incrementAndGet();
+			throw new IllegalArgumentException("Message of " + size
+					+ " bytes is larger than the server's Maximum Packet Size of " + maximumPacketSize);
+		}
+		if (message.isRetained()) {
+			// The server would only keep the last fragment
+			rejected.incrementAndGet();
+			throw new IllegalArgumentException("Retained message of " + size
+					+ " bytes is larger than the server's Maximum Packet Size of " + maximumPacketSize
+					+ " and cannot be fragmented");
+		}
+		sendFragments(topic, message, userContext, listener);
+	}
+
+	private void send(String topic, MqttMessage message, Object userContext, MqttActionListener listener)
+			throws MqttException, InterruptedException {
+		if (message.getQos() == 0) {
+			asyncClient.publish(topic, message, userContext, listener);
+			return;
+		}
+		while (true) {
+			acquire();
+			Flight flight = new Flight(listener);
+			try {
+				asyncClient.publish(topic, message, userContext, flight);
+				return;
+			} catch (MqttException e) {
+				// Most likely the client's own in-flight limit, back off and try
+				// again. That says nothing about the server, so leave the window be.
+				release();
+				if (!asyncClient.isConnected()) {
+					throw e;
+				}
+				retries.incrementAndGet();
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	private void sendFragments(String topic, MqttMessage message, Object userContext, MqttActionListener listener)
+			throws MqttException, InterruptedException {
+		String id = asyncClient.getClientId() + "/" + fragmentIds.incrementAndGet();
+		MqttMessage template = copyProperties(message);
+		template.getUserProperties().add(new UserProperty(FRAGMENT_PROPERTY, id));
+		int overhead = PacketSizes.publishPacketSize(topic, template) + FRAGMENT_INDEX_ROOM;
+		int chunkSize = maximumPacketSize - overhead;
+		if (chunkSize <= 0) {
+			rejected.incrementAndGet();
+			throw new IllegalArgumentException("The server's Maximum Packet Size of " + maximumPacketSize
+					+ " leaves no room for a payload on " + topic);
+		}
+		byte[] payload = message.getPayload();
+		int count = (payload.length + chunkSize - 1) / chunkSize;
+		FragmentGroup group = new FragmentGroup(count, listener);
+		fragmented.incrementAndGet();
+		for (int i = 0; i < count; i++) {
+			MqttMessage fragment = copyProperties(message);
+			fragment.getUserProperties().add(new UserProperty(FRAGMENT_PROPERTY, i + ":" + count + ":" + id));
+			fragment.setPayload(
+					Arrays.copyOfRange(payload, i * chunkSize, Math.min(payload.length, (i + 1) * chunkSize)));
+			send(topic, fragment, userContext, group);
+		}
+	}
+
+	private static MqttMessage copyProperties(MqttMessage message) {
+		MqttMessage copy = new MqttMessage(new byte[0], message.getQos(), message.isRetained());
+		if (message.getExpiryInterval() != null) {
+			copy.setExpiryInterval(message.getExpiryInterval());
+		}
+		if (message.getContentType() != null) {
+			copy.setContentType(message.getContentType());
+		}
+		if (message.getResponseTopic() != null) {
+			copy.setResponseTopic(message.getResponseTopic());
+		}
+		if (message.getCorrelationData() != null) {
+			copy.setCorrelationData(message.getCorrelationData());
+		}
+		ArrayList<UserProperty> userProperties = new ArrayList<>();
+		if (message.getUserProperties() != null) {
+			userProperties.addAll(message.getUserProperties());
+		}
+		copy.setUserProperties(userProperties);
+		return copy;
+	}
+
+	private synchronized void acquire() throws InterruptedException {
+		while (inFlight >= (int) window) {
+			wait();
+		}
+		inFlight++;
+	}
+
+	/**
+	 * Releases a slot in the window without adjusting it, for publishes the
+	 * client refused before sending.
+	 */
+	private synchronized void release() {
+		inFlight--;
+		notifyAll();
+	}
+
+	/**
+	 * Releases a slot in the window and adjusts the window.
+	 *
+	 * @param latencyNanos
+	 *            the ack latency, or 0 if the publish failed
+	 * @param success
+	 *            false if the publish failed
+	 */
+	private synchronized void completed(long latencyNanos, boolean success) {
+		inFlight--;
+		long now = System.nanoTime();
+		if (success) {
+			minLatencyNanos = Math.min(minLatencyNanos, latencyNanos);
+		}
+		if (!success || latencyNanos > minLatencyNanos * latencyFactor) {
+			// Cut at most once per round trip, later acks reflect the old window
+			if (now - lastDecreaseNanos > Math.max(latencyNanos, minLatencyNanos)) {
+				window = Math.max(1, window / 2);
+				lastDecreaseNanos = now;
+				decreases++;
+			}
+		} else {
+			window = Math.min(receiveMaximum, window + 1 / window);
+			maxWindow = Math.max(maxWindow, window);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Tracks one publish in the window.
+	 */
+	private class Flight implements MqttActionListener {
+
+		private final long start = System.nanoTime();
+		private final MqttActionListener listener;
+
+		Flight(MqttActionListener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			long latency = System.nanoTime() - start;
+			ackLatency.record(latency);
+			acked.incrementAndGet();
+			completed(latency, true);
+			if (listener != null) {
+				listener.onSuccess(asyncActionToken);
+			}
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			failed.incrementAndGet();
+			completed(0, false);
+			if (listener != null) {
+				listener.onFailure(asyncActionToken, exception);
+			}
+		}
+	}
+
+	/**
+	 * Tells the caller's listener once, when every fragment of a message has
+	 * been acknowledged or any has failed.
+	 */
+	private static class FragmentGroup implements MqttActionListener {
+
+		private final AtomicInteger remaining;
+		private final MqttActionListener listener;
+		private volatile boolean failed;
+
+		FragmentGroup(int count, MqttActionListener listener) {
+			this.remaining = new AtomicInteger(count);
+			this.listener = listener;
+		}
+
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			if (remaining.decrementAndGet() == 0 && !failed && listener != null) {
+				listener.onSuccess(asyncActionToken);
+			}
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			remaining.decrementAndGet();
+			if (!failed) {
+				failed = true;
+				if (listener != null) {
+					listener.onFailure(asyncActionToken, exception);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Puts fragmented messages back together on the receiving side.
+	 *
+	 * Incomplete messages are held for at most <code>ttlMillis</code> after
+	 * their first fragment arrived, and no more than <code>maxPartial</code> of
+	 * them at once, the oldest being given up on first, so a lost QoS 0
+	 * fragment does not hold on to the rest forever. Fragments with a
+	 * malformed {@value #FRAGMENT_PROPERTY} property are counted and dropped.
+	 */
+	public static class FragmentAssembler {
+
+		// Larger than any count a publisher would produce for a 256MB payload
+		private static final int MAX_FRAGMENTS = 1 << 20;
+
+		private final int maxPartial;
+		private final long ttlMillis;
+		private final LinkedHashMap<String, Partial> partial = new LinkedHashMap<>();
+		private long malformed;
+		private long abandoned;
+
+		/**
+		 * Holds up to 1000 incomplete messages for up to a minute each.
+		 */
+		public FragmentAssembler() {
+			this(1000, 60000);
+		}
+
+		/**
+		 * @param maxPartial
+		 *            the most incomplete messages to hold at once
+		 * @param ttlMillis
+		 *            how long to wait for the rest of a message after its
+		 *            first fragment arrives
+		 */
+		public FragmentAssembler(int maxPartial, long ttlMillis) {
+			this.maxPartial = maxPartial;
+			this.ttlMillis = ttlMillis;
+		}
+
+		/**
+		 * @param message
+		 *            a received message
+		 * @return the message itself if it is not a fragment, the reassembled
+		 *         message once its last fragment arrives, otherwise null
+		 */
+		public synchronized MqttMessage add(MqttMessage message) {
+			String fragment = null;
+			if (message.getUserProperties() != null) {
+				for (UserProperty property : message.getUserProperties()) {
+					if (FRAGMENT_PROPERTY.equals(property.getKey())) {
+						fragment = property.getValue();
+					}
+				}
+			}
+			if (fragment == null) {
+				return message;
+			}
+			long now = System.currentTimeMillis();
+			abandon(now);
+
+			String[] parts = fragment.split(":", 3);
+			int index;
+			int count;
+			try {
+				index = Integer.parseInt(parts[0]);
+				count = parts.length == 3 ? Integer.parseInt(parts[1]) : 0;
+			} catch (NumberFormatException e) {
+				count = 0;
+				index = 0;
+			}
+			if (count <= 0 || count > MAX_FRAGMENTS || index < 0 || index >= count) {
+				malformed++;
+				return null;
+			}
+			Partial group = partial.get(parts[2]);
+			if (group == null) {
+				if (partial.size() >= maxPartial) {
+					// Give up on the oldest
+					Iterator<Partial> oldest = partial.values().iterator();
+					oldest.next();
+					oldest.remove();
+					abandoned++;
+				}
+				group = new Partial(count, now);
+				partial.put(parts[2], group);
+			} else if (group.payloads.length != count) {
+				malformed++;
+				return null;
+			}
+			if (group.payloads[index] == null) {
+				group.received++;
+			}
+			group.payloads[index] = message.getPayload();
+			if (group.received < count) {
+				return null;
+			}
+			partial.remove(parts[2]);
+			int length = 0;
+			for (byte[] payload : group.payloads) {
+				length += payload.length;
+			}
+			byte[] whole = new byte[length];
+			int offset = 0;
+			for (byte[] payload : group.payloads) {
+				System.arraycopy(payload, 0, whole, offset, payload.length);
+				offset += payload.length;
+			}
+			MqttMessage assembled = copyProperties(message);
+			for (int i = assembled.getUserProperties().size() - 1; i >= 0; i--) {
+				if (FRAGMENT_PROPERTY.equals(assembled.getUserProperties().get(i).getKey())) {
+					assembled.getUserProperties().remove(i);
+				}
+			}
+			assembled.setPayload(whole);
+			return assembled;
+		}
+
+		private void abandon(long now) {
+			// Oldest first, so stop at the first one still in time
+			Iterator<Partial> groups = partial.values().iterator();
+			while (groups.hasNext() && now - groups.next().firstMillis > ttlMillis) {
+				groups.remove();
+				abandoned++;
+			}
+		}
+
+		/**
+		 * @return the number of incomplete messages being held
+		 */
+		public synchronized int getPartial() {
+			return partial.size();
+		}
+
+		/**
+		 * @return the number of fragments dropped for having a malformed
+		 *         fragment property
+		 */
+		public synchronized long getMalformed() {
+			return malformed;
+		}
+
+		/**
+		 * @return the number of incomplete messages given up on
+		 */
+		public synchronized long getAbandoned() {
+			return abandoned;
+		}
+
+		private static class Partial {
+			final byte[][] payloads;
+			final long firstMillis;
+			int received;
+
+			Partial(int count, long firstMillis) {
+				this.payloads = new byte[count][];
+				this.firstMillis = firstMillis;
+			}
+		}
+	}
+
+	public int getReceiveMaximum() {
+		return receiveMaximum;
+	}
+
+	public int getMaximumPacketSize() {
+		return maximumPacketSize;
+	}
+
+	public synchronized int getWindow() {
+		return (int) window;
+	}
+
+	public LatencyHistogram getAckLatency() {
+		return ackLatency;
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "FlowControlledPublisher: [receiveMaximum=" + receiveMaximum + ", maximumPacketSize="
+				+ maximumPacketSize + ", window=" + (int) window + ", maxWindow=" + (int) maxWindow + ", decreases="
+				+ decreases + ", acked=" + acked.get() + ", failed=" + failed.get() + ", rejected=" + rejected.get()
+				+ ", fragmented=" + fragmented.get() + ", retries=" + retries.get() + ", minLatency="
+				+ (minLatencyNanos == Long.MAX_VALUE ? 0 : minLatencyNanos / 1000) + "us]";
+	}
+}
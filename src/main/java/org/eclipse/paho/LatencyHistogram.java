@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, log-linear latency histogram in the style of HdrHistogram.
+ *
+ * Values below 128 are counted exactly, above that each power of two is split
+ * into 64 equal buckets, giving a worst case error of under 1.6% across the
+ * whole range of a long. Recording is lock free and allocation free so it can
+ * be called from the MQTT callback threads.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF + SUB_BUCKET_COUNT;
+
+	private final String name;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong maxValue = new AtomicLong();
+
+	public LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Records a single value, negative values are ignored.
+	 *
+	 * @param value
+	 *            the value to record, usually in nanoseconds
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			return;
+		}
+		counts.incrementAndGet(indexFor(value));
+		totalCount.incrementAndGet();
+		long max;
+		while (value > (max = maxValue.get())) {
+			if (maxValue.compareAndSet(max, value)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @param percentile
+	 *            the percentile to find, between 0 and 100
+	 * @return the highest value equivalent to the given percentile, or 0 if
+	 *         nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = totalCount.get();
+		if (total == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(highestValueFor(i), maxValue.get());
+			}
+		}
+		return maxValue.get();
+	}
+
+	public long getTotalCount() {
+		return totalCount.get();
+	}
+
+	public long getMaxValue() {
+		return maxValue.get();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Clears all recorded values.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		totalCount.set(0);
+		maxValue.set(0);
+	}
+
+	static int indexFor(long value) {
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		if (msb < SUB_BUCKET_BITS) {
+			return (int) value;
+		}
+		int shift = msb - SUB_BUCKET_BITS + 1;
+		return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+	}
+
+	static long highestValueFor(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = (index >> (SUB_BUCKET_BITS - 1)) - 1;
+		long subBucket = index - shift * SUB_BUCKET_HALF;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return name + ": [count=" + getTotalCount() + ", p50=" + getValueAtPercentile(50) / 1000 + "us, p99="
+				+ getValueAtPercentile(99) / 1000 + "us, p99.9=" + getValueAtPercentile(99.9) / 1000 + "us, max="
+				+ getMaxValue() / 1000 + "us]";
+	}
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Measures end to end latency of messages published by the
+ * {@link PublishLoadGenerator}.
+ *
+ * Each payload starts with an 8 byte big-endian {@link System#nanoTime()}
+ * header written just before the message is published. As the App subscribes
+ * to the topic it publishes on, the header is read back twice: once when the
+ * delivery completes (publish to ack) and once when the message loops back
+ * through the broker (publish to receipt).
+ */
+public class LatencyRecorder {
+
+	/** The number of bytes used by the send timestamp at the payload start. */
+	public static final int HEADER_LENGTH = 8;
+
+	private static final double[] REPORTED_PERCENTILES = { 50, 75, 90, 99, 99.9, 99.99, 100 };
+
+	private final LatencyHistogram publishToAck = new LatencyHistogram("publish->ack");
+	private final LatencyHistogram publishToArrival = new LatencyHistogram("publish->arrival");
+
+	/**
+	 * Writes the current time into the header of the payload.
+	 *
+	 * @param payload
+	 *            a payload of at least {@link #HEADER_LENGTH} bytes
+	 */
+	public static void stamp(byte[] payload) {
+		long now = System.nanoTime();
+		for (int i = HEADER_LENGTH - 1; i >= 0; i--) {
+			payload[i] = (byte) now;
+			now >>>= 8;
+		}
+	}
+
+	static long readStamp(byte[] payload) {
+		long stamp = 0;
+		for (int i = 0; i < HEADER_LENGTH; i++) {
+			stamp = (stamp << 8) | (payload[i] & 0xFF);
+		}
+		return stamp;
+	}
+
+	/**
+	 * Records the latency of a message that has been acknowledged.
+	 *
+	 * @param message
+	 *            the message from the delivery token
+	 */
+	public void recordAck(MqttMessage message) {
+		record(publishToAck, message);
+	}
+
+	/**
+	 * Records the latency of a message that has been received.
+	 *
+	 * @param message
+	 *            the message passed to messageArrived
+	 */
+	public void recordArrival(MqttMessage message) {
+		record(publishToArrival, message);
+	}
+
+	private static void record(LatencyHistogram histogram, MqttMessage message) {
+		byte[] payload = message == null ? null : message.getPayload();
+		if (payload == null || payload.length < HEADER_LENGTH) {
+			return;
+		}
+		histogram.record(System.nanoTime() - readStamp(payload));
+	}
+
+	public LatencyHistogram getPublishToAck() {
+		return publishToAck;
+	}
+
+	public LatencyHistogram getPublishToArrival() {
+		return publishToArrival;
+	}
+
+	/**
+	 * Prints p50/p99/p99.9/max for both paths.
+	 */
+	public void printReport() {
+		System.out.println("Latency Report: " + publishToAck);
+		System.out.println("Latency Report: " + publishToArrival);
+	}
+
+	/**
+	 * Writes the percentile ladder for both paths, in microseconds, as a CSV
+	 * file so that runs can be compared with diff.
+	 *
+	 * @param fileName
+	 *            the file to write
+	 * @throws IOException
+	 *             if the file could not be written
+	 */
+	public void writeCsv(String fileName) throws IOException {
+		try (PrintWriter writer = new PrintWriter(
+				Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8))) {
+			writer.println("percentile,publishToAckMicros,publishToArrivalMicros");
+			for (double percentile : REPORTED_PERCENTILES) {
+				writer.println(percentile + "," + publishToAck.getValueAtPercentile(percentile) / 1000 + ","
+						+ publishToArrival.getValueAtPercentile(percentile) / 1000);
+			}
+			writer.println("count," + publishToAck.getTotalCount() + "," + publishToArrival.getTotalCount());
+		}
+	}
+}
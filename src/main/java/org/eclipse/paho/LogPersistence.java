@@ -0,0 +1,700 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.client.MqttPersistable;
+import org.eclipse.paho.mqttv5.common.MqttPersistenceException;
+
+/**
+ * A log-structured {@link MqttClientPersistence} that keeps in-flight QoS 1 and
+ * 2 state across restarts without writing a file per message.
+ *
+ * Every put, remove and clear is appended as a checksummed record to the
+ * current segment file and applied to an in-memory index, which serves
+ * {@link #get(String)} and {@link #keys()}. Opening the persistence replays the
+ * segments to rebuild the index, stopping at the first torn or corrupt record.
+ *
+ * Writes go to the file straight away but fsyncs are batched by a commit
+ * thread (group commit). With a commit budget of 0 each put waits until its
+ * record has been synced, and puts that arrive during an fsync share the next
+ * one. With a budget greater than 0 puts return as soon as their record is
+ * written, and the commit thread syncs within that many microseconds of the
+ * first unsynced write, so a crash can lose at most the budget's worth of
+ * puts in exchange for far fewer fsyncs.
+ *
+ * Once the oldest segment is mostly made up of removed entries, a compaction
+ * thread copies its live entries to the current segment and deletes it.
+ */
+public class LogPersistence implements MqttClientPersistence {
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte CLEAR = 3;
+	// Length and type before the key, CRC after the body
+	private static final int RECORD_OVERHEAD = 4 + 1 + 4;
+	private static final long COMPACT_INTERVAL_MILLIS = 1000;
+
+	private final File baseDirectory;
+	private final long commitBudgetMicros;
+	private final long segmentSize;
+	private final double compactThreshold;
+
+	private final Object lock = new Object();
+	private final Map<String, Entry> index = new HashMap<>();
+	private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+	private File directory;
+	private Segment active;
+	private int nextSegmentId;
+	private boolean open;
+	private long writtenSeq;
+	private long syncedSeq;
+	private long firstUnsyncedNanos;
+	private Thread committer;
+	private Thread compactor;
+
+	private long puts;
+	private long removes;
+	private long commits;
+	private long compactions;
+	private long compactedEntries;
+	private long recovered;
+	private final LatencyHistogram commitTimes = new LatencyHistogram("fsync");
+
+	/**
+	 * @param baseDirectory
+	 *            the directory to keep each client's segments in
+	 * @param commitBudgetMicros
+	 *            0 for puts to wait until they have been synced, otherwise the
+	 *            longest a put may go unsynced
+	 * @param segmentSize
+	 *            the size at which to start a new segment file
+	 */
+	public LogPersistence(File baseDirectory, long commitBudgetMicros, long segmentSize) {
+		this.baseDirectory = baseDirectory;
+		this.commitBudgetMicros = commitBudgetMicros;
+		this.segmentSize = segmentSize;
+		this.compactThreshold = 0.5;
+	}
+
+	/**
+	 * Creates a persistence in <code>--persistenceDir</code> (default
+	 * <code>paho-persistence</code>) with a commit budget of
+	 * <code>--commitBudget</code> microseconds (default 0) and 4MB segments.
+	 *
+	 * @param options
+	 *            the command line options
+	 */
+	public LogPersistence(SampleOptions options) {
+		this(new File(options.getString("persistenceDir", "paho-persistence")), options.getLong("commitBudget", 0),
+				4 << 20);
+	}
+
+	/**
+	 * Opens the persistence for a client, the early MQTTv5 client only passes
+	 * the client ID.
+	 *
+	 * @param clientId
+	 *            the client's ID
+	 * @throws MqttPersistenceException
+	 *             if the segments could not be read
+	 */
+	public void open(String clientId) throws MqttPersistenceException {
+		openDirectory(new File(baseDirectory, sanitize(clientId)));
+	}
+
+	/**
+	 * Opens the persistence for a client and server, as later clients do.
+	 *
+	 * @param clientId
+	 *            the client's ID
+	 * @param serverURI
+	 *            the server the client is connecting to
+	 * @throws MqttPersistenceException
+	 *             if the segments could not be read
+	 */
+	public void open(String clientId, String serverURI) throws MqttPersistenceException {
+		openDirectory(new File(baseDirectory, sanitize(clientId + "-" + serverURI)));
+	}
+
+	private static String sanitize(String name) {
+		return name.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	private void openDirectory(File clientDirectory) throws MqttPersistenceException {
+		synchronized (lock) {
+			if (open) {
+				throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+			}
+			directory = clientDirectory;
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new MqttPersistenceException(new IOException("Unable to create " + directory));
+			}
+			try {
+				recover();
+				active = newSegment();
+			} catch (IOException e) {
+				throw new MqttPersistenceException(e);
+			}
+			open = true;
+		}
+		committer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				commit();
+			}
+		}, "LogPersistence-commit");
+		committer.setDaemon(true);
+		committer.start();
+		compactor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				compact();
+			}
+		}, "LogPersistence-compact");
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	/**
+	 * Replays every segment in order into the index.
+	 */
+	private void recover() throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.startsWith("segment-") || !name.endsWith(".log")) {
+				continue;
+			}
+			int id = Integer.parseInt(name.substring(8, name.length() - 4));
+			nextSegmentId = Math.max(nextSegmentId, id + 1);
+			Segment segment = new Segment(file);
+			segments.addLast(segment);
+			replay(segment);
+		}
+	}
+
+	private void replay(Segment segment) throws IOException {
+		byte[] bytes = Files.readAllBytes(segment.file.toPath());
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		CRC32 crc = new CRC32();
+		int position = 0;
+		while (bytes.length - position >= RECORD_OVERHEAD) {
+			int length = buffer.getInt(position);
+			if (length < RECORD_OVERHEAD || length > bytes.length - position) {
+				break;
+			}
+			crc.reset();
+			crc.update(bytes, position, length - 4);
+			if ((int) crc.getValue() != buffer.getInt(position + length - 4)) {
+				break;
+			}
+			apply(segment, buffer, position, length);
+			position += length;
+			recovered++;
+		}
+		segment.size = position;
+		if (position < bytes.length) {
+			// Torn write from a crash, drop it so nothing follows it.
+			try (RandomAccessFile file = new RandomAccessFile(segment.file, "rw")) {
+				file.setLength(position);
+			}
+		}
+	}
+
+	private void apply(Segment segment, ByteBuffer buffer, int position, int length) {
+		buffer.position(position + 4);
+		byte type = buffer.get();
+		if (type == CLEAR) {
+			clearIndex();
+			return;
+		}
+		String key = new String(getBytes(buffer), StandardCharsets.UTF_8);
+		if (type == PUT) {
+			byte[] header = getBytes(buffer);
+			byte[] payload = getBytes(buffer);
+			putIndex(key, new Entry(segment, length, header, payload));
+		} else {
+			removeIndex(key);
+		}
+	}
+
+	private void putIndex(String key, Entry entry) {
+		Entry previous = index.put(key, entry);
+		if (previous != null) {
+			previous.segment.live -= previous.length;
+		}
+		entry.segment.live += entry.length;
+	}
+
+	private void removeIndex(String key) {
+		Entry previous = index.remove(key);
+		if (previous != null) {
+			previous.segment.live -= previous.length;
+		}
+	}
+
+	private void clearIndex() {
+		for (Entry entry : index.values()) {
+			entry.segment.live -= entry.length;
+		}
+		index.clear();
+	}
+
+	private Segment newSegment() throws IOException {
+		Segment segment = new Segment(new File(directory, String.format("segment-%08d.log", nextSegmentId++)));
+		segment.openForAppend();
+		segments.addLast(segment);
+		return segment;
+	}
+
+	@Override
+	public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+		byte[] header = copy(persistable.getHeaderBytes(), persistable.getHeaderOffset(),
+				persistable.getHeaderLength());
+		byte[] payload = copy(persistable.getPayloadBytes(), persistable.getPayloadOffset(),
+				persistable.getPayloadLength());
+		byte[] record = encode(PUT, key, header, payload);
+		long seq;
+		synchronized (lock) {
+			checkOpen();
+			seq = append(record);
+			putIndex(key, new Entry(active, record.length, header, payload));
+			puts++;
+		}
+		if (commitBudgetMicros == 0) {
+			awaitSynced(seq);
+		}
+	}
+
+	@Override
+	public MqttPersistable get(String key) throws MqttPersistenceException {
+		synchronized (lock) {
+			checkOpen();
+			Entry entry = index.get(key);
+			return entry == null ? null : new StoredPersistable(entry.header, entry.payload);
+		}
+	}
+
+	@Override
+	public void remove(String key) throws MqttPersistenceException {
+		// A lost remove only means a duplicate after a crash, so don't wait for it.
+		synchronized (lock) {
+			checkOpen();
+			if (index.containsKey(key)) {
+				append(encode(REMOVE, key, null, null));
+				removeIndex(key);
+				removes++;
+			}
+		}
+	}
+
+	@Override
+	public Enumeration<String> keys() throws MqttPersistenceException {
+		synchronized (lock) {
+			checkOpen();
+			return Collections.enumeration(new ArrayList<>(index.keySet()));
+		}
+	}
+
+	@Override
+	public void clear() throws MqttPersistenceException {
+		long seq;
+		synchronized (lock) {
+			checkOpen();
+			seq = append(encode(CLEAR, "", null, null));
+			clearIndex();
+		}
+		awaitSynced(seq);
+	}
+
+	@Override
+	public boolean containsKey(String key) throws MqttPersistenceException {
+		synchronized (lock) {
+			checkOpen();
+			return index.containsKey(key);
+		}
+	}
+
+	@Override
+	public void close() throws MqttPersistenceException {
+		long seq;
+		synchronized (lock) {
+			if (!open) {
+				return;
+			}
+			seq = writtenSeq;
+		}
+		awaitSynced(seq);
+		synchronized (lock) {
+			open = false;
+			lock.notifyAll();
+		}
+		compactor.interrupt();
+		try {
+			committer.join();
+			compactor.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (lock) {
+			for (Segment segment : segments) {
+				segment.closeQuietly();
+			}
+			segments.clear();
+			index.clear();
+		}
+	}
+
+	private void checkOpen() throws MqttPersistenceException {
+		if (!open) {
+			throw new MqttPersistenceException();
+		}
+	}
+
+	/**
+	 * Writes a record to the active segment, starting a new one if it is full.
+	 * Must be called holding the lock.
+	 *
+	 * @return the sequence number to wait for to know the record is synced
+	 */
+	private long append(byte[] record) throws MqttPersistenceException {
+		try {
+			if (active.size > 0 && active.size + record.length > segmentSize) {
+				// Sync what is already in the old segment before moving on.
+				active.channel.force(false);
+				syncedSeq = writtenSeq;
+				lock.notifyAll();
+				active.closeQuietly();
+				active = newSegment();
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(record);
+			while (buffer.hasRemaining()) {
+				active.channel.write(buffer);
+			}
+			active.size += record.length;
+		} catch (IOException e) {
+			throw new MqttPersistenceException(e);
+		}
+		if (writtenSeq == syncedSeq) {
+			firstUnsyncedNanos = System.nanoTime();
+		}
+		lock.notifyAll();
+		return ++writtenSeq;
+	}
+
+	private void awaitSynced(long seq) throws MqttPersistenceException {
+		synchronized (lock) {
+			while (syncedSeq < seq) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new MqttPersistenceException(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs on the commit thread, syncing everything written so far whenever
+	 * there is something to sync.
+	 */
+	private void commit() {
+		while (true) {
+			long target;
+			FileChannel channel;
+			synchronized (lock) {
+				try {
+					while (open && syncedSeq == writtenSeq) {
+						lock.wait();
+					}
+					if (syncedSeq == writtenSeq) {
+						return;
+					}
+					if (commitBudgetMicros > 0) {
+						// Give other writes until the budget runs out to join this commit.
+						long deadline = firstUnsyncedNanos + TimeUnit.MICROSECONDS.toNanos(commitBudgetMicros);
+						long remaining;
+						while (open && (remaining = deadline - System.nanoTime()) > 0) {
+							TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				target = writtenSeq;
+				channel = active.channel;
+			}
+			long start = System.nanoTime();
+			try {
+				channel.force(false);
+			} catch (IOException e) {
+				// The segment was rolled over and synced whilst waiting, try again.
+				continue;
+			}
+			commitTimes.record(System.nanoTime() - start);
+			synchronized (lock) {
+				if (target > syncedSeq) {
+					syncedSeq = target;
+					commits++;
+				}
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Runs on the compaction thread, copying the live entries out of the
+	 * oldest segment once enough of it has been removed, then deleting it.
+	 */
+	private void compact() {
+		boolean idle = true;
+		while (true) {
+			Segment oldest;
+			long seq;
+			if (idle) {
+				try {
+					Thread.sleep(COMPACT_INTERVAL_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			synchronized (lock) {
+				if (!open) {
+					return;
+				}
+				oldest = segments.peekFirst();
+				idle = oldest == active || oldest.live > oldest.size * compactThreshold;
+				if (idle) {
+					continue;
+				}
+				try {
+					for (Map.Entry<String, Entry> mapEntry : index.entrySet()) {
+						Entry entry = mapEntry.getValue();
+						if (entry.segment == oldest) {
+							byte[] record = encode(PUT, mapEntry.getKey(), entry.header, entry.payload);
+							append(record);
+							entry.segment.live -= entry.length;
+							entry.segment = active;
+							entry.length = record.length;
+							active.live += record.length;
+							compactedEntries++;
+						}
+					}
+				} catch (MqttPersistenceException e) {
+					System.err.println("Exception Occured whilst compacting: " + e.getMessage());
+					continue;
+				}
+				seq = writtenSeq;
+			}
+			try {
+				// The copies must be durable before the originals go.
+				awaitSynced(seq);
+			} catch (MqttPersistenceException e) {
+				return;
+			}
+			synchronized (lock) {
+				segments.remove(oldest);
+				oldest.closeQuietly();
+				oldest.file.delete();
+				compactions++;
+			}
+		}
+	}
+
+	static byte[] encode(byte type, String key, byte[] header, byte[] payload) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int length = RECORD_OVERHEAD + 4 + keyBytes.length;
+		if (type == PUT) {
+			length += 4 + header.length + 4 + payload.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(length);
+		buffer.put(type);
+		putBytes(buffer, keyBytes);
+		if (type == PUT) {
+			putBytes(buffer, header);
+			putBytes(buffer, payload);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, length - 4);
+		buffer.putInt((int) crc.getValue());
+		return buffer.array();
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] value) {
+		buffer.putInt(value.length);
+		buffer.put(value);
+	}
+
+	private static byte[] getBytes(ByteBuffer buffer) {
+		byte[] value = new byte[buffer.getInt()];
+		buffer.get(value);
+		return value;
+	}
+
+	private static byte[] copy(byte[] bytes, int offset, int length) {
+		if (bytes == null) {
+			return new byte[0];
+		}
+		return Arrays.copyOfRange(bytes, offset, offset + length);
+	}
+
+	public long getPuts() {
+		synchronized (lock) {
+			return puts;
+		}
+	}
+
+	/**
+	 * @return the number of fsyncs, each of which may have covered many puts
+	 */
+	public long getCommits() {
+		synchronized (lock) {
+			return commits;
+		}
+	}
+
+	/**
+	 * @return how long each fsync took
+	 */
+	public LatencyHistogram getCommitTimes() {
+		return commitTimes;
+	}
+
+	@Override
+	public String toString() {
+		synchronized (lock) {
+			return "LogPersistence: [entries=" + index.size() + ", puts=" + puts + ", removes=" + removes
+					+ ", commits=" + commits + ", writesPerCommit="
+					+ (commits == 0 ? 0 : String.format("%.1f", (double) writtenSeq / commits)) + ", segments="
+					+ segments.size() + ", compactions=" + compactions + ", compactedEntries=" + compactedEntries
+					+ ", recovered=" + recovered + ", fsyncP99=" + commitTimes.getValueAtPercentile(99) / 1000
+					+ "us]";
+		}
+	}
+
+	/**
+	 * The latest value of a key, and where it was last written.
+	 */
+	private static class Entry {
+		Segment segment;
+		int length;
+		final byte[] header;
+		final byte[] payload;
+
+		Entry(Segment segment, int length, byte[] header, byte[] payload) {
+			this.segment = segment;
+			this.length = length;
+			this.header = header;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * A segment file, along with how many of its bytes still belong to live
+	 * entries.
+	 */
+	private static class Segment {
+		final File file;
+		FileChannel channel;
+		long size;
+		long live;
+
+		Segment(File file) {
+			this.file = file;
+		}
+
+		void openForAppend() throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.seek(raf.length());
+			channel = raf.getChannel();
+			size = raf.length();
+		}
+
+		void closeQuietly() {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// Nothing more to write to it.
+				}
+			}
+		}
+	}
+
+	/**
+	 * The {@link MqttPersistable} handed back by {@link LogPersistence#get}.
+	 */
+	static class StoredPersistable implements MqttPersistable {
+		private final byte[] header;
+		private final byte[] payload;
+
+		StoredPersistable(byte[] header, byte[] payload) {
+			this.header = header;
+			this.payload = payload;
+		}
+
+		@Override
+		public byte[] getHeaderBytes() {
+			return header;
+		}
+
+		@Override
+		public int getHeaderLength() {
+			return header.length;
+		}
+
+		@Override
+		public int getHeaderOffset() {
+			return 0;
+		}
+
+		@Override
+		public byte[] getPayloadBytes() {
+			return payload;
+		}
+
+		@Override
+		public int getPayloadLength() {
+			return payload.length;
+		}
+
+		@Override
+		public int getPayloadOffset() {
+			return 0;
+		}
+	}
+}
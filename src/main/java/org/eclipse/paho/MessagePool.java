@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+
+/**
+ * A fixed size pool of {@link PooledMessage}s.
+ *
+ * The pool size doubles as the in-flight limit: {@link #acquire()} blocks
+ * until a message is free, and messages are returned by {@link #RELEASER} when
+ * their delivery token completes. Acquiring and releasing does not allocate.
+ */
+public class MessagePool {
+
+	/**
+	 * Action listener that returns the {@link PooledMessage} given as the
+	 * publish user context back to its pool once delivery has finished, whether
+	 * or not it succeeded.
+	 */
+	public static final MqttActionListener RELEASER = new MqttActionListener() {
+
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			((PooledMessage) asyncActionToken.getUserContext()).release();
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			((PooledMessage) asyncActionToken.getUserContext()).release();
+		}
+	};
+
+	private final int size;
+	private final ArrayBlockingQueue<PooledMessage> free;
+
+	/**
+	 * @param size
+	 *            the number of messages in the pool
+	 * @param fixedPayloadSize
+	 *            the size of each message's fixed payload buffer
+	 */
+	public MessagePool(int size, int fixedPayloadSize) {
+		this.size = size;
+		this.free = new ArrayBlockingQueue<>(size);
+		for (int i = 0; i < size; i++) {
+			free.add(new PooledMessage(this, fixedPayloadSize));
+		}
+	}
+
+	/**
+	 * @return a free message, waiting for one to be released if necessary
+	 * @throws InterruptedException
+	 *             if interrupted whilst waiting
+	 */
+	public PooledMessage acquire() throws InterruptedException {
+		PooledMessage message = free.take();
+		message.reset();
+		return message;
+	}
+
+	void release(PooledMessage message) {
+		free.offer(message);
+	}
+
+	/**
+	 * @return the number of messages currently in use
+	 */
+	public int inUse() {
+		return size - free.size();
+	}
+
+	/**
+	 * Waits for every message to be returned to the pool.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return true if all messages were returned in time
+	 * @throws InterruptedException
+	 *             if interrupted whilst waiting
+	 */
+	public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (inUse() > 0) {
+			if (System.nanoTime() > deadline) {
+				return false;
+			}
+			Thread.sleep(1);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,901 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+
+/**
+ * Holds on to messages published whilst the client is disconnected, and
+ * publishes them in order once automatic reconnect has brought the connection
+ * back.
+ *
+ * Buffered messages are encoded into records and kept in memory up to a byte
+ * limit. Past that limit, and for as long as anything remains on disk, records
+ * are appended to memory-mapped segment files so that order is preserved: the
+ * memory tier always holds the oldest messages. Whenever room is made in
+ * memory, the oldest records on disk are moved up into it, so that dropping
+ * the oldest message also frees space for the new one on disk. Segments are
+ * deleted once they have been drained. The disk limit counts the records
+ * still buffered, and a segment's file is only deleted once all of it has
+ * been drained, so the files can take up to one segment more than the limit.
+ * Nothing is recovered from the segments after a restart, they only extend
+ * the buffer beyond what fits in memory.
+ *
+ * The client has no connect complete callback, so a background thread polls
+ * {@link MqttAsyncClient#isConnected()} and drains the buffer whenever the
+ * client is connected, at a limited rate if asked and with no more than 10
+ * drained messages in flight at once. The thread is only started once the
+ * first message is buffered, as a run that never loses its connection never
+ * needs it.
+ *
+ * When both tiers are full the {@link Policy} decides what happens to the new
+ * message.
+ *
+ * Messages with a Message Expiry Interval are also entered into a
+ * {@link TimingWheel} by their deadline, and the drain thread marks them as
+ * discarded once it passes, whether or not the client is connected, so a
+ * backlog that built up during a long outage does not publish messages nobody
+ * wants any more. Discarded records are skipped without being decoded, and the
+ * head of the buffer is checked against its exact deadline again just before
+ * it is published. The expiry interval of each drained message is rewritten to
+ * the time it has left, as the specification asks of anything forwarding a
+ * message.
+ */
+public class OfflinePublishBuffer {
+
+	/**
+	 * What to do with a new message when the buffer is full.
+	 */
+	public enum Policy {
+		/** Drop the oldest buffered message to make room. */
+		DROP_OLDEST,
+		/**
+		 * Drop the oldest QoS 0 message held in memory, or the new message if it
+		 * is QoS 0 and there are none, before falling back to dropping the
+		 * oldest message.
+		 */
+		DROP_QOS0_FIRST,
+		/** Block the publishing thread until the buffer drains. */
+		BLOCK
+	}
+
+	private static final int FLAG_RETAINED = 1;
+	private static final int FLAG_UTF8 = 2;
+	private static final int FLAG_EXPIRY = 4;
+	// Set once a record has expired or left the buffer
+	private static final int FLAG_DISCARDED = 8;
+	// Length prefix and enqueue time come before the QoS in each record
+	private static final int QOS_OFFSET = 12;
+	private static final int FLAGS_OFFSET = QOS_OFFSET + 1;
+	private static final int EXPIRY_OFFSET = QOS_OFFSET + 2;
+
+	private final MqttAsyncClient asyncClient;
+	private final Policy policy;
+	private final long memoryLimit;
+	private final long diskLimit;
+	private final int segmentSize;
+	private final double drainRate;
+	private final int maxInFlight;
+	private final long pollMillis;
+	private final File configuredDirectory;
+
+	private final ArrayDeque<byte[]> memory = new ArrayDeque<>();
+	private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+	private final TimingWheel<Expiring> expiries = new TimingWheel<>(100, 1024);
+	private final ArrayList<Expiring> expiredRecords = new ArrayList<>();
+	private long memoryBytes;
+	private long diskBytes;
+	private int depth;
+	private int inFlight;
+	private File spillDirectory;
+	private int segmentCount;
+	private boolean running = true;
+	private final Thread drainThread;
+	private boolean drainStarted;
+
+	private int maxDepth;
+	private long spilled;
+	private long dropped;
+	private long expired;
+	private long drained;
+	private long drainStart;
+	private final LatencyHistogram drainTimes = new LatencyHistogram("drain");
+	private ClientMetrics metrics;
+
+	private final MqttActionListener drainListener = new MqttActionListener() {
+
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			completed();
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			completed();
+		}
+	};
+	private MqttActionListener drainCallback = drainListener;
+
+	/**
+	 * Counts the messages drained from the buffer in the given metrics, as
+	 * publishes and then as acks or failures, the same as those published
+	 * straight away.
+	 *
+	 * @param metrics
+	 *            the client's metrics
+	 */
+	public synchronized void setMetrics(ClientMetrics metrics) {
+		this.metrics = metrics;
+		this.drainCallback = metrics.wrap(drainListener);
+	}
+
+	/**
+	 * Creates a buffer configured from the command line.
+	 *
+	 * Options (see {@link SampleOptions}):
+	 * <ul>
+	 * <li><code>--bufferPolicy</code> - DROP_OLDEST, DROP_QOS0_FIRST or BLOCK
+	 * (default DROP_OLDEST)</li>
+	 * <li><code>--bufferMemory</code> - bytes to buffer in memory (default
+	 * 1MB)</li>
+	 * <li><code>--bufferDisk</code> - bytes to spill to disk, 0 to never spill
+	 * (default 64MB)</li>
+	 * <li><code>--bufferDir</code> - directory for the segment files (default a
+	 * new temporary directory)</li>
+	 * <li><code>--bufferSegment</code> - size of each segment file (default
+	 * 4MB)</li>
+	 * <li><code>--drainRate</code> - messages per second to drain at after
+	 * reconnecting, 0 for as fast as possible (default 0)</li>
+	 * </ul>
+	 *
+	 * @param asyncClient
+	 *            the client to publish with
+	 * @param options
+	 *            the command line options
+	 */
+	public OfflinePublishBuffer(MqttAsyncClient asyncClient, SampleOptions options) {
+		this(asyncClient, Policy.valueOf(options.getString("bufferPolicy", Policy.DROP_OLDEST.name())),
+				options.getLong("bufferMemory", 1 << 20), options.getLong("bufferDisk", 64 << 20),
+				options.has("bufferDir") ? new File(options.getString("bufferDir", null)) : null,
+				options.getInt("bufferSegment", 4 << 20), options.getDouble("drainRate", 0));
+	}
+
+	/**
+	 * @param asyncClient
+	 *            the client to publish with
+	 * @param policy
+	 *            what to do when the buffer is full
+	 * @param memoryLimit
+	 *            bytes to buffer in memory
+	 * @param diskLimit
+	 *            bytes to spill to disk, 0 to never spill
+	 * @param spillDirectory
+	 *            directory for the segment files, or null for a new temporary
+	 *            directory
+	 * @param segmentSize
+	 *            size of each segment file
+	 * @param drainRate
+	 *            messages per second to drain at, 0 for as fast as possible
+	 */
+	public OfflinePublishBuffer(MqttAsyncClient asyncClient, Policy policy, long memoryLimit, long diskLimit,
+			File spillDirectory, int segmentSize, double drainRate) {
+		this.asyncClient = asyncClient;
+		this.policy = policy;
+		this.memoryLimit = memoryLimit;
+		this.diskLimit = diskLimit;
+		this.configuredDirectory = spillDirectory;
+		this.segmentSize = segmentSize;
+		this.drainRate = drainRate;
+		this.maxInFlight = 10;
+		this.pollMillis = 100;
+		this.drainThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "OfflinePublishBuffer");
+		drainThread.setDaemon(true);
+	}
+
+	/**
+	 * Publishes the message straight away if the client is connected and
+	 * nothing is waiting to be drained, otherwise buffers a copy of it.
+	 *
+	 * @param topic
+	 *            the topic to publish to
+	 * @param message
+	 *            the message to publish
+	 * @param userContext
+	 *            passed to the client if the message is published straight away
+	 * @param callback
+	 *            passed to the client if the message is published straight away
+	 * @return true if the message was handed to the client, false if it was
+	 *         buffered or dropped, in which case the callback will never be
+	 *         called and the caller can reuse the message
+	 * @throws InterruptedException
+	 *             if interrupted whilst waiting for space with
+	 *             {@link Policy#BLOCK}
+	 */
+	public boolean publish(String topic, MqttMessage message, Object userContext, MqttActionListener callback)
+			throws InterruptedException {
+		synchronized (this) {
+			if (depth == 0 && asyncClient.isConnected()) {
+				try {
+					asyncClient.publish(topic, message, userContext, callback);
+					return true;
+				} catch (MqttException e) {
+					// Lost the connection since checking, buffer it instead.
+				}
+			}
+		}
+		add(topic, message);
+		return false;
+	}
+
+	/**
+	 * Adds a copy of the message to the end of the buffer.
+	 *
+	 * @param topic
+	 *            the topic to publish to
+	 * @param message
+	 *            the message to buffer
+	 * @return false if the message was dropped
+	 * @throws InterruptedException
+	 *             if interrupted whilst waiting for space with
+	 *             {@link Policy#BLOCK}
+	 */
+	public boolean add(String topic, MqttMessage message) throws InterruptedException {
+		byte[] record = encode(topic, message, System.currentTimeMillis());
+		synchronized (this) {
+			if (!drainStarted && running) {
+				drainThread.start();
+				drainStarted = true;
+			}
+			while (running) {
+				if (append(record)) {
+					depth++;
+					maxDepth = Math.max(maxDepth, depth);
+					notifyAll();
+					return true;
+				}
+				if (purgeDiscarded()) {
+					continue;
+				}
+				if (depth == 0) {
+					// It will never fit.
+					break;
+				}
+				if (policy == Policy.BLOCK) {
+					wait();
+				} else if (!evict(message.getQos())) {
+					break;
+				}
+			}
+			dropped++;
+			return false;
+		}
+	}
+
+	private boolean append(byte[] record) {
+		if (segments.isEmpty() && memoryBytes + record.length <= memoryLimit) {
+			memory.addLast(record);
+			memoryBytes += record.length;
+			track(record, null, 0);
+			return true;
+		}
+		if (diskBytes + record.length > diskLimit) {
+			return false;
+		}
+		try {
+			Segment tail = segments.peekLast();
+			int position = tail == null ? -1 : tail.append(record);
+			if (position < 0) {
+				tail = new Segment(newSegmentFile(), Math.max(segmentSize, record.length));
+				segments.addLast(tail);
+				position = tail.append(record);
+			}
+			track(null, tail, position);
+		} catch (IOException e) {
+			System.err.println("Exception Occured whilst spilling to disk: " + e.getMessage());
+			return false;
+		}
+		diskBytes += record.length;
+		spilled++;
+		return true;
+	}
+
+	private void track(byte[] record, Segment segment, int position) {
+		long deadline = record != null ? deadlineOf(record) : segment.deadlineOf(position);
+		if (deadline != Long.MAX_VALUE) {
+			expiries.add(deadline, new Expiring(record, segment, position));
+		}
+	}
+
+	/**
+	 * Discards every buffered message whose deadline has passed, then drops
+	 * any discarded records from the head of the buffer.
+	 */
+	private void expire(long nowMillis) {
+		expiries.advance(nowMillis, expiredRecords);
+		for (Expiring record : expiredRecords) {
+			if (record.discard()) {
+				depth--;
+				expired++;
+			}
+		}
+		expiredRecords.clear();
+		purgeDiscarded();
+	}
+
+	/**
+	 * @return true if any records were removed
+	 */
+	private boolean purgeDiscarded() {
+		boolean purged = false;
+		byte[] head;
+		while ((head = peekHead()) != null && isDiscarded(head)) {
+			removeHead();
+			purged = true;
+		}
+		return purged;
+	}
+
+	private File newSegmentFile() throws IOException {
+		if (spillDirectory == null) {
+			if (configuredDirectory != null) {
+				spillDirectory = configuredDirectory;
+				spillDirectory.mkdirs();
+			} else {
+				spillDirectory = Files.createTempDirectory("paho-offline").toFile();
+			}
+		}
+		return new File(spillDirectory, String.format("segment-%08d.log", segmentCount++));
+	}
+
+	/**
+	 * Makes room according to the policy.
+	 *
+	 * @return false if the new message should be dropped instead
+	 */
+	private boolean evict(int incomingQos) {
+		if (policy == Policy.DROP_QOS0_FIRST) {
+			Iterator<byte[]> records = memory.iterator();
+			while (records.hasNext()) {
+				byte[] record = records.next();
+				if (isDiscarded(record)) {
+					// Room without dropping anything
+					records.remove();
+					memoryBytes -= record.length;
+					promote();
+					notifyAll();
+					return true;
+				}
+				if (record[QOS_OFFSET] == 0) {
+					records.remove();
+					memoryBytes -= record.length;
+					record[FLAGS_OFFSET] |= FLAG_DISCARDED;
+					depth--;
+					dropped++;
+					promote();
+					return true;
+				}
+			}
+			if (incomingQos == 0) {
+				return false;
+			}
+		}
+		removeHead();
+		dropped++;
+		return true;
+	}
+
+	private byte[] peekHead() {
+		if (!memory.isEmpty()) {
+			return memory.peekFirst();
+		}
+		Segment head = segments.peekFirst();
+		return head == null ? null : head.peek();
+	}
+
+	private void removeHead() {
+		boolean live;
+		if (!memory.isEmpty()) {
+			byte[] record = memory.removeFirst();
+			memoryBytes -= record.length;
+			live = !isDiscarded(record);
+			record[FLAGS_OFFSET] |= FLAG_DISCARDED;
+			promote();
+		} else {
+			Segment head = segments.peekFirst();
+			live = !head.isDiscarded(head.readPosition);
+			removeDiskHead(head);
+		}
+		if (live) {
+			depth--;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Moves the oldest records on disk into whatever room there is in memory,
+	 * keeping the order.
+	 */
+	private void promote() {
+		Segment head;
+		while ((head = segments.peekFirst()) != null) {
+			byte[] record = head.peek();
+			if (memoryBytes + record.length > memoryLimit) {
+				return;
+			}
+			removeDiskHead(head);
+			if (isDiscarded(record)) {
+				// Expired whilst on disk, already uncounted
+				continue;
+			}
+			memory.addLast(record);
+			memoryBytes += record.length;
+			// Its entry in the wheel points at the segment, which has moved on
+			track(record, null, 0);
+		}
+	}
+
+	private void removeDiskHead(Segment head) {
+		diskBytes -= head.remove();
+		if (head.isDrained()) {
+			// Back to the memory tier once everything on disk is drained
+			segments.removeFirst();
+			head.delete();
+		}
+	}
+
+	private void drain() {
+		long intervalNanos = drainRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / drainRate) : 0;
+		long next = 0;
+		while (true) {
+			synchronized (this) {
+				try {
+					while (running && (depth == 0 || inFlight >= maxInFlight || !asyncClient.isConnected())) {
+						wait(pollMillis);
+						expire(System.currentTimeMillis());
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (!running) {
+					return;
+				}
+				if (drainStart == 0) {
+					drainStart = System.nanoTime();
+					next = drainStart;
+				}
+				long now = System.currentTimeMillis();
+				expire(now);
+				if (depth == 0) {
+					continue;
+				}
+				byte[] record = peekHead();
+				long deadline = deadlineOf(record);
+				if (deadline <= now) {
+					// Expired between ticks of the wheel
+					removeHead();
+					expired++;
+					continue;
+				}
+				MqttMessage message = decode(record);
+				if (deadline != Long.MAX_VALUE) {
+					// Only the time it has left
+					message.setExpiryInterval((int) ((deadline - now + 999) / 1000));
+				}
+				try {
+					asyncClient.publish(topicOf(record), message, null, drainCallback);
+					if (metrics != null) {
+						metrics.recordPublish();
+					}
+					inFlight++;
+					removeHead();
+					drained++;
+				} catch (MqttException e) {
+					// Disconnected again or too many in flight, try again shortly.
+					try {
+						wait(pollMillis);
+					} catch (InterruptedException ie) {
+						return;
+					}
+					continue;
+				}
+				if (depth == 0) {
+					drainTimes.record(System.nanoTime() - drainStart);
+					drainStart = 0;
+				}
+			}
+			if (intervalNanos > 0) {
+				next += intervalNanos;
+				long wait = next - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+			}
+		}
+	}
+
+	private synchronized void completed() {
+		inFlight--;
+		notifyAll();
+	}
+
+	/**
+	 * Waits for the buffer to drain.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return true if the buffer is empty
+	 * @throws InterruptedException
+	 *             if interrupted whilst waiting
+	 */
+	public synchronized boolean awaitEmpty(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (depth > 0) {
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Stops draining, discards anything still buffered and deletes the segment
+	 * files.
+	 */
+	public void close() {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		try {
+			drainThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			for (Segment segment : segments) {
+				segment.delete();
+			}
+			segments.clear();
+			memory.clear();
+			expiries.clear();
+			if (spillDirectory != null && configuredDirectory == null) {
+				spillDirectory.delete();
+			}
+		}
+	}
+
+	static byte[] encode(String topic, MqttMessage message, long enqueuedMillis) {
+		byte[] topicBytes = utf8(topic);
+		byte[] contentType = utf8(message.getContentType());
+		byte[] responseTopic = utf8(message.getResponseTopic());
+		byte[] correlationData = message.getCorrelationData();
+		byte[] payload = message.getPayload();
+		ArrayList<UserProperty> userProperties = message.getUserProperties();
+		int propertyCount = userProperties == null ? 0 : userProperties.size();
+		byte[][] properties = new byte[propertyCount * 2][];
+		int length = 4 + 8 + 1 + 1 + 4 + sizeOf(topicBytes) + sizeOf(contentType) + sizeOf(responseTopic)
+				+ sizeOf(correlationData) + 4 + sizeOf(payload);
+		for (int i = 0; i < propertyCount; i++) {
+			properties[i * 2] = utf8(userProperties.get(i).getKey());
+			properties[i * 2 + 1] = utf8(userProperties.get(i).getValue());
+			length += sizeOf(properties[i * 2]) + sizeOf(properties[i * 2 + 1]);
+		}
+		Integer expiry = message.getExpiryInterval();
+		int flags = (message.isRetained() ? FLAG_RETAINED : 0) | (message.isUTF8() ? FLAG_UTF8 : 0)
+				| (expiry != null ? FLAG_EXPIRY : 0);
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(length);
+		buffer.putLong(enqueuedMillis);
+		buffer.put((byte) message.getQos());
+		buffer.put((byte) flags);
+		buffer.putInt(expiry != null ? expiry : 0);
+		putBytes(buffer, topicBytes);
+		putBytes(buffer, contentType);
+		putBytes(buffer, responseTopic);
+		putBytes(buffer, correlationData);
+		buffer.putInt(propertyCount);
+		for (byte[] property : properties) {
+			putBytes(buffer, property);
+		}
+		putBytes(buffer, payload);
+		return buffer.array();
+	}
+
+	static String topicOf(byte[] record) {
+		ByteBuffer buffer = ByteBuffer.wrap(record, QOS_OFFSET + 6, record.length - QOS_OFFSET - 6);
+		return string(getBytes(buffer));
+	}
+
+	/**
+	 * @return the time the record was encoded with, which for this buffer is
+	 *         when it was enqueued in milliseconds
+	 */
+	static long timeOf(byte[] record) {
+		return ByteBuffer.wrap(record).getLong(4);
+	}
+
+	/**
+	 * @return when the record's message expires, or {@link Long#MAX_VALUE} if
+	 *         it has no expiry interval
+	 */
+	static long deadlineOf(byte[] record) {
+		if ((record[FLAGS_OFFSET] & FLAG_EXPIRY) == 0) {
+			return Long.MAX_VALUE;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		return buffer.getLong(4) + (buffer.getInt(EXPIRY_OFFSET) & 0xFFFFFFFFL) * 1000;
+	}
+
+	private static boolean isDiscarded(byte[] record) {
+		return (record[FLAGS_OFFSET] & FLAG_DISCARDED) != 0;
+	}
+
+	static MqttMessage decode(byte[] record) {
+		ByteBuffer buffer = ByteBuffer.wrap(record, QOS_OFFSET, record.length - QOS_OFFSET);
+		MqttMessage message = new MqttMessage();
+		message.setQos(buffer.get());
+		int flags = buffer.get();
+		int expiry = buffer.getInt();
+		message.setRetained((flags & FLAG_RETAINED) != 0);
+		message.setUTF8((flags & FLAG_UTF8) != 0);
+		if ((flags & FLAG_EXPIRY) != 0) {
+			message.setExpiryInterval(expiry);
+		}
+		getBytes(buffer); // topic
+		String contentType = string(getBytes(buffer));
+		if (contentType != null) {
+			message.setContentType(contentType);
+		}
+		String responseTopic = string(getBytes(buffer));
+		if (responseTopic != null) {
+			message.setResponseTopic(responseTopic);
+		}
+		byte[] correlationData = getBytes(buffer);
+		if (correlationData != null) {
+			message.setCorrelationData(correlationData);
+		}
+		int propertyCount = buffer.getInt();
+		if (propertyCount > 0) {
+			ArrayList<UserProperty> userProperties = new ArrayList<>(propertyCount);
+			for (int i = 0; i < propertyCount; i++) {
+				userProperties.add(new UserProperty(string(getBytes(buffer)), string(getBytes(buffer))));
+			}
+			message.setUserProperties(userProperties);
+		}
+		byte[] payload = getBytes(buffer);
+		message.setPayload(payload == null ? new byte[0] : payload);
+		return message;
+	}
+
+	private static byte[] utf8(String value) {
+		return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String string(byte[] value) {
+		return value == null ? null : new String(value, StandardCharsets.UTF_8);
+	}
+
+	private static int sizeOf(byte[] value) {
+		return 4 + (value == null ? 0 : value.length);
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] value) {
+		if (value == null) {
+			buffer.putInt(-1);
+		} else {
+			buffer.putInt(value.length);
+			buffer.put(value);
+		}
+	}
+
+	private static byte[] getBytes(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] value = new byte[length];
+		buffer.get(value);
+		return value;
+	}
+
+	/**
+	 * @return the number of messages waiting to be published
+	 */
+	public synchronized int getDepth() {
+		return depth;
+	}
+
+	public synchronized int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public synchronized long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	public synchronized long getDiskBytes() {
+		return diskBytes;
+	}
+
+	public synchronized long getSpilled() {
+		return spilled;
+	}
+
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return the number of messages discarded because they expired before
+	 *         they could be published
+	 */
+	public synchronized long getExpired() {
+		return expired;
+	}
+
+	public synchronized long getDrained() {
+		return drained;
+	}
+
+	/**
+	 * @return how long it took to empty the buffer each time it drained after
+	 *         reconnecting
+	 */
+	public LatencyHistogram getDrainTimes() {
+		return drainTimes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "OfflinePublishBuffer: [policy=" + policy + ", depth=" + depth + ", maxDepth=" + maxDepth
+				+ ", memoryBytes=" + memoryBytes + ", diskBytes=" + diskBytes + ", spilled=" + spilled + ", dropped="
+				+ dropped + ", expired=" + expired + ", drained=" + drained + ", drains=" + drainTimes.getTotalCount() + ", maxDrainTime="
+				+ drainTimes.getMaxValue() / 1000000 + "ms]";
+	}
+
+	/**
+	 * An append-only, memory-mapped segment file of records.
+	 */
+	private static class Segment {
+
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private int writePosition;
+		private int readPosition;
+
+		Segment(File file, int size) throws IOException {
+			this.file = file;
+			// The mapping stays valid after the file is closed
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+		}
+
+		/**
+		 * @return the position of the record, or -1 if it does not fit
+		 */
+		int append(byte[] record) {
+			if (buffer.capacity() - writePosition < record.length) {
+				return -1;
+			}
+			int position = writePosition;
+			buffer.position(position);
+			buffer.put(record);
+			writePosition += record.length;
+			return position;
+		}
+
+		long deadlineOf(int position) {
+			if ((buffer.get(position + FLAGS_OFFSET) & FLAG_EXPIRY) == 0) {
+				return Long.MAX_VALUE;
+			}
+			return buffer.getLong(position + 4) + (buffer.getInt(position + EXPIRY_OFFSET) & 0xFFFFFFFFL) * 1000;
+		}
+
+		boolean isDiscarded(int position) {
+			return position < readPosition || (buffer.get(position + FLAGS_OFFSET) & FLAG_DISCARDED) != 0;
+		}
+
+		void discard(int position) {
+			buffer.put(position + FLAGS_OFFSET, (byte) (buffer.get(position + FLAGS_OFFSET) | FLAG_DISCARDED));
+		}
+
+		byte[] peek() {
+			if (readPosition == writePosition) {
+				return null;
+			}
+			byte[] record = new byte[buffer.getInt(readPosition)];
+			buffer.position(readPosition);
+			buffer.get(record);
+			return record;
+		}
+
+		int remove() {
+			int length = buffer.getInt(readPosition);
+			readPosition += length;
+			return length;
+		}
+
+		boolean isDrained() {
+			return readPosition == writePosition;
+		}
+
+		void delete() {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Where to find a buffered message that has an expiry interval, either
+	 * its record in memory or its position in a segment.
+	 */
+	private static class Expiring {
+
+		private final byte[] record;
+		private final Segment segment;
+		private final int position;
+
+		Expiring(byte[] record, Segment segment, int position) {
+			this.record = record;
+			this.segment = segment;
+			this.position = position;
+		}
+
+		/**
+		 * @return false if the message had already left the buffer
+		 */
+		boolean discard() {
+			if (record != null) {
+				if (isDiscarded(record)) {
+					return false;
+				}
+				record[FLAGS_OFFSET] |= FLAG_DISCARDED;
+			} else {
+				if (segment.isDiscarded(position)) {
+					return false;
+				}
+				segment.discard(position);
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+
+/**
+ * Works out how many bytes a PUBLISH packet takes on the wire, from the
+ * MQTTv5 packet layout, without encoding it.
+ */
+public final class PacketSizes {
+
+	private PacketSizes() {
+	}
+
+	/**
+	 * @param topicLength
+	 *            the UTF-8 length of the topic name, 0 if a Topic Alias is used
+	 *            instead
+	 * @param qos
+	 *            the QoS, a packet identifier is added above 0
+	 * @param propertiesLength
+	 *            the length of the encoded properties
+	 * @param payloadLength
+	 *            the length of the payload
+	 * @return the size of the whole packet, including its fixed header
+	 */
+	public static int publishPacketSize(int topicLength, int qos, int propertiesLength, int payloadLength) {
+		int remaining = 2 + topicLength + (qos > 0 ? 2 : 0) + variableIntLength(propertiesLength) + propertiesLength
+				+ payloadLength;
+		return 1 + variableIntLength(remaining) + remaining;
+	}
+
+	/**
+	 * @param topic
+	 *            the topic the message is published to
+	 * @param message
+	 *            the message
+	 * @return the size of the PUBLISH packet the message would be sent in
+	 */
+	public static int publishPacketSize(String topic, MqttMessage message) {
+		byte[] payload = message.getPayload();
+		return publishPacketSize(utf8Length(topic), message.getQos(), propertiesLength(message),
+				payload == null ? 0 : payload.length);
+	}
+
+	/**
+	 * @return the length of the properties the client sends with the message
+	 */
+	public static int propertiesLength(MqttMessage message) {
+		int length = 0;
+		if (message.isUTF8()) {
+			length += 1 + 1;
+		}
+		if (message.getExpiryInterval() != null) {
+			length += 1 + 4;
+		}
+		if (message.getTopicAlias() != null) {
+			length += 1 + 2;
+		}
+		if (message.getContentType() != null) {
+			length += 1 + 2 + utf8Length(message.getContentType());
+		}
+		if (message.getResponseTopic() != null) {
+			length += 1 + 2 + utf8Length(message.getResponseTopic());
+		}
+		if (message.getCorrelationData() != null) {
+			length += 1 + 2 + message.getCorrelationData().length;
+		}
+		ArrayList<UserProperty> userProperties = message.getUserProperties();
+		if (userProperties != null) {
+			for (UserProperty userProperty : userProperties) {
+				length += 1 + 2 + utf8Length(userProperty.getKey()) + 2 + utf8Length(userProperty.getValue());
+			}
+		}
+		return length;
+	}
+
+	public static int variableIntLength(int value) {
+		int length = 1;
+		while (value > 127) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	private static int utf8Length(String value) {
+		return value.getBytes(StandardCharsets.UTF_8).length;
+	}
+}
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Turns application values into message payloads and back.
+ *
+ * Each codec is identified by the content type it sets on the messages it
+ * encodes, so that a subscriber can pick the codec for an incoming message
+ * with {@link PayloadCodecs#decode(MqttMessage)}.
+ *
+ * @param <T>
+ *            the type of value the codec encodes
+ */
+public interface PayloadCodec<T> {
+
+	/**
+	 * @return the content type set on every message this codec encodes
+	 */
+	String getContentType();
+
+	/**
+	 * Sets the message's payload, content type and payload format indicator
+	 * from the value. Other properties are left as they are.
+	 *
+	 * @param value
+	 *            the value to encode
+	 * @param message
+	 *            the message to encode it into
+	 */
+	void encode(T value, MqttMessage message);
+
+	/**
+	 * @param message
+	 *            a message whose content type is this codec's
+	 * @return the value encoded in the message's payload
+	 * @throws IllegalArgumentException
+	 *             if the payload is not valid for this codec
+	 */
+	T decode(MqttMessage message);
+}
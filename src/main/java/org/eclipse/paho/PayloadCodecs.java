@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * The codecs a client publishes and receives with, looked up by content type.
+ *
+ * Publishers and subscribers each keep one, with the same
+ * {@link ReadingSchema}s registered. Lookups are a single map read, so the
+ * content type of an incoming message is never parsed on the way in. Messages
+ * whose content type has no codec, such as a schema that has not been
+ * registered, are counted rather than decoded.
+ */
+public class PayloadCodecs {
+
+	private final ConcurrentMap<String, PayloadCodec<?>> codecs = new ConcurrentHashMap<>();
+	private final AtomicLong unknown = new AtomicLong();
+
+	/**
+	 * @return codecs with the {@link StringPayloadCodec} registered
+	 */
+	public static PayloadCodecs withDefaults() {
+		PayloadCodecs codecs = new PayloadCodecs();
+		codecs.register(new StringPayloadCodec());
+		return codecs;
+	}
+
+	/**
+	 * Registers a codec for its content type, replacing any registered before.
+	 */
+	public void register(PayloadCodec<?> codec) {
+		codecs.put(codec.getContentType(), codec);
+	}
+
+	/**
+	 * Registers a {@link ReadingCodec} for the schema.
+	 *
+	 * @return the codec
+	 */
+	public ReadingCodec register(ReadingSchema schema) {
+		ReadingCodec codec = new ReadingCodec(schema);
+		register(codec);
+		return codec;
+	}
+
+	/**
+	 * @param contentType
+	 *            the content type of a message
+	 * @return the codec for it, or null if there isn't one
+	 */
+	public PayloadCodec<?> codecFor(String contentType) {
+		return contentType == null ? null : codecs.get(contentType);
+	}
+
+	/**
+	 * Decodes a message with the codec for its content type.
+	 *
+	 * @param message
+	 *            the message as received
+	 * @return the decoded value, or null if there is no codec for the content
+	 *         type
+	 * @throws IllegalArgumentException
+	 *             if the payload is not valid for its codec
+	 */
+	public Object decode(MqttMessage message) {
+		PayloadCodec<?> codec = codecFor(message.getContentType());
+		if (codec == null) {
+			unknown.incrementAndGet();
+			return null;
+		}
+		return codec.decode(message);
+	}
+
+	/**
+	 * @return the number of messages that could not be decoded because no
+	 *         codec was registered for their content type
+	 */
+	public long getUnknown() {
+		return unknown.get();
+	}
+}
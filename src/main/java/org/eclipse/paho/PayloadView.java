@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * A view of a message payload that does not copy or decode it until asked to.
+ * 
+ * {@link #buffer()} gives a read-only {@link ByteBuffer} over the payload and
+ * {@link #text()} a {@link CharSequence} that is only decoded when it is first
+ * read. If the payload is plain ASCII the text is served straight from the
+ * payload bytes without ever being decoded into a String.
+ * 
+ * The payload is decoded as UTF-8 when the publisher set the payload format
+ * indicator with <code>setUTF8(true)</code>, otherwise with the fallback
+ * charset, which defaults to the platform charset used by
+ * <code>new String(payload)</code>.
+ * 
+ * A view can be {@link #reset(MqttMessage)} to point at the next message, so a
+ * callback can reuse one instance. Handlers must not keep a view, or its text,
+ * after they return.
+ */
+public class PayloadView {
+
+	private final Charset fallbackCharset;
+	private MqttMessage message;
+	private byte[] payload;
+	private ByteBuffer buffer;
+	private final LazyText text = new LazyText();
+
+	public PayloadView() {
+		this(Charset.defaultCharset());
+	}
+
+	/**
+	 * @param fallbackCharset
+	 *            the charset used for payloads not flagged as UTF-8
+	 */
+	public PayloadView(Charset fallbackCharset) {
+		this.fallbackCharset = fallbackCharset;
+	}
+
+	/**
+	 * @return a new view of the message's payload
+	 */
+	public static PayloadView of(MqttMessage message) {
+		return new PayloadView().reset(message);
+	}
+
+	/**
+	 * Points this view at another message.
+	 * 
+	 * @param message
+	 *            the message to view
+	 * @return this view
+	 */
+	public PayloadView reset(MqttMessage message) {
+		this.message = message;
+		this.payload = message.getPayload();
+		this.buffer = null;
+		text.reset();
+		return this;
+	}
+
+	/**
+	 * @return the message this view is over
+	 */
+	public MqttMessage getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the payload size in bytes
+	 */
+	public int size() {
+		return payload.length;
+	}
+
+	/**
+	 * @param index
+	 *            the offset of the byte to read
+	 * @return the byte at the given offset
+	 */
+	public byte get(int index) {
+		return payload[index];
+	}
+
+	/**
+	 * @param prefix
+	 *            the bytes to look for
+	 * @return true if the payload starts with the given bytes
+	 */
+	public boolean startsWith(byte[] prefix) {
+		if (prefix.length > payload.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (payload[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return a read-only buffer over the payload, nothing is copied
+	 */
+	public ByteBuffer buffer() {
+		if (buffer == null) {
+			buffer = ByteBuffer.wrap(payload).asReadOnlyBuffer();
+		}
+		return buffer.duplicate();
+	}
+
+	/**
+	 * @return the payload as text, decoded when it is first read
+	 */
+	public CharSequence text() {
+		return text;
+	}
+
+	/**
+	 * @return true if the publisher flagged the payload as UTF-8
+	 */
+	public boolean isUTF8() {
+		return message.isUTF8();
+	}
+
+	private final class LazyText implements CharSequence {
+
+		// -1 not yet checked, 0 needs decoding, 1 plain ASCII
+		private int ascii = -1;
+		private String decoded;
+
+		void reset() {
+			ascii = -1;
+			decoded = null;
+		}
+
+		private boolean isAscii() {
+			if (ascii < 0) {
+				ascii = 1;
+				boolean asciiCompatible = message.isUTF8() || fallbackCharset.equals(StandardCharsets.US_ASCII)
+						|| fallbackCharset.equals(StandardCharsets.UTF_8)
+						|| fallbackCharset.equals(StandardCharsets.ISO_8859_1);
+				if (!asciiCompatible) {
+					ascii = 0;
+				} else {
+					for (byte b : payload) {
+						if (b < 0) {
+							ascii = 0;
+							break;
+						}
+					}
+				}
+			}
+			return ascii == 1;
+		}
+
+		private String decoded() {
+			if (decoded == null) {
+				decoded = new String(payload, message.isUTF8() ? StandardCharsets.UTF_8 : fallbackCharset);
+			}
+			return decoded;
+		}
+
+		@Override
+		public int length() {
+			return isAscii() ? payload.length : decoded().length();
+		}
+
+		@Override
+		public char charAt(int index) {
+			return isAscii() ? (char) payload[index] : decoded().charAt(index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return toString().substring(start, end);
+		}
+
+		@Override
+		public String toString() {
+			if (decoded == null && isAscii()) {
+				decoded = new String(payload, StandardCharsets.ISO_8859_1);
+			}
+			return decoded();
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * An {@link MqttCallback} that hands incoming messages to
+ * {@link #payloadArrived(String, PayloadView)} as a {@link PayloadView}, so
+ * handlers only pay for the bytes they look at.
+ * 
+ * The same view is reused for every message, which is safe because the client
+ * delivers messages to the callback one at a time.
+ */
+public abstract class PayloadViewCallback implements MqttCallback {
+
+	private final PayloadView view = new PayloadView();
+
+	@Override
+	public final void messageArrived(String topic, MqttMessage message) throws Exception {
+		payloadArrived(topic, view.reset(message));
+	}
+
+	/**
+	 * This method is called when a message arrives from the server.
+	 * 
+	 * @param topic
+	 *            name of the topic on the message was published to
+	 * @param payload
+	 *            a view of the message, only valid until this method returns
+	 * @throws Exception
+	 *             if a terminal error has occurred, and the client should be
+	 *             shut down.
+	 */
+	public abstract void payloadArrived(String topic, PayloadView payload) throws Exception;
+}
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Compares the publish throughput and publish to ack latency of QoS 1 and 2
+ * with {@link MemoryPersistence} and with {@link LogPersistence}, both waiting
+ * for every put to be synced and with a group commit budget.
+ * 
+ * Each run uses a {@link PublishLoadGenerator}, so it accepts the same
+ * <code>--messages</code>, <code>--inflight</code> and <code>--size</code>
+ * options, along with:
+ * <ul>
+ * <li><code>--budget</code> - the commit budget in microseconds for the
+ * batched run (default 1000)</li>
+ * <li><code>--persistenceDir</code> - where to put the segment files
+ * (default a new temporary directory)</li>
+ * </ul>
+ */
+public class PersistenceComparison implements MqttCallback {
+
+	String broker = "tcp://localhost:1883";
+	String clientId = "PahoJavaV5Client";
+	String topic = "persistence";
+
+	private final LatencyRecorder latencyRecorder = new LatencyRecorder();
+	private final List<String> results = new ArrayList<>();
+
+	public PersistenceComparison(SampleOptions options) throws InterruptedException, IOException {
+		broker = SampleUtilities.resolveBroker(options, broker);
+		long budget = options.getLong("budget", 1000);
+		File directory = options.has("persistenceDir") ? new File(options.getString("persistenceDir", null))
+				: Files.createTempDirectory("paho-persistence").toFile();
+
+		for (int qos = 1; qos <= 2; qos++) {
+			run("memory", new MemoryPersistence(), qos, options);
+			run("log-sync", new LogPersistence(directory, 0, 4 << 20), qos, options);
+			run("log-" + budget + "us", new LogPersistence(directory, budget, 4 << 20), qos, options);
+		}
+
+		System.out.println("persistence,qos,messages,messagesPerSecond,ackP50Micros,ackP99Micros,ackMaxMicros");
+		for (String result : results) {
+			System.out.println(result);
+		}
+		System.exit(0);
+	}
+
+	private void run(String name, MqttClientPersistence persistence, int qos, SampleOptions options)
+			throws InterruptedException {
+		latencyRecorder.getPublishToAck().reset();
+		try {
+			MqttAsyncClient asyncClient = new MqttAsyncClient(broker, clientId + "-" + name + "-" + qos,
+					persistence);
+			asyncClient.setCallback(this);
+			asyncClient.connect(new MqttConnectionOptionsBuilder().serverURI(broker).cleanSession(true).build())
+					.waitForCompletion();
+
+			PublishLoadGenerator loadGenerator = new PublishLoadGenerator(asyncClient, topic, qos, options);
+			long start = System.nanoTime();
+			loadGenerator.run();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			if (persistence instanceof LogPersistence) {
+				System.out.println(persistence);
+			}
+
+			LatencyHistogram acks = latencyRecorder.getPublishToAck();
+			results.add(String.format("%s,%d,%d,%.1f,%d,%d,%d", name, qos, loadGenerator.getCompleted(),
+					loadGenerator.getCompleted() / seconds, acks.getValueAtPercentile(50) / 1000,
+					acks.getValueAtPercentile(99) / 1000, acks.getMaxValue() / 1000));
+
+			asyncClient.disconnect().waitForCompletion();
+			asyncClient.close();
+		} catch (MqttException e) {
+			System.err.println("Exception Occured whilst running " + name + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param args
+	 *            - Optional arguments, see {@link SampleOptions}
+	 * @throws InterruptedException
+	 * @throws IOException
+	 *             if the temporary directory could not be created
+	 */
+	public static void main(String[] args) throws InterruptedException, IOException {
+		SampleUtilities.printBanner("MQTTv5 Persistence Comparison Java App");
+		new PersistenceComparison(SampleOptions.parse(args));
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+		try {
+			latencyRecorder.recordAck(token.getMessage());
+		} catch (MqttException e) {
+			// The message is no longer available, nothing to record.
+		}
+	}
+
+	@Override
+	public void disconnected(MqttDisconnectResponse disconnectResponse) {
+		System.out.println("Disconnection Complete! : " + disconnectResponse.toString());
+	}
+
+	@Override
+	public void mqttErrorOccured(MqttException exception) {
+		System.out.println("MQTT Error Occured: " + exception.getMessage());
+	}
+}
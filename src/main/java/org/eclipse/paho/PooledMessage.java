@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * An {@link MqttMessage} that owns its payload buffers so that it can be
+ * published again once its delivery has completed. Instances are handed out by
+ * a {@link MessagePool}.
+ *
+ * The client marks a message read only once it has been published, so every
+ * setter here makes the message mutable again first. A message must not be
+ * reused until the delivery token for its previous publish has completed.
+ */
+public class PooledMessage extends MqttMessage {
+
+	// Longest decimal representation of a long
+	private static final int MAX_DIGITS = 19;
+
+	private final MessagePool pool;
+	private final byte[] fixedBuffer;
+	// Text payloads are cached by length, so steady state publishing with a
+	// growing counter only allocates when the number of digits increases.
+	private final byte[][] textBuffers = new byte[MAX_DIGITS + 1][];
+
+	PooledMessage(MessagePool pool, int fixedPayloadSize) {
+		this.pool = pool;
+		this.fixedBuffer = new byte[fixedPayloadSize];
+	}
+
+	/**
+	 * Sets the payload to <code>prefix + " " + counter</code>, encoded as UTF-8
+	 * straight into a reusable buffer without creating a String.
+	 *
+	 * @param utf8Prefix
+	 *            the UTF-8 bytes of the text before the counter
+	 * @param counter
+	 *            a non negative counter to append
+	 */
+	public void setText(byte[] utf8Prefix, long counter) {
+		int digits = digits(counter);
+		byte[] buffer = textBuffers[digits];
+		if (buffer == null || buffer.length != utf8Prefix.length + 1 + digits) {
+			buffer = new byte[utf8Prefix.length + 1 + digits];
+			textBuffers[digits] = buffer;
+		}
+		System.arraycopy(utf8Prefix, 0, buffer, 0, utf8Prefix.length);
+		buffer[utf8Prefix.length] = ' ';
+		for (int i = buffer.length - 1; i > utf8Prefix.length; i--) {
+			buffer[i] = (byte) ('0' + (counter % 10));
+			counter /= 10;
+		}
+		setMutable(true);
+		setPayload(buffer);
+	}
+
+	/**
+	 * Copies the template into this message's fixed size buffer and uses it as
+	 * the payload.
+	 *
+	 * @param template
+	 *            the bytes to copy, no longer than the pool's payload size
+	 * @return the payload buffer, so the caller can stamp it
+	 */
+	public byte[] setFixedPayload(byte[] template) {
+		System.arraycopy(template, 0, fixedBuffer, 0, template.length);
+		setMutable(true);
+		setPayload(fixedBuffer);
+		return fixedBuffer;
+	}
+
+	/**
+	 * Sets the Topic Alias to send with the message, which the client only
+	 * lets subclasses do.
+	 *
+	 * @param topicAlias
+	 *            the alias, or null to send none
+	 */
+	public void setAlias(Integer topicAlias) {
+		setMutable(true);
+		setTopicAlias(topicAlias);
+	}
+
+	/**
+	 * Makes the message mutable so properties can be set before publishing.
+	 */
+	public void reset() {
+		setMutable(true);
+	}
+
+	/**
+	 * Returns this message to the pool it came from.
+	 */
+	public void release() {
+		pool.release(this);
+	}
+
+	private static int digits(long value) {
+		int digits = 1;
+		while (value >= 10) {
+			value /= 10;
+			digits++;
+		}
+		return digits;
+	}
+}
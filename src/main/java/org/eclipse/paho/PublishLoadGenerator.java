@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.common.MqttException;
+
+/**
+ * Publishes messages as fast as possible, or at a target rate, and reports the
+ * achieved throughput.
+ *
+ * Messages are taken from a {@link MessagePool} sized to the in-flight limit:
+ * a message is acquired before each publish and handed back when its delivery
+ * token completes, so a slow broker applies backpressure to the publishing
+ * thread instead of the client's internal queues growing without limit, and
+ * the steady state publish path does not allocate payloads or messages.
+ *
+ * Every payload is stamped with its send time (see {@link LatencyRecorder}) so
+ * that the latency of the acks and loopback deliveries can be measured.
+ *
+ * Options (see {@link SampleOptions}):
+ * <ul>
+ * <li><code>--messages</code> - number of messages to publish (default
+ * 10000)</li>
+ * <li><code>--rate</code> - target messages per second, 0 for as fast as
+ * possible (default 0)</li>
+ * <li><code>--inflight</code> - maximum unacknowledged publishes (default
+ * 10)</li>
+ * <li><code>--size</code> - payload size in bytes (default 64)</li>
+ * </ul>
+ */
+public class PublishLoadGenerator {
+
+	private final MqttAsyncClient asyncClient;
+	private final String topic;
+	private final int qos;
+	private final long messagesToSend;
+	private final double targetRate;
+	private final int maxInFlight;
+	private final int payloadSize;
+
+	private final byte[] payload;
+	private final MessagePool pool;
+	private final AllocationMeter allocationMeter = new AllocationMeter();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong bytesCompleted = new AtomicLong();
+	private long elapsedNanos;
+
+	private final MqttActionListener deliveryListener = new MqttActionListener() {
+
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			completed.incrementAndGet();
+			bytesCompleted.addAndGet(payloadSize);
+			MessagePool.RELEASER.onSuccess(asyncActionToken);
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			failed.incrementAndGet();
+			MessagePool.RELEASER.onFailure(asyncActionToken, exception);
+		}
+	};
+
+	public PublishLoadGenerator(MqttAsyncClient asyncClient, String topic, int qos, SampleOptions options) {
+		this.asyncClient = asyncClient;
+		this.topic = topic;
+		this.qos = qos;
+		this.messagesToSend = options.getLong("messages", 10000);
+		this.targetRate = options.getDouble("rate", 0);
+		this.maxInFlight = options.getInt("inflight", 10);
+		this.payloadSize = Math.max(LatencyRecorder.HEADER_LENGTH, options.getInt("size", 64));
+		this.payload = createPayload(payloadSize);
+		this.pool = new MessagePool(maxInFlight, payloadSize);
+	}
+
+	/**
+	 * Publishes all of the messages and waits for the outstanding deliveries to
+	 * complete.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted whilst waiting for an in-flight slot
+	 */
+	public void run() throws InterruptedException {
+		System.out.println("Publishing " + messagesToSend + " messages of " + payloadSize + " bytes at "
+				+ (targetRate > 0 ? targetRate + " msg/s" : "maximum rate") + " with up to " + maxInFlight
+				+ " in flight.");
+		long intervalNanos = targetRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / targetRate) : 0;
+		allocationMeter.start();
+		long start = System.nanoTime();
+		for (long i = 0; i < messagesToSend; i++) {
+			if (intervalNanos > 0) {
+				long wait = start + i * intervalNanos - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+			}
+			publish(pool.acquire());
+		}
+		allocationMeter.stop();
+		// Wait for everything still in flight to be acknowledged.
+		if (!pool.awaitIdle(30, TimeUnit.SECONDS)) {
+			System.err.println("Timed out waiting for " + pool.inUse() + " in flight messages.");
+		}
+		elapsedNanos = System.nanoTime() - start;
+	}
+
+	private void publish(PooledMessage message) {
+		LatencyRecorder.stamp(message.setFixedPayload(payload));
+		message.setQos(qos);
+		try {
+			asyncClient.publish(topic, message, message, deliveryListener);
+		} catch (MqttException e) {
+			failed.incrementAndGet();
+			message.release();
+		}
+	}
+
+	private static byte[] createPayload(int payloadSize) {
+		byte[] payload = new byte[payloadSize];
+		for (int i = 0; i < payloadSize; i++) {
+			payload[i] = (byte) ('a' + (i % 26));
+		}
+		return payload;
+	}
+
+	/**
+	 * Prints the throughput achieved by the last call to {@link #run()}.
+	 */
+	public void printReport() {
+		double seconds = elapsedNanos / 1e9;
+		System.out.println(String.format(
+				"Load Report: [messages=%d, failed=%d, elapsed=%.3fs, messagesPerSecond=%.1f, bytesPerSecond=%.1f]",
+				completed.get(), failed.get(), seconds, completed.get() / seconds, bytesCompleted.get() / seconds));
+		System.out.println(allocationMeter.report(messagesToSend));
+	}
+
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+}
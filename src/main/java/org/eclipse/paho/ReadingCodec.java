@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * A compact binary codec for sensor readings described by a
+ * {@link ReadingSchema}.
+ *
+ * A message carries one or more readings, each a <code>long</code> per field
+ * of the schema. The payload is the number of readings followed by every
+ * field of every reading as a zigzag encoded variable length integer: the
+ * first reading as it is and each one after that as the difference from the
+ * one before. So a run of similar readings, timestamps a second apart or a
+ * slowly changing temperature, costs a byte or two per field rather than the
+ * tens of bytes of the same numbers as text.
+ *
+ * The schema ID travels in the content type, see {@link ReadingSchema}.
+ */
+public class ReadingCodec implements PayloadCodec<long[][]> {
+
+	// The longest a zigzag encoded long can be
+	private static final int MAX_VARINT_LENGTH = 10;
+
+	private final ReadingSchema schema;
+
+	public ReadingCodec(ReadingSchema schema) {
+		this.schema = schema;
+	}
+
+	public ReadingSchema getSchema() {
+		return schema;
+	}
+
+	@Override
+	public String getContentType() {
+		return schema.getContentType();
+	}
+
+	/**
+	 * @param readings
+	 *            the readings, each with a value for every field of the schema
+	 * @throws IllegalArgumentException
+	 *             if a reading does not match the schema
+	 */
+	@Override
+	public void encode(long[][] readings, MqttMessage message) {
+		int fields = schema.size();
+		byte[] buffer = new byte[MAX_VARINT_LENGTH * (1 + readings.length * fields)];
+		int position = writeVarint(buffer, 0, readings.length);
+		long[] previous = new long[fields];
+		for (long[] reading : readings) {
+			if (reading.length != fields) {
+				throw new IllegalArgumentException("Reading has " + reading.length + " values, " + schema.getName()
+						+ " has " + fields + " fields");
+			}
+			for (int i = 0; i < fields; i++) {
+				position = writeVarint(buffer, position, zigzag(reading[i] - previous[i]));
+				previous[i] = reading[i];
+			}
+		}
+		byte[] payload = new byte[position];
+		System.arraycopy(buffer, 0, payload, 0, position);
+		message.setPayload(payload);
+		message.setContentType(schema.getContentType());
+		message.setUTF8(false);
+	}
+
+	@Override
+	public long[][] decode(MqttMessage message) {
+		byte[] payload = message.getPayload();
+		int fields = schema.size();
+		int[] position = new int[1];
+		int count = (int) readVarint(payload, position);
+		if (count < 0 || count > payload.length) {
+			throw new IllegalArgumentException("Invalid reading count " + count);
+		}
+		long[][] readings = new long[count][fields];
+		long[] previous = new long[fields];
+		for (int r = 0; r < count; r++) {
+			for (int i = 0; i < fields; i++) {
+				previous[i] += unzigzag(readVarint(payload, position));
+				readings[r][i] = previous[i];
+			}
+		}
+		return readings;
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static int writeVarint(byte[] buffer, int position, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	/**
+	 * @param position
+	 *            the offset to read from, moved past the value
+	 */
+	private static long readVarint(byte[] payload, int[] position) {
+		long value = 0;
+		int shift = 0;
+		int offset = position[0];
+		while (true) {
+			if (offset >= payload.length || shift > 63) {
+				throw new IllegalArgumentException("Truncated reading payload");
+			}
+			byte b = payload[offset++];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			shift += 7;
+		}
+		position[0] = offset;
+		return value;
+	}
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.Arrays;
+
+/**
+ * Describes the fields of the readings sent with a {@link ReadingCodec}.
+ *
+ * Only the schema's ID travels with each message, in its content type
+ * (<code>reading/{id}</code>), so publishers and subscribers must agree on
+ * what each ID means and register the same schemas with their
+ * {@link PayloadCodecs}. Change a schema by giving it a new ID.
+ */
+public class ReadingSchema {
+
+	/** The content type of a reading, followed by the schema ID. */
+	public static final String CONTENT_TYPE_PREFIX = "reading/";
+
+	private final int id;
+	private final String name;
+	private final String[] fields;
+	private final String contentType;
+
+	/**
+	 * @param id
+	 *            the schema ID, sent with every message
+	 * @param name
+	 *            a name for reports
+	 * @param fields
+	 *            the names of the fields in each reading, in order
+	 */
+	public ReadingSchema(int id, String name, String... fields) {
+		this.id = id;
+		this.name = name;
+		this.fields = fields.clone();
+		this.contentType = CONTENT_TYPE_PREFIX + id;
+	}
+
+	/**
+	 * @param contentType
+	 *            the content type of a message
+	 * @return the schema ID in the content type, or -1 if it is not a reading
+	 */
+	public static int idOf(String contentType) {
+		if (contentType == null || !contentType.startsWith(CONTENT_TYPE_PREFIX)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(contentType.substring(CONTENT_TYPE_PREFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the number of fields in each reading
+	 */
+	public int size() {
+		return fields.length;
+	}
+
+	public String getField(int index) {
+		return fields[index];
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public String toString() {
+		return "ReadingSchema: [id=" + id + ", name=" + name + ", fields=" + Arrays.toString(fields) + "]";
+	}
+}
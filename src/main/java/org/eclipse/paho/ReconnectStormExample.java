@@ -0,0 +1,344 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Sample MQTTv5 Eclipse Paho Java App.
+ * https://github.com/jpwsutton/EclipsePahoJavaMQTTv5Example
+ * 
+ * This example grows {@link ServerDisconnectExample} into a reconnect storm. A
+ * fleet of clients connect with a Session Expiry Interval and each subscribes
+ * to its own topic, while a separate publisher sends a steady stream of
+ * numbered QoS 1 messages across those topics. Then every client publishes
+ * the reason code to <code>cmd/disconnectWithRC</code> so that the broker
+ * disconnects them all at once, and each one reconnects without Clean Start,
+ * resuming its session, using a {@link BackoffReconnector}.
+ * 
+ * For each jitter mode a CSV row is printed with the time from the storm until
+ * every client was connected again, the reconnect attempts and the peak
+ * CONNECT rate they added up to, and how many of the messages the broker
+ * acknowledged were lost or delivered more than once.
+ * 
+ * Options (see {@link SampleOptions}):
+ * <ul>
+ * <li><code>--clients</code> - number of clients (default 200)</li>
+ * <li><code>--jitters</code> - comma separated jitter modes to compare
+ * (default none,equal,full)</li>
+ * <li><code>--backoffBase</code> / <code>--backoffMax</code> - the first and
+ * longest reconnect delay in milliseconds (default 100 and 5000)</li>
+ * <li><code>--rate</code> - messages published per second (default 2000)</li>
+ * <li><code>--warmup</code> / <code>--settle</code> - seconds to publish for
+ * before the storm and after recovery (default 2 and 2)</li>
+ * <li><code>--reasonCode</code> - the reason code the broker disconnects with
+ * (default 139, Server shutting down)</li>
+ * <li><code>--sessionExpiry</code> - the Session Expiry Interval in seconds
+ * (default 300)</li>
+ * <li><code>--timeout</code> - seconds to wait for recovery (default 60)</li>
+ * </ul>
+ */
+public class ReconnectStormExample implements MqttCallback {
+
+	static final String DISCONNECT_COMMAND_TOPIC = "cmd/disconnectWithRC";
+
+	// ------ Client Configuration ------ //
+	String topicPrefix = "storm/";
+	String broker = "tcp://localhost:1883";
+	String clientId = "PahoJavaV5Client";
+	int qos = 1;
+
+	// Guarded by this
+	private final BitSet acked = new BitSet();
+	private final BitSet received = new BitSet();
+	private long duplicates;
+
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong publishFailures = new AtomicLong();
+	private final AtomicLong sessionsLost = new AtomicLong();
+	private volatile boolean publishing;
+
+	private final MqttActionListener ackListener = new MqttActionListener() {
+
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			synchronized (ReconnectStormExample.this) {
+				acked.set(((Long) asyncActionToken.getUserContext()).intValue());
+			}
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			publishFailures.incrementAndGet();
+		}
+	};
+
+	public ReconnectStormExample(SampleOptions options) throws InterruptedException {
+		broker = SampleUtilities.resolveBroker(options, broker);
+		int clients = options.getInt("clients", 200);
+		String[] jitters = options.getString("jitters", "none,equal,full").split(",");
+		long backoffBase = options.getLong("backoffBase", 100);
+		long backoffMax = options.getLong("backoffMax", 5000);
+		int rate = options.getInt("rate", 2000);
+		long warmup = options.getLong("warmup", 2);
+		long settle = options.getLong("settle", 2);
+		int reasonCode = options.getInt("reasonCode", 139);
+		int sessionExpiry = options.getInt("sessionExpiry", 300);
+		long timeout = options.getLong("timeout", 60);
+
+		System.out.println("jitter,clients,recoverySeconds,attempts,failedAttempts,peakConnectsPerSecond,"
+				+ "published,acked,lost,duplicates,lostPercent,duplicatePercent,sessionsLost");
+		for (String jitter : jitters) {
+			BackoffReconnector.Jitter mode = BackoffReconnector.Jitter.valueOf(jitter.trim().toUpperCase(Locale.ROOT));
+			try {
+				run(mode, clients, backoffBase, backoffMax, rate, warmup, settle, reasonCode, sessionExpiry, timeout);
+			} catch (MqttException e) {
+				System.err.println("Exception Occured whilst running " + jitter + ": " + e.getMessage());
+			}
+		}
+		System.exit(0);
+	}
+
+	private void run(BackoffReconnector.Jitter jitter, int clients, long backoffBase, long backoffMax, int rate,
+			long warmup, long settle, int reasonCode, int sessionExpiry, long timeout)
+			throws MqttException, InterruptedException {
+		synchronized (this) {
+			acked.clear();
+			received.clear();
+			duplicates = 0;
+		}
+		published.set(0);
+		publishFailures.set(0);
+		sessionsLost.set(0);
+
+		String prefix = clientId + "-" + jitter.name().toLowerCase(Locale.ROOT);
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+		ClientFleet fleet = new ClientFleet(broker, prefix, clients, null, this);
+		MqttAsyncClient publisher = new MqttAsyncClient(broker, prefix + "-publisher", new MemoryPersistence());
+		try {
+			// Start with a clean session in case one was left behind by an
+			// earlier run, then resume it on every reconnect.
+			MqttConnectionOptions firstConOpts = new MqttConnectionOptionsBuilder().serverURI(broker)
+					.cleanSession(true).sessionExpiryInterval(sessionExpiry).automaticReconnect(false).build();
+			MqttConnectionOptions conOpts = new MqttConnectionOptionsBuilder().serverURI(broker).cleanSession(false)
+					.sessionExpiryInterval(sessionExpiry).automaticReconnect(false).build();
+			final BackoffReconnector reconnector = new BackoffReconnector(scheduler, backoffBase, backoffMax, jitter);
+			for (int i = 0; i < clients; i++) {
+				MqttAsyncClient client = fleet.getClients().get(i);
+				client.setCallback(reconnector.wrap(client, conOpts, this, resubscriber(client, topicPrefix + i)));
+			}
+			fleet.connectAll(firstConOpts, 1000, 5, TimeUnit.MINUTES);
+			for (int i = 0; i < clients; i++) {
+				fleet.getClients().get(i).subscribe(topicPrefix + i, qos).waitForCompletion(30000);
+			}
+			publisher.connect(new MqttConnectionOptionsBuilder().serverURI(broker).cleanSession(true).build())
+					.waitForCompletion(30000);
+			Thread publishThread = startPublishing(publisher, clients, rate);
+			Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+
+			// Count the reconnect attempts started in each 100ms
+			final AtomicLong peakAttempts = new AtomicLong();
+			scheduler.scheduleAtFixedRate(new Runnable() {
+				private long last;
+
+				@Override
+				public void run() {
+					long attempts = reconnector.getAttempts();
+					peakAttempts.set(Math.max(peakAttempts.get(), attempts - last));
+					last = attempts;
+				}
+			}, 100, 100, TimeUnit.MILLISECONDS);
+
+			long stormStart = System.nanoTime();
+			byte[] command = Integer.toString(reasonCode).getBytes(StandardCharsets.UTF_8);
+			for (MqttAsyncClient client : fleet.getClients()) {
+				client.publish(DISCONNECT_COMMAND_TOPIC, new MqttMessage(command, 0, false));
+			}
+			long deadline = stormStart + TimeUnit.SECONDS.toNanos(timeout);
+			while (!(reconnector.getDisconnects() >= clients && allConnected(fleet))
+					&& System.nanoTime() < deadline) {
+				Thread.sleep(5);
+			}
+			double recoverySeconds = (System.nanoTime() - stormStart) / 1e9;
+			boolean recovered = reconnector.getDisconnects() >= clients && allConnected(fleet);
+
+			Thread.sleep(TimeUnit.SECONDS.toMillis(settle));
+			publishing = false;
+			publishThread.join();
+			long drainDeadline = System.currentTimeMillis() + 10000;
+			while (countLost() > 0 && System.currentTimeMillis() < drainDeadline) {
+				Thread.sleep(10);
+			}
+
+			long lost = countLost();
+			long delivered;
+			long duplicated;
+			synchronized (this) {
+				delivered = acked.cardinality();
+				duplicated = duplicates;
+			}
+			System.out.println(String.format("%s,%d,%s,%d,%d,%d,%d,%d,%d,%d,%.3f,%.3f,%d",
+					jitter.name().toLowerCase(Locale.ROOT), clients,
+					recovered ? String.format("%.3f", recoverySeconds) : "timeout", reconnector.getAttempts(),
+					reconnector.getFailures(), peakAttempts.get() * 10, published.get(), delivered, lost, duplicated,
+					100.0 * lost / Math.max(1, delivered), 100.0 * duplicated / Math.max(1, delivered),
+					sessionsLost.get()));
+		} finally {
+			publishing = false;
+			scheduler.shutdownNow();
+			fleet.close();
+			if (publisher.isConnected()) {
+				publisher.disconnect().waitForCompletion(5000);
+			}
+			publisher.close();
+		}
+	}
+
+	/**
+	 * @return a listener that subscribes the client again if the broker did
+	 *         not have its session when it reconnected
+	 */
+	private MqttActionListener resubscriber(final MqttAsyncClient client, final String topic) {
+		return new MqttActionListener() {
+
+			@Override
+			public void onSuccess(IMqttToken asyncActionToken) {
+				if (asyncActionToken.getSessionPresent()) {
+					return;
+				}
+				sessionsLost.incrementAndGet();
+				try {
+					client.subscribe(topic, qos);
+				} catch (MqttException e) {
+					System.err.println("Exception Occured whilst resubscribing " + client.getClientId() + ": "
+							+ e.getMessage());
+				}
+			}
+
+			@Override
+			public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+				// The reconnector tries again
+			}
+		};
+	}
+
+	/**
+	 * Publishes numbered messages round robin across the clients' topics at
+	 * a steady rate until {@link #publishing} is cleared.
+	 */
+	private Thread startPublishing(final MqttAsyncClient publisher, final int clients, final int rate) {
+		publishing = true;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				long sequence = 0;
+				while (publishing) {
+					long due = start + sequence * 1000000000L / rate;
+					long wait = due - System.nanoTime();
+					if (wait > 0) {
+						try {
+							TimeUnit.NANOSECONDS.sleep(wait);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					MqttMessage message = new MqttMessage(
+							Long.toString(sequence).getBytes(StandardCharsets.UTF_8), qos, false);
+					try {
+						publisher.publish(topicPrefix + (sequence % clients), message, sequence, ackListener);
+						published.incrementAndGet();
+					} catch (MqttException e) {
+						publishFailures.incrementAndGet();
+					}
+					sequence++;
+				}
+			}
+		}, "ReconnectStormPublisher");
+		thread.start();
+		return thread;
+	}
+
+	private static boolean allConnected(ClientFleet fleet) {
+		for (MqttAsyncClient client : fleet.getClients()) {
+			if (!client.isConnected()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of messages the broker acknowledged that have not
+	 *         been received
+	 */
+	private synchronized long countLost() {
+		BitSet lost = (BitSet) acked.clone();
+		lost.andNot(received);
+		return lost.cardinality();
+	}
+
+	/**
+	 * @param args
+	 *            - Optional arguments, see {@link SampleOptions}
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		SampleUtilities.printBanner("MQTTv5 Reconnect Storm Example Java App");
+		new ReconnectStormExample(SampleOptions.parse(args));
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+		int sequence = Integer.parseInt(new String(message.getPayload(), StandardCharsets.UTF_8));
+		synchronized (this) {
+			if (received.get(sequence)) {
+				duplicates++;
+			} else {
+				received.set(sequence);
+			}
+		}
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+	}
+
+	@Override
+	public void disconnected(MqttDisconnectResponse disconnectResponse) {
+		// The reconnector takes it from here
+	}
+
+	@Override
+	public void mqttErrorOccured(MqttException exception) {
+		System.out.println("MQTT Error Occured: " + exception.getMessage());
+	}
+}
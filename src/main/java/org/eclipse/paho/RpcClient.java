@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+
+/**
+ * Makes request/response calls over MQTT with the MQTTv5 response topic and
+ * correlation data, see {@link RpcServer} for the other end.
+ *
+ * Every call shares the one response topic, subscribed to once by
+ * {@link #start()}, so any number of calls can be outstanding on a single
+ * connection. Each request carries an 8 byte correlation ID and its pending
+ * call is kept in a {@link ConcurrentHashMap} under that ID until either the
+ * response arrives or the timeout fires; whichever comes second is ignored.
+ * Responses are picked out of the client's messages by the callback returned
+ * from {@link #wrap(MqttCallback)}, which must be set on the client.
+ *
+ * The returned futures are completed on the client's callback thread, so do
+ * any slow work on a response with the <code>...Async</code> stages.
+ */
+public class RpcClient {
+
+	private final MqttAsyncClient asyncClient;
+	private final String responseTopic;
+	private final int qos;
+	private final long timeoutMillis;
+	private final ScheduledThreadPoolExecutor timer;
+
+	private final ConcurrentHashMap<Long, PendingCall> pending = new ConcurrentHashMap<>();
+	private final AtomicLong nextCorrelationId = new AtomicLong();
+
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong responses = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong unmatched = new AtomicLong();
+	private final LatencyHistogram latency = new LatencyHistogram("call->response");
+
+	/**
+	 * @param asyncClient
+	 *            the client to make calls with
+	 * @param responseTopic
+	 *            the topic every response comes back on, it should be unique to
+	 *            this client
+	 * @param qos
+	 *            the QoS of the requests and the response subscription
+	 * @param timeoutMillis
+	 *            the default time to wait for a response
+	 */
+	public RpcClient(final MqttAsyncClient asyncClient, String responseTopic, int qos, long timeoutMillis) {
+		this.asyncClient = asyncClient;
+		this.responseTopic = responseTopic;
+		this.qos = qos;
+		this.timeoutMillis = timeoutMillis;
+		this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "RpcClient-" + asyncClient.getClientId());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// Most calls are answered long before they time out
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Subscribes to the response topic, the client must already be connected.
+	 *
+	 * @throws MqttException
+	 *             if the subscribe failed
+	 */
+	public void start() throws MqttException {
+		asyncClient.subscribe(responseTopic, qos).waitForCompletion();
+	}
+
+	/**
+	 * Calls with the default timeout.
+	 *
+	 * @see #call(String, MqttMessage, long, TimeUnit)
+	 */
+	public CompletableFuture<MqttMessage> call(String topic, byte[] payload) throws InterruptedException {
+		MqttMessage request = new MqttMessage(payload);
+		return call(topic, request, timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Publishes a request and returns straight away. The request's response
+	 * topic and correlation data are overwritten, and its QoS is set to this
+	 * client's. If the client's own in-flight limit is reached this waits for
+	 * room.
+	 *
+	 * @param topic
+	 *            the topic the server is listening on
+	 * @param request
+	 *            the request, it must not be reused until the call completes
+	 * @param timeout
+	 *            how long to wait for the response
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return a future completed with the response, or exceptionally with a
+	 *         {@link TimeoutException}, the publish failure or a
+	 *         {@link RemoteException}
+	 * @throws InterruptedException
+	 *             if interrupted whilst waiting for room to publish
+	 */
+	public CompletableFuture<MqttMessage> call(String topic, MqttMessage request, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		final long correlationId = nextCorrelationId.incrementAndGet();
+		final PendingCall call = new PendingCall();
+		pending.put(correlationId, call);
+		calls.incrementAndGet();
+		call.timeout = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (pending.remove(correlationId) != null) {
+					timeouts.incrementAndGet();
+					call.future.completeExceptionally(
+							new TimeoutException("No response to call " + correlationId + " on " + responseTopic));
+				}
+			}
+		}, timeout, unit);
+
+		request.setQos(qos);
+		request.setResponseTopic(responseTopic);
+		request.setCorrelationData(ByteBuffer.allocate(8).putLong(correlationId).array());
+		MqttActionListener listener = new MqttActionListener() {
+
+			@Override
+			public void onSuccess(IMqttToken asyncActionToken) {
+			}
+
+			@Override
+			public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+				fail(correlationId, exception);
+			}
+		};
+		while (true) {
+			try {
+				asyncClient.publish(topic, request, null, listener);
+				break;
+			} catch (MqttException e) {
+				// Most likely the client's own in-flight limit, give it a moment
+				if (!asyncClient.isConnected()) {
+					fail(correlationId, e);
+					break;
+				}
+				Thread.sleep(1);
+			}
+		}
+		return call.future;
+	}
+
+	private void fail(long correlationId, Throwable exception) {
+		PendingCall call = pending.remove(correlationId);
+		if (call != null) {
+			call.timeout.cancel(false);
+			failures.incrementAndGet();
+			call.future.completeExceptionally(exception);
+		}
+	}
+
+	/**
+	 * @param callback
+	 *            the sample's callback, or null
+	 * @return a callback that completes calls with the messages arriving on the
+	 *         response topic and passes everything else on
+	 */
+	public MqttCallback wrap(final MqttCallback callback) {
+		return new MqttCallback() {
+
+			@Override
+			public void messageArrived(String topic, MqttMessage message) throws Exception {
+				if (responseTopic.equals(topic)) {
+					complete(message);
+				} else if (callback != null) {
+					callback.messageArrived(topic, message);
+				}
+			}
+
+			@Override
+			public void deliveryComplete(IMqttDeliveryToken token) {
+				if (callback != null) {
+					callback.deliveryComplete(token);
+				}
+			}
+
+			@Override
+			public void disconnected(MqttDisconnectResponse disconnectResponse) {
+				if (callback != null) {
+					callback.disconnected(disconnectResponse);
+				}
+			}
+
+			@Override
+			public void mqttErrorOccured(MqttException exception) {
+				if (callback != null) {
+					callback.mqttErrorOccured(exception);
+				}
+			}
+		};
+	}
+
+	private void complete(MqttMessage response) {
+		byte[] correlationData = response.getCorrelationData();
+		PendingCall call = correlationData == null || correlationData.length != 8 ? null
+				: pending.remove(ByteBuffer.wrap(correlationData).getLong());
+		if (call == null) {
+			// Already timed out, or not one of ours
+			unmatched.incrementAndGet();
+			return;
+		}
+		call.timeout.cancel(false);
+		latency.record(System.nanoTime() - call.start);
+		responses.incrementAndGet();
+		String error = errorOf(response);
+		if (error != null) {
+			call.future.completeExceptionally(new RemoteException(error));
+		} else {
+			call.future.complete(response);
+		}
+	}
+
+	private static String errorOf(MqttMessage response) {
+		List<UserProperty> userProperties = response.getUserProperties();
+		if (userProperties != null) {
+			for (UserProperty property : userProperties) {
+				if (RpcServer.ERROR_PROPERTY.equals(property.getKey())) {
+					return property.getValue();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Fails every outstanding call and stops the timeout timer.
+	 */
+	public void close() {
+		for (Long correlationId : pending.keySet()) {
+			fail(correlationId, new IllegalStateException("RpcClient closed"));
+		}
+		timer.shutdownNow();
+	}
+
+	public String getResponseTopic() {
+		return responseTopic;
+	}
+
+	/**
+	 * @return the number of calls waiting for a response
+	 */
+	public int getOutstanding() {
+		return pending.size();
+	}
+
+	public long getCalls() {
+		return calls.get();
+	}
+
+	public long getResponses() {
+		return responses.get();
+	}
+
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return the number of responses that arrived after their call had timed
+	 *         out, or that were not for a call from this client
+	 */
+	public long getUnmatched() {
+		return unmatched.get();
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	@Override
+	public String toString() {
+		return "RpcClient: [calls=" + calls.get() + ", responses=" + responses.get() + ", outstanding="
+				+ pending.size() + ", timeouts=" + timeouts.get() + ", failures=" + failures.get() + ", unmatched="
+				+ unmatched.get() + ", " + latency + "]";
+	}
+
+	/**
+	 * The server's handler threw whilst handling the request.
+	 */
+	public static class RemoteException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		public RemoteException(String message) {
+			super(message);
+		}
+	}
+
+	private static class PendingCall {
+		final long start = System.nanoTime();
+		final CompletableFuture<MqttMessage> future = new CompletableFuture<>();
+		volatile ScheduledFuture<?> timeout;
+	}
+}
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Sample MQTTv5 Eclipse Paho Java App.
+ * https://github.com/jpwsutton/EclipsePahoJavaMQTTv5Example
+ * 
+ * This example connects an {@link RpcServer} that echoes every request back
+ * and an {@link RpcClient} that calls it, then for each number of outstanding
+ * calls keeps that many requests pipelined on the one connection and prints
+ * the calls per second and the call to response latency as CSV.
+ * 
+ * With QoS 1 the client's own in-flight limit, rather than the number of
+ * outstanding calls, bounds how many requests are on the wire at once, so the
+ * default is QoS 0 and a lost request shows up as a timeout.
+ * 
+ * Options (see {@link SampleOptions}):
+ * <ul>
+ * <li><code>--outstanding</code> - comma separated numbers of calls to keep
+ * outstanding (default 1,100,10000)</li>
+ * <li><code>--calls</code> - calls to make at each level (default 50000)</li>
+ * <li><code>--size</code> - request payload size in bytes (default 32)</li>
+ * <li><code>--rpcTimeout</code> - milliseconds to wait for each response
+ * (default 10000)</li>
+ * <li><code>--qos</code> - QoS of the requests and responses (default 0)</li>
+ * </ul>
+ */
+public class RpcExample implements MqttCallback {
+
+	String requestTopic = "rpc/echo";
+	String broker = "tcp://localhost:1883";
+	String clientId = "PahoJavaV5Client";
+	int qos = 0;
+
+	public RpcExample(SampleOptions options) throws InterruptedException {
+		broker = SampleUtilities.resolveBroker(options, broker);
+		qos = options.getInt("qos", qos);
+		String[] levels = options.getString("outstanding", "1,100,10000").split(",");
+		int calls = options.getInt("calls", 50000);
+		int size = options.getInt("size", 32);
+		long timeoutMillis = options.getLong("rpcTimeout", 10000);
+
+		MqttAsyncClient serverClient = null;
+		MqttAsyncClient callerClient = null;
+		try {
+			MqttConnectionOptions conOpts = new MqttConnectionOptionsBuilder().serverURI(broker).cleanSession(true)
+					.build();
+			serverClient = new MqttAsyncClient(broker, clientId + "-rpc-server", new MemoryPersistence());
+			RpcServer server = new RpcServer(serverClient, requestTopic, qos, new RpcServer.RequestHandler() {
+				@Override
+				public MqttMessage handle(String topic, MqttMessage request) {
+					return new MqttMessage(request.getPayload());
+				}
+			});
+			serverClient.setCallback(server.wrap(this));
+			serverClient.connect(conOpts).waitForCompletion(30000);
+			server.start();
+
+			callerClient = new MqttAsyncClient(broker, clientId + "-rpc-client", new MemoryPersistence());
+			RpcClient client = new RpcClient(callerClient, "rpc/response/" + callerClient.getClientId(), qos,
+					timeoutMillis);
+			callerClient.setCallback(client.wrap(this));
+			callerClient.connect(conOpts).waitForCompletion(30000);
+			client.start();
+
+			System.out.println("outstanding,calls,callsPerSecond,p50Micros,p99Micros,p999Micros,maxMicros,"
+					+ "timeouts,failures,unmatched");
+			for (String level : levels) {
+				run(client, Integer.parseInt(level.trim()), calls, size, timeoutMillis);
+			}
+			client.close();
+			server.close();
+			System.out.println(server);
+		} catch (MqttException e) {
+			System.err.println("Exception Occured whilst running the RPC example: " + e.getMessage());
+		} finally {
+			close(callerClient);
+			close(serverClient);
+		}
+		System.exit(0);
+	}
+
+	private void run(RpcClient client, int outstanding, int calls, int size, long timeoutMillis)
+			throws InterruptedException {
+		client.getLatency().reset();
+		long timeoutsBefore = client.getTimeouts();
+		long failuresBefore = client.getFailures();
+		long unmatchedBefore = client.getUnmatched();
+
+		final Semaphore permits = new Semaphore(outstanding);
+		BiConsumer<MqttMessage, Throwable> release = new BiConsumer<MqttMessage, Throwable>() {
+			@Override
+			public void accept(MqttMessage response, Throwable exception) {
+				permits.release();
+			}
+		};
+		byte[] payload = new byte[size];
+		long start = System.nanoTime();
+		for (int i = 0; i < calls; i++) {
+			permits.acquire();
+			client.call(requestTopic, new MqttMessage(payload), timeoutMillis, TimeUnit.MILLISECONDS)
+					.whenComplete(release);
+		}
+		if (!permits.tryAcquire(outstanding, timeoutMillis * 2, TimeUnit.MILLISECONDS)) {
+			System.err.println("Timed out with " + client.getOutstanding() + " calls still outstanding.");
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		LatencyHistogram latency = client.getLatency();
+		System.out.println(String.format("%d,%d,%.1f,%d,%d,%d,%d,%d,%d,%d", outstanding, calls,
+				latency.getTotalCount() / seconds, latency.getValueAtPercentile(50) / 1000,
+				latency.getValueAtPercentile(99) / 1000, latency.getValueAtPercentile(99.9) / 1000,
+				latency.getMaxValue() / 1000, client.getTimeouts() - timeoutsBefore,
+				client.getFailures() - failuresBefore, client.getUnmatched() - unmatchedBefore));
+	}
+
+	private static void close(MqttAsyncClient asyncClient) {
+		if (asyncClient == null) {
+			return;
+		}
+		try {
+			if (asyncClient.isConnected()) {
+				asyncClient.disconnect().waitForCompletion(5000);
+			}
+			asyncClient.close();
+		} catch (MqttException e) {
+			System.err.println("Exception Occured whilst closing " + asyncClient.getClientId() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param args
+	 *            - Optional arguments, see {@link SampleOptions}
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		SampleUtilities.printBanner("MQTTv5 RPC Example Java App");
+		new RpcExample(SampleOptions.parse(args));
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+		// Requests and responses are taken by the RPC wrappers
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+	}
+
+	@Override
+	public void disconnected(MqttDisconnectResponse disconnectResponse) {
+		System.out.println("Disconnection Complete! : " + disconnectResponse.toString());
+	}
+
+	@Override
+	public void mqttErrorOccured(MqttException exception) {
+		System.out.println("MQTT Error Occured: " + exception.getMessage());
+	}
+}
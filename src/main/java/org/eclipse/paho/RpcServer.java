@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+
+/**
+ * Answers the requests made by an {@link RpcClient}.
+ *
+ * Requests arriving on the request filter are passed to the
+ * {@link RequestHandler}, and whatever it returns is published to the
+ * request's response topic with the request's correlation data copied across.
+ * If the handler throws, the response instead carries an
+ * {@value #ERROR_PROPERTY} user property with the exception's message, which
+ * the caller sees as an {@link RpcClient.RemoteException}. A request with no
+ * response topic is handled but not answered.
+ *
+ * The handler runs on the client's callback thread, so requests are handled
+ * one at a time and in order; hand slow work to an executor and publish the
+ * response with {@link #respond(MqttMessage, MqttMessage)} instead. Responses
+ * are published from the server's own thread, in the order they were handled.
+ * At QoS 1 and 2 publishing waits whenever the client's in-flight limit is
+ * reached, and room is only made when an acknowledgement is read, which the
+ * client cannot do whilst its callback thread is blocked waiting for room.
+ */
+public class RpcServer {
+
+	/** The user property carrying a handler's failure back to the caller. */
+	public static final String ERROR_PROPERTY = "error";
+
+	/**
+	 * Turns a request into its response.
+	 */
+	public interface RequestHandler {
+
+		/**
+		 * @param topic
+		 *            the topic the request arrived on
+		 * @param request
+		 *            the request
+		 * @return the response, or null to not answer
+		 * @throws Exception
+		 *             if the request failed, the message is sent to the caller
+		 */
+		MqttMessage handle(String topic, MqttMessage request) throws Exception;
+	}
+
+	private final MqttAsyncClient asyncClient;
+	private final String requestFilter;
+	private final int qos;
+	private final RequestHandler handler;
+	private final ExecutorService responder;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong responses = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param asyncClient
+	 *            the client to serve on
+	 * @param requestFilter
+	 *            the topic filter requests arrive on
+	 * @param qos
+	 *            the QoS of the request subscription and the responses
+	 * @param handler
+	 *            answers each request
+	 */
+	public RpcServer(final MqttAsyncClient asyncClient, String requestFilter, int qos, RequestHandler handler) {
+		this.asyncClient = asyncClient;
+		this.requestFilter = requestFilter;
+		this.qos = qos;
+		this.handler = handler;
+		this.responder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "RpcServer-" + asyncClient.getClientId());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Subscribes to the request filter, the client must already be connected.
+	 *
+	 * @throws MqttException
+	 *             if the subscribe failed
+	 */
+	public void start() throws MqttException {
+		asyncClient.subscribe(requestFilter, qos).waitForCompletion();
+	}
+
+	/**
+	 * @param callback
+	 *            the sample's callback, or null
+	 * @return a callback that answers the messages matching the request filter
+	 *         and passes everything else on
+	 */
+	public MqttCallback wrap(final MqttCallback callback) {
+		return new MqttCallback() {
+
+			@Override
+			public void messageArrived(String topic, MqttMessage message) throws Exception {
+				if (TopicDispatcher.matches(requestFilter, topic)) {
+					handle(topic, message);
+				} else if (callback != null) {
+					callback.messageArrived(topic, message);
+				}
+			}
+
+			@Override
+			public void deliveryComplete(IMqttDeliveryToken token) {
+				if (callback != null) {
+					callback.deliveryComplete(token);
+				}
+			}
+
+			@Override
+			public void disconnected(MqttDisconnectResponse disconnectResponse) {
+				if (callback != null) {
+					callback.disconnected(disconnectResponse);
+				}
+			}
+
+			@Override
+			public void mqttErrorOccured(MqttException exception) {
+				if (callback != null) {
+					callback.mqttErrorOccured(exception);
+				}
+			}
+		};
+	}
+
+	private void handle(String topic, final MqttMessage request) {
+		requests.incrementAndGet();
+		MqttMessage response;
+		try {
+			response = handler.handle(topic, request);
+		} catch (Exception e) {
+			errors.incrementAndGet();
+			response = new MqttMessage(new byte[0]);
+			ArrayList<UserProperty> userProperties = new ArrayList<>();
+			userProperties.add(new UserProperty(ERROR_PROPERTY, String.valueOf(e.getMessage())));
+			response.setUserProperties(userProperties);
+		}
+		if (response == null || request.getResponseTopic() == null) {
+			return;
+		}
+		final MqttMessage reply = response;
+		try {
+			responder.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						respond(request, reply);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Closed
+			failures.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Publishes a response to a request, waiting for room if the client's
+	 * in-flight limit has been reached. Never call this from the client's
+	 * callback thread with a QoS above 0, see the class description.
+	 *
+	 * @param request
+	 *            the request being answered
+	 * @param response
+	 *            the response, its QoS is set to this server's
+	 * @throws InterruptedException
+	 *             if interrupted whilst waiting for room to publish
+	 */
+	public void respond(MqttMessage request, MqttMessage response) throws InterruptedException {
+		String responseTopic = request.getResponseTopic();
+		if (responseTopic == null) {
+			return;
+		}
+		response.setQos(qos);
+		response.setCorrelationData(request.getCorrelationData());
+		while (true) {
+			try {
+				asyncClient.publish(responseTopic, response);
+				responses.incrementAndGet();
+				return;
+			} catch (MqttException e) {
+				// Most likely the client's own in-flight limit, give it a moment
+				if (!asyncClient.isConnected()) {
+					failures.incrementAndGet();
+					System.err.println("Exception Occured whilst responding on " + responseTopic + ": "
+							+ e.getMessage());
+					return;
+				}
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	/**
+	 * Stops publishing responses, waiting for those already handled to be
+	 * sent.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted whilst waiting
+	 */
+	public void close() throws InterruptedException {
+		responder.shutdown();
+		if (!responder.awaitTermination(5, TimeUnit.SECONDS)) {
+			responder.shutdownNow();
+		}
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getResponses() {
+		return responses.get();
+	}
+
+	/**
+	 * @return the number of requests the handler threw on
+	 */
+	public long getErrors() {
+		return errors.get();
+	}
+
+	/**
+	 * @return the number of responses that could not be published
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	@Override
+	public String toString() {
+		return "RpcServer: [requestFilter=" + requestFilter + ", requests=" + requests.get() + ", responses="
+				+ responses.get() + ", errors=" + errors.get() + ", failures=" + failures.get() + "]";
+	}
+}
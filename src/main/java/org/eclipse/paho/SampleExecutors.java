@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executors that the samples can run their callback processing
+ * and blocking token waits on.
+ *
+ * <ul>
+ * <li><code>platform</code> - a fixed pool of platform threads.</li>
+ * <li><code>virtual</code> - a new virtual thread per task. Virtual threads
+ * need Java 21 or later, this project targets Java 8 so they are looked up
+ * reflectively.</li>
+ * </ul>
+ */
+public class SampleExecutors {
+
+	public static final String PLATFORM = "platform";
+	public static final String VIRTUAL = "virtual";
+
+	private SampleExecutors() {
+	}
+
+	/**
+	 * @param mode
+	 *            {@link #PLATFORM} or {@link #VIRTUAL}
+	 * @param platformThreads
+	 *            the size of the pool for the platform mode
+	 * @return a new executor, which the caller must shut down
+	 * @throws IllegalArgumentException
+	 *             if the mode is unknown
+	 * @throws UnsupportedOperationException
+	 *             if virtual threads are not available on this JVM
+	 */
+	public static ExecutorService create(String mode, int platformThreads) {
+		if (PLATFORM.equals(mode)) {
+			return Executors.newFixedThreadPool(platformThreads);
+		}
+		if (VIRTUAL.equals(mode)) {
+			return newVirtualThreadPerTaskExecutor();
+		}
+		throw new IllegalArgumentException("Unknown executor mode: " + mode);
+	}
+
+	/**
+	 * @return true if this JVM supports virtual threads
+	 */
+	public static boolean isVirtualAvailable() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException e) {
+			throw new UnsupportedOperationException(
+					"Virtual threads need Java 21 or later, this is " + System.getProperty("java.version"));
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Could not create a virtual thread executor", e);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A very small command line parser for the sample applications.
+ *
+ * Options are given as <code>--name value</code> or <code>--name=value</code>.
+ * An option with no value (e.g. <code>--load</code>) is treated as a flag.
+ */
+public class SampleOptions {
+
+	private final Map<String, String> options = new HashMap<>();
+
+	/**
+	 * Parses the command line arguments passed to a sample's main method.
+	 *
+	 * @param args
+	 *            the arguments to parse
+	 * @return the parsed options
+	 * @throws IllegalArgumentException
+	 *             if an argument does not start with <code>--</code>
+	 */
+	public static SampleOptions parse(String[] args) {
+		SampleOptions sampleOptions = new SampleOptions();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (!arg.startsWith("--")) {
+				throw new IllegalArgumentException("Unexpected argument: " + arg);
+			}
+			String name = arg.substring(2);
+			String value = "true";
+			int equals = name.indexOf('=');
+			if (equals >= 0) {
+				value = name.substring(equals + 1);
+				name = name.substring(0, equals);
+			} else if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+				value = args[++i];
+			}
+			sampleOptions.options.put(name, value);
+		}
+		return sampleOptions;
+	}
+
+	/**
+	 * @param name
+	 *            the option name, without the leading <code>--</code>
+	 * @return true if the option was given on the command line
+	 */
+	public boolean has(String name) {
+		return options.containsKey(name);
+	}
+
+	public String getString(String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	public int getInt(String name, int defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	public long getLong(String name, long defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+
+	public double getDouble(String name, double defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : Double.parseDouble(value);
+	}
+
+	@Override
+	public String toString() {
+		return "SampleOptions " + options;
+	}
+}
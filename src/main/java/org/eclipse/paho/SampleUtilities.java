@@ -1,11 +1,57 @@
 package org.eclipse.paho;
 
+import java.io.IOException;
 import java.util.Collections;
 
+import org.eclipse.paho.broker.EmbeddedBroker;
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
 import org.eclipse.paho.mqttv5.client.MqttToken;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
 
 public class SampleUtilities {
 
+	private static AsyncConsole console;
+	private static int consoleCapacity = 8192;
+	private static AsyncConsole.Level consoleLevel = AsyncConsole.Level.INFO;
+	private static int consoleSampleRate = 1;
+	private static EmbeddedBroker embeddedBroker;
+
+	/**
+	 * @return the console that callbacks should print through, see
+	 *         {@link AsyncConsole}. It is started on first use, so its thread
+	 *         is not created until there is something to print.
+	 */
+	public static synchronized AsyncConsole console() {
+		if (console == null) {
+			console = new AsyncConsole(consoleCapacity, consoleLevel, consoleSampleRate, System.out);
+		}
+		return console;
+	}
+
+	/**
+	 * Sets up the console from the command line options:
+	 * <ul>
+	 * <li><code>--logLevel</code> - DEBUG, INFO, WARN or ERROR (default
+	 * INFO)</li>
+	 * <li><code>--logSample</code> - print 1 in N DEBUG and INFO lines (default
+	 * 1)</li>
+	 * <li><code>--logBuffer</code> - lines to buffer before dropping them
+	 * (default 8192)</li>
+	 * </ul>
+	 * 
+	 * @param options
+	 *            the sample's command line options
+	 */
+	public static synchronized void configureConsole(SampleOptions options) {
+		consoleCapacity = options.getInt("logBuffer", 8192);
+		consoleLevel = AsyncConsole.Level.valueOf(options.getString("logLevel", "INFO").toUpperCase());
+		consoleSampleRate = options.getInt("logSample", 1);
+		if (console != null) {
+			console.close();
+			console = null;
+		}
+	}
+
 	/**
 	 * Prints the details of a Subscription Acknowledgement sent by the server.
 	 * 
@@ -13,11 +59,22 @@ public class SampleUtilities {
 	 *            the {@link MqttToken} containing the MQTTv5 SUBACK
 	 */
 	public static void printSubscriptionDetails(MqttToken token) {
-		System.out.println("Subscription Response: [reasonString=" + token.getReasonString() + ", user"
-				+ ", userDefinedProperties=" + token.getUserDefinedProperties());
+		System.out.println(formatSubscriptionDetails(token));
 
 	}
 
+	/**
+	 * Formats the details of a Subscription Acknowledgement sent by the server.
+	 * 
+	 * @param token
+	 *            the {@link MqttToken} containing the MQTTv5 SUBACK
+	 * @return the details as a String
+	 */
+	public static String formatSubscriptionDetails(MqttToken token) {
+		return "Subscription Response: [reasonString=" + token.getReasonString() + ", user"
+				+ ", userDefinedProperties=" + token.getUserDefinedProperties();
+	}
+
 	/**
 	 * Prints the details of a Connection Acknowledgement sent by the server.
 	 * 
@@ -25,7 +82,18 @@ public class SampleUtilities {
 	 *            the {@link MqttToken} containing the MQTTv5 CONNACK
 	 */
 	public static void printConnectDetails(MqttToken token) {
-		System.out.println("Connection Response: [ sessionPresent=" + token.getSessionPresent() + ", responseInfo="
+		System.out.println(formatConnectDetails(token));
+	}
+
+	/**
+	 * Formats the details of a Connection Acknowledgement sent by the server.
+	 * 
+	 * @param token
+	 *            the {@link MqttToken} containing the MQTTv5 CONNACK
+	 * @return the details as a String
+	 */
+	public static String formatConnectDetails(MqttToken token) {
+		return "Connection Response: [ sessionPresent=" + token.getSessionPresent() + ", responseInfo="
 				+ token.getResponseInformation() + ", assignedClientIdentifier=" + token.getAssignedClientIdentifier()
 				+ ", serverKeepAlive=" + token.getServerKeepAlive() + ", authMethod=" + token.getAuthMethod()
 				+ ", authData=" + token.getAuthData() + ", serverReference=" + token.getServerReference()
@@ -35,9 +103,59 @@ public class SampleUtilities {
 				+ token.getUserDefinedProperties() + ", maxPacketSize=" + token.getMaximumPacketSize()
 				+ ", wildcardSubscriptionAvailable=" + token.isWildcardSubscriptionAvailable()
 				+ ", subscriptionIdentifiersAvailable=" + token.isSubscriptionIdentifiersAvailable()
-				+ ", sharedSubscriptionAvailable=" + token.isSharedSubscriptionAvailable() + "]");
+				+ ", sharedSubscriptionAvailable=" + token.isSharedSubscriptionAvailable() + "]";
 	}
 	
+	/**
+	 * Works out which broker a sample should connect to. If
+	 * <code>--embedded</code> was given an {@link EmbeddedBroker} is started on
+	 * an ephemeral port, otherwise <code>--broker</code> is used if given.
+	 * 
+	 * @param options
+	 *            the sample's command line options
+	 * @param defaultBroker
+	 *            the broker to use if none was given
+	 * @return the URI of the broker to connect to
+	 */
+	public static synchronized String resolveBroker(SampleOptions options, String defaultBroker) {
+		if (options.has("embedded")) {
+			try {
+				EmbeddedBroker broker = EmbeddedBroker.start(0);
+				System.out.println("Started embedded broker: " + broker.getServerURI());
+				embeddedBroker = broker;
+				return broker.getServerURI();
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not start the embedded broker", e);
+			}
+		}
+		return options.getString("broker", defaultBroker);
+	}
+
+	/**
+	 * @return the broker started by {@link #resolveBroker}, or null if the
+	 *         sample is using an external broker
+	 */
+	public static synchronized EmbeddedBroker embeddedBroker() {
+		return embeddedBroker;
+	}
+
+	/**
+	 * Creates the persistence a sample's client should use:
+	 * <code>--persistence log</code> keeps in-flight messages in a
+	 * {@link LogPersistence} so they survive a restart, otherwise they are only
+	 * kept in memory.
+	 * 
+	 * @param options
+	 *            the sample's command line options
+	 * @return the persistence to pass to the client
+	 */
+	public static MqttClientPersistence createPersistence(SampleOptions options) {
+		if ("log".equals(options.getString("persistence", "memory"))) {
+			return new LogPersistence(options);
+		}
+		return new MemoryPersistence();
+	}
+
 	/**
 	 * Prints a simple Banner
 	 * @param bannerText the text to display
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Sample MQTTv5 Eclipse Paho Java App.
+ * https://github.com/jpwsutton/EclipsePahoJavaMQTTv5Example
+ * 
+ * This example opens many connections from one JVM to find out how many a
+ * single process can sustain. Each client gets its own client ID, the connects
+ * are staggered so the broker does not see a storm of CONNECTs, and then every
+ * client publishes to and receives from its own topic.
+ * 
+ * At the end it reports the connect time distribution, the aggregate
+ * throughput, the number of threads and the heap used per connection.
+ * Publishes the client refused outright are reported as <code>rejected</code>
+ * and are not waited for; <code>failed</code> only counts publishes the client
+ * accepted and later failed. The per client figures only count clients that
+ * were connected once the connects finished, and a client whose subscribe
+ * fails is reported and left out of the publishing.
+ * 
+ * Options (see {@link SampleOptions}):
+ * <ul>
+ * <li><code>--clients</code> - number of connections (default 100)</li>
+ * <li><code>--stagger</code> - microseconds between starting each connect
+ * (default 1000)</li>
+ * <li><code>--threads</code> - size of the executor shared by all of the
+ * clients, 0 for each client to use its own threads (default 0). The client
+ * runs its comms loops as long lived tasks, so a pool smaller than three
+ * threads per client will stall.</li>
+ * <li><code>--messages</code> - messages published by each client (default
+ * 10)</li>
+ * <li><code>--qos</code> - QoS to publish and subscribe at (default 1)</li>
+ * </ul>
+ * 
+ * @author James Sutton (2017) - Initial Contribution
+ */
+public class ScaleOutExample implements MqttCallback {
+
+	// ------ Client Configuration ------ //
+	String topicPrefix = "scale/";
+	String broker = "tcp://localhost:1883";
+	String clientId = "PahoJavaV5Client";
+	int qos = 1;
+
+	private final AtomicLong published = new AtomicLong();
+	// Accepted by the client but failed later, so comparable with arrived
+	private final AtomicLong failed = new AtomicLong();
+	// Refused by the client, never counted as expected
+	private long rejected;
+	private final AtomicLong arrived = new AtomicLong();
+	private final AtomicLong disconnects = new AtomicLong();
+
+	private final MqttActionListener publishListener = new MqttActionListener() {
+
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			published.incrementAndGet();
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			failed.incrementAndGet();
+		}
+	};
+
+	public ScaleOutExample(SampleOptions options) throws InterruptedException {
+		broker = SampleUtilities.resolveBroker(options, broker);
+		qos = options.getInt("qos", qos);
+		int clients = options.getInt("clients", 100);
+		long staggerMicros = options.getLong("stagger", 1000);
+		int threads = options.getInt("threads", 0);
+		int messages = options.getInt("messages", 10);
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		int threadsBefore = threadBean.getThreadCount();
+		long heapBefore = usedHeap();
+
+		ScheduledExecutorService executor = null;
+		if (threads > 0) {
+			if (threads < clients * 3) {
+				System.out.println("Warning: " + threads + " threads may not be enough for " + clients + " clients.");
+			}
+			executor = Executors.newScheduledThreadPool(threads);
+		}
+
+		ClientFleet fleet = null;
+		try {
+			fleet = new ClientFleet(broker, clientId, clients, executor, this);
+			MqttConnectionOptions conOpts = new MqttConnectionOptionsBuilder().serverURI(broker).cleanSession(true)
+					.automaticReconnect(false).build();
+
+			System.out.println("Connecting " + clients + " clients to " + broker + ", one every " + staggerMicros
+					+ "us");
+			long connectStart = System.nanoTime();
+			if (!fleet.connectAll(conOpts, staggerMicros, 5, TimeUnit.MINUTES)) {
+				System.err.println("Timed out waiting for the clients to connect.");
+			}
+			long connectElapsed = System.nanoTime() - connectStart;
+			int threadsConnected = threadBean.getThreadCount();
+			long heapConnected = usedHeap();
+
+			int connectedClients = 0;
+			int subscribeFailures = 0;
+			boolean[] subscribed = new boolean[fleet.size()];
+			for (int i = 0; i < fleet.size(); i++) {
+				MqttAsyncClient client = fleet.getClients().get(i);
+				if (!client.isConnected()) {
+					continue; // Failed, or still pending when connectAll timed out
+				}
+				connectedClients++;
+				try {
+					client.subscribe(topicPrefix + i, qos).waitForCompletion(30000);
+					subscribed[i] = true;
+				} catch (MqttException e) {
+					subscribeFailures++;
+				}
+			}
+
+			long expected = 0;
+			long publishStart = System.nanoTime();
+			for (int round = 0; round < messages; round++) {
+				for (int i = 0; i < fleet.size(); i++) {
+					MqttAsyncClient client = fleet.getClients().get(i);
+					if (!subscribed[i] || !client.isConnected()) {
+						continue;
+					}
+					try {
+						client.publish(topicPrefix + i, new MqttMessage(("" + round).getBytes(), qos, false), null,
+								publishListener);
+						expected++;
+					} catch (MqttException e) {
+						rejected++;
+					}
+				}
+			}
+			long deadline = System.currentTimeMillis() + 30000;
+			while (arrived.get() + failed.get() < expected && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			double publishSeconds = (System.nanoTime() - publishStart) / 1e9;
+
+			System.out.println(String.format(
+					"Connect Report: [clients=%d, failed=%d, notConnected=%d, subscribeFailed=%d, elapsed=%.3fs, %s]",
+					connectedClients, fleet.getConnectFailures(), clients - connectedClients, subscribeFailures,
+					connectElapsed / 1e9, fleet.getConnectTimes()));
+			System.out.println(String.format(
+					"Throughput Report: [expected=%d, published=%d, arrived=%d, failed=%d, rejected=%d, messagesPerSecond=%.1f]",
+					expected, published.get(), arrived.get(), failed.get(), rejected, arrived.get() / publishSeconds));
+			System.out.println(String.format(
+					"Footprint Report: [threads=%d, threadsPerClient=%.2f, peakThreads=%d, heapPerClientBytes=%d, disconnects=%d]",
+					threadsConnected, (threadsConnected - threadsBefore) / (double) Math.max(1, connectedClients),
+					threadBean.getPeakThreadCount(), (heapConnected - heapBefore) / Math.max(1, connectedClients),
+					disconnects.get()));
+		} catch (MqttException e) {
+			System.err.println("Exception Occured whilst running the clients: ");
+			e.printStackTrace();
+		} finally {
+			if (fleet != null) {
+				fleet.close();
+			}
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+		System.exit(0);
+	}
+
+	private static long usedHeap() {
+		MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+		memoryBean.gc();
+		return memoryBean.getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * @param args
+	 *            - Optional arguments, see {@link SampleOptions}
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		SampleUtilities.printBanner("MQTTv5 Scale Out Example Java App");
+		new ScaleOutExample(SampleOptions.parse(args));
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+		arrived.incrementAndGet();
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+		// Counted by the publish listener
+	}
+
+	@Override
+	public void disconnected(MqttDisconnectResponse disconnectResponse) {
+		disconnects.incrementAndGet();
+	}
+
+	@Override
+	public void mqttErrorOccured(MqttException exception) {
+		System.out.println("MQTT Error Occured: " + exception.getMessage());
+	}
+}
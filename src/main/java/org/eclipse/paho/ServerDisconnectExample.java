@@ -18,7 +18,6 @@ import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
 import org.eclipse.paho.mqttv5.client.IMqttToken;
 import org.eclipse.paho.mqttv5.client.MqttActionListener;
 import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
-import org.eclipse.paho.mqttv5.client.MqttCallback;
 import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
 import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
 import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
@@ -45,11 +44,14 @@ import org.eclipse.paho.mqttv5.common.packet.UserProperty;
  * <li>More to come, watch this space!</li>
  * </ul>
  * 
+ * {@link ReconnectStormExample} has the broker disconnect a whole fleet of
+ * clients this way and measures how they recover.
+ * 
  * - - - -
  * 
  * @author James Sutton (2017) - Initial Contribution
  */
-public class ServerDisconnectExample implements MqttCallback {
+public class ServerDisconnectExample extends PayloadViewCallback {
 
 	// ------ Client Configuration ------ //
 	String topic = "cmd/disconnectWithRC";
@@ -64,9 +66,13 @@ public class ServerDisconnectExample implements MqttCallback {
 	/**
 	 * Main App Class, nothing fancy here.
 	 * 
+	 * @param options
+	 *            the command line options, <code>--broker</code> or
+	 *            <code>--embedded</code> choose the broker
 	 * @throws InterruptedException
 	 */
-	public ServerDisconnectExample() throws InterruptedException {
+	public ServerDisconnectExample(SampleOptions options) throws InterruptedException {
+		broker = SampleUtilities.resolveBroker(options, broker);
 		try {
 			MemoryPersistence persistence = new MemoryPersistence();
 			this.asyncClient = new MqttAsyncClient(broker, clientId, persistence);
@@ -78,7 +84,7 @@ public class ServerDisconnectExample implements MqttCallback {
 			MqttConnectionOptions conOpts = conOptsBuilder.serverURI(broker).cleanSession(true)
 					.sessionExpiryInterval(120).automaticReconnect(false)
 					.topicAliasMaximum(1000).userProperties(userProps).build();
-			asyncClient.setCallback(this);
+			asyncClient.setCallback(ClientMetrics.register(clientId, asyncClient, options).wrap(this));
 
 			System.out.println("Connecting to broker: " + broker);
 
@@ -123,36 +129,40 @@ public class ServerDisconnectExample implements MqttCallback {
 
 	/**
 	 * @param args
-	 *            - No arguments to process
+	 *            - Optional arguments, see {@link SampleOptions}
 	 * @throws InterruptedException
 	 */
 	public static void main(String[] args) throws InterruptedException {
 		SampleUtilities.printBanner("MQTTv5 Sample Java App");
-		new ServerDisconnectExample();
+		SampleOptions options = SampleOptions.parse(args);
+		SampleUtilities.configureConsole(options);
+		new ServerDisconnectExample(options);
 
 	}
 
 	@Override
-	public void messageArrived(String topic, MqttMessage message) throws Exception {
-		String incomingMessage = new String(message.getPayload());
-		System.out.println("Incoming Message: [" + incomingMessage + "], topic:[" + topic + "]");
+	public void payloadArrived(String topic, PayloadView payload) throws Exception {
+		AsyncConsole console = SampleUtilities.console();
+		if (console.shouldLog(AsyncConsole.Level.INFO)) {
+			console.log(AsyncConsole.Level.INFO, "Incoming Message: [" + payload.text() + "], topic:[" + topic + "]");
+		}
 	}
 
 	@Override
 	public void deliveryComplete(IMqttDeliveryToken token) {
-		System.out.println("Delivery Complete: Message ID: " + token.getMessageId());
+		SampleUtilities.console().info("Delivery Complete: Message ID: " + token.getMessageId());
 
 	}
 
 	@Override
 	public void disconnected(MqttDisconnectResponse disconnectResponse) {
-		System.out.println("Disconnection Complete! : " + disconnectResponse.toString());
+		SampleUtilities.console().warn("Disconnection Complete! : " + disconnectResponse.toString());
 		System.exit(0);
 
 	}
 
 	@Override
 	public void mqttErrorOccured(MqttException exception) {
-		System.out.println("MQTT Error Occured: " + exception.getMessage());
+		SampleUtilities.console().error("MQTT Error Occured: " + exception.getMessage());
 	}
 }
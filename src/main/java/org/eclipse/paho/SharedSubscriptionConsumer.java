@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * One member of a shared subscription consumer group.
+ *
+ * The client subscribes to <code>$share/{group}/{filter}</code>, so the broker
+ * spreads the group's messages across its members, and hands each message to
+ * a {@link StripedExecutor} keyed by topic: messages on the same topic are
+ * processed one at a time in the order this member received them, while
+ * different topics are processed in parallel.
+ *
+ * The client acknowledges a message when <code>messageArrived</code> returns,
+ * which here is once the message has been queued on its lane. The lanes are
+ * bounded, so at most <code>workers x laneCapacity</code> messages are ever
+ * acknowledged but not yet processed, and when they are full
+ * <code>messageArrived</code> blocks, which stops the client reading and lets
+ * the broker's flow control hold back further messages. {@link #close()}
+ * disconnects before draining the lanes, so every acknowledged message is
+ * processed.
+ */
+public class SharedSubscriptionConsumer implements MqttCallback {
+
+	/**
+	 * Processes a message on its lane.
+	 */
+	public interface MessageHandler {
+		void handle(String topic, MqttMessage message) throws Exception;
+	}
+
+	private final MqttAsyncClient asyncClient;
+	private final String sharedFilter;
+	private final int qos;
+	private final StripedExecutor lanes;
+	private final MessageHandler handler;
+	private final AtomicLong processed = new AtomicLong();
+
+	/**
+	 * @param broker
+	 *            the broker to connect to
+	 * @param clientId
+	 *            this member's client ID
+	 * @param group
+	 *            the share name
+	 * @param topicFilter
+	 *            the filter to share
+	 * @param qos
+	 *            the subscription QoS
+	 * @param workers
+	 *            the number of lanes to process messages on
+	 * @param laneCapacity
+	 *            the number of messages each lane can queue
+	 * @param handler
+	 *            processes each message
+	 * @throws MqttException
+	 *             if the client could not be created
+	 */
+	public SharedSubscriptionConsumer(String broker, String clientId, String group, String topicFilter, int qos,
+			int workers, int laneCapacity, MessageHandler handler) throws MqttException {
+		this.asyncClient = new MqttAsyncClient(broker, clientId, new MemoryPersistence());
+		this.sharedFilter = "$share/" + group + "/" + topicFilter;
+		this.qos = qos;
+		this.lanes = new StripedExecutor(workers, laneCapacity, clientId);
+		this.handler = handler;
+		asyncClient.setCallback(this);
+	}
+
+	/**
+	 * Connects and joins the shared subscription.
+	 *
+	 * @param conOpts
+	 *            the connection options
+	 * @throws MqttException
+	 *             if the connect or subscribe failed
+	 */
+	public void start(MqttConnectionOptions conOpts) throws MqttException {
+		asyncClient.connect(conOpts).waitForCompletion();
+		asyncClient.subscribe(sharedFilter, qos).waitForCompletion();
+	}
+
+	/**
+	 * Disconnects, then waits for every message already received to be
+	 * processed.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait for the lanes to drain
+	 * @param unit
+	 *            the unit of the timeout
+	 * @throws InterruptedException
+	 *             if interrupted whilst waiting
+	 */
+	public void close(long timeout, TimeUnit unit) throws InterruptedException {
+		try {
+			if (asyncClient.isConnected()) {
+				asyncClient.disconnect().waitForCompletion(5000);
+			}
+			asyncClient.close();
+		} catch (MqttException e) {
+			System.err.println("Exception Occured whilst closing " + asyncClient.getClientId() + ": " + e.getMessage());
+		}
+		if (!lanes.awaitIdle(timeout, unit)) {
+			System.err.println("Timed out with " + lanes.getQueued() + " messages still to process.");
+		}
+		lanes.shutdown();
+	}
+
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	/**
+	 * @return the number of times a full lane held up the client
+	 */
+	public long getBlocked() {
+		return lanes.getBlocked();
+	}
+
+	@Override
+	public void messageArrived(final String topic, final MqttMessage message) throws Exception {
+		lanes.execute(topic, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					handler.handle(topic, message);
+				} catch (Exception e) {
+					System.err.println("Exception Occured whilst processing a message: " + e.getMessage());
+				}
+				processed.incrementAndGet();
+			}
+		});
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+	}
+
+	@Override
+	public void disconnected(MqttDisconnectResponse disconnectResponse) {
+		SampleUtilities.console().warn("Disconnection Complete! : " + disconnectResponse.toString());
+	}
+
+	@Override
+	public void mqttErrorOccured(MqttException exception) {
+		SampleUtilities.console().error("MQTT Error Occured: " + exception.getMessage());
+	}
+}
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Sample MQTTv5 Eclipse Paho Java App.
+ * https://github.com/jpwsutton/EclipsePahoJavaMQTTv5Example
+ * 
+ * This example shows how a shared subscription consumer group scales. For
+ * each combination of group size and worker count, that many
+ * {@link SharedSubscriptionConsumer}s join a new share, a publisher sends a
+ * burst of messages spread over a set of topics, and the time until every
+ * message has been processed gives the group's consumption throughput.
+ * 
+ * Every payload carries a per-topic sequence number, and each member checks
+ * that it processes the messages for a topic in increasing order.
+ * 
+ * Options (see {@link SampleOptions}):
+ * <ul>
+ * <li><code>--consumers</code> - comma separated group sizes (default
+ * 1,2,4)</li>
+ * <li><code>--workers</code> - comma separated worker lanes per consumer
+ * (default 1,4,16)</li>
+ * <li><code>--messages</code> - messages in each burst (default 20000)</li>
+ * <li><code>--topics</code> - number of topics the burst is spread over
+ * (default 64)</li>
+ * <li><code>--work</code> - microseconds each message takes to process
+ * (default 200)</li>
+ * <li><code>--laneCapacity</code> - messages each lane can queue (default
+ * 100)</li>
+ * <li><code>--inflight</code> - maximum unacknowledged publishes (default
+ * 100)</li>
+ * <li><code>--qos</code> - QoS to publish and subscribe at (default 1)</li>
+ * </ul>
+ * 
+ * @author James Sutton (2017) - Initial Contribution
+ */
+public class SharedSubscriptionExample implements MqttCallback {
+
+	private static final byte[] SEQUENCE_TEMPLATE = new byte[8];
+
+	// ------ Client Configuration ------ //
+	String topicPrefix = "shared/";
+	String broker = "tcp://localhost:1883";
+	String clientId = "PahoJavaV5Client";
+	int qos = 1;
+
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong orderViolations = new AtomicLong();
+
+	public SharedSubscriptionExample(SampleOptions options) throws InterruptedException {
+		broker = SampleUtilities.resolveBroker(options, broker);
+		qos = options.getInt("qos", qos);
+		String[] consumerCounts = options.getString("consumers", "1,2,4").split(",");
+		String[] workerCounts = options.getString("workers", "1,4,16").split(",");
+		int messages = options.getInt("messages", 20000);
+		int topics = options.getInt("topics", 64);
+		long workNanos = TimeUnit.MICROSECONDS.toNanos(options.getLong("work", 200));
+		int laneCapacity = options.getInt("laneCapacity", 100);
+		int inFlight = options.getInt("inflight", 100);
+
+		try {
+			MqttAsyncClient publisher = new MqttAsyncClient(broker, clientId + "-publisher", new MemoryPersistence());
+			publisher.setCallback(this);
+			MqttConnectionOptions conOpts = new MqttConnectionOptionsBuilder().serverURI(broker).cleanSession(true)
+					.build();
+			publisher.connect(conOpts).waitForCompletion();
+
+			List<String> results = new ArrayList<>();
+			for (String consumerCount : consumerCounts) {
+				for (String workerCount : workerCounts) {
+					results.add(run(publisher, conOpts, Integer.parseInt(consumerCount.trim()),
+							Integer.parseInt(workerCount.trim()), messages, topics, workNanos, laneCapacity, inFlight));
+				}
+			}
+
+			System.out.println("consumers,workers,messages,seconds,messagesPerSecond,orderViolations,blockedHandoffs");
+			for (String result : results) {
+				System.out.println(result);
+			}
+			publisher.disconnect().waitForCompletion();
+			publisher.close();
+		} catch (MqttException e) {
+			System.err.println("Exception Occured whilst connecting the client: ");
+			e.printStackTrace();
+		}
+		System.exit(0);
+	}
+
+	private String run(MqttAsyncClient publisher, MqttConnectionOptions conOpts, int consumerCount, int workers,
+			int messages, int topics, final long workNanos, int laneCapacity, int inFlight)
+			throws MqttException, InterruptedException {
+		processed.set(0);
+		orderViolations.set(0);
+		String group = "group-" + consumerCount + "x" + workers;
+		List<SharedSubscriptionConsumer> consumers = new ArrayList<>();
+		for (int i = 0; i < consumerCount; i++) {
+			SharedSubscriptionConsumer consumer = new SharedSubscriptionConsumer(broker, clientId + "-" + group + "-" + i,
+					group, topicPrefix + "#", qos, workers, laneCapacity, new SequenceChecker(workNanos));
+			consumer.start(conOpts);
+			consumers.add(consumer);
+		}
+
+		MessagePool pool = new MessagePool(inFlight, 8);
+		long[] sequences = new long[topics];
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			int topic = i % topics;
+			PooledMessage message = pool.acquire();
+			writeSequence(message.setFixedPayload(SEQUENCE_TEMPLATE), ++sequences[topic]);
+			message.setQos(qos);
+			try {
+				publisher.publish(topicPrefix + topic, message, message, MessagePool.RELEASER);
+			} catch (MqttException e) {
+				message.release();
+				System.err.println("Exception Occured whilst publishing: " + e.getMessage());
+			}
+		}
+		long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+		while (processed.get() < messages && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		long blocked = 0;
+		for (SharedSubscriptionConsumer consumer : consumers) {
+			consumer.close(30, TimeUnit.SECONDS);
+			blocked += consumer.getBlocked();
+		}
+		return String.format("%d,%d,%d,%.3f,%.1f,%d,%d", consumerCount, workers, processed.get(), seconds,
+				processed.get() / seconds, orderViolations.get(), blocked);
+	}
+
+	private static void writeSequence(byte[] payload, long sequence) {
+		for (int i = 7; i >= 0; i--) {
+			payload[i] = (byte) sequence;
+			sequence >>>= 8;
+		}
+	}
+
+	private static long readSequence(byte[] payload) {
+		long sequence = 0;
+		for (int i = 0; i < 8; i++) {
+			sequence = (sequence << 8) | (payload[i] & 0xFF);
+		}
+		return sequence;
+	}
+
+	/**
+	 * Stands in for real processing, and checks that each topic's messages
+	 * arrive in order at this member.
+	 */
+	private class SequenceChecker implements SharedSubscriptionConsumer.MessageHandler {
+
+		private final long workNanos;
+		private final ConcurrentHashMap<String, Long> lastSequences = new ConcurrentHashMap<>();
+
+		SequenceChecker(long workNanos) {
+			this.workNanos = workNanos;
+		}
+
+		@Override
+		public void handle(String topic, MqttMessage message) {
+			long sequence = readSequence(message.getPayload());
+			Long last = lastSequences.put(topic, sequence);
+			if (last != null && sequence <= last) {
+				orderViolations.incrementAndGet();
+			}
+			if (workNanos > 0) {
+				LockSupport.parkNanos(workNanos);
+			}
+			processed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param args
+	 *            - Optional arguments, see {@link SampleOptions}
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		SampleUtilities.printBanner("MQTTv5 Shared Subscription Example Java App");
+		SampleOptions options = SampleOptions.parse(args);
+		SampleUtilities.configureConsole(options);
+		new SharedSubscriptionExample(options);
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+	}
+
+	@Override
+	public void disconnected(MqttDisconnectResponse disconnectResponse) {
+		SampleUtilities.console().warn("Disconnection Complete! : " + disconnectResponse.toString());
+	}
+
+	@Override
+	public void mqttErrorOccured(MqttException exception) {
+		SampleUtilities.console().error("MQTT Error Occured: " + exception.getMessage());
+	}
+}
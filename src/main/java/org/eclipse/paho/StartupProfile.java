@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+
+/**
+ * Times the phases of a short lived run, from the JVM starting to the CONNACK
+ * arriving.
+ *
+ * Each call to {@link #mark(String)} records the end of a phase, and
+ * {@link #report()} prints how long each took, starting with the time from the
+ * JVM being launched to the first mark (normally the start of
+ * <code>main</code>), which is where class data sharing helps. Marking only
+ * reads the clock, the management beans needed for the report are not loaded
+ * until it is asked for, so leaving the marks in costs nothing.
+ */
+public class StartupProfile {
+
+	private static final int MAX_MARKS = 16;
+
+	private static final String[] phases = new String[MAX_MARKS];
+	private static final long[] nanos = new long[MAX_MARKS];
+	private static int marks;
+	private static long firstMarkMillis;
+
+	private StartupProfile() {
+	}
+
+	/**
+	 * Records that a phase has finished, only the first mark of each phase
+	 * counts.
+	 *
+	 * @param phase
+	 *            the name of the phase
+	 */
+	public static synchronized void mark(String phase) {
+		if (marks == MAX_MARKS) {
+			return;
+		}
+		for (int i = 0; i < marks; i++) {
+			if (phases[i].equals(phase)) {
+				return;
+			}
+		}
+		if (marks == 0) {
+			firstMarkMillis = System.currentTimeMillis();
+		}
+		phases[marks] = phase;
+		nanos[marks] = System.nanoTime();
+		marks++;
+	}
+
+	/**
+	 * @return the time taken by each phase so far, the classes loaded, and the
+	 *         class data sharing archive if one was given
+	 */
+	public static synchronized String report() {
+		if (marks == 0) {
+			return "Startup Report: [no marks]";
+		}
+		RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+		long jvmToFirst = firstMarkMillis - runtime.getStartTime();
+		StringBuilder report = new StringBuilder("Startup Report: [jvm->").append(phases[0]).append('=')
+				.append(jvmToFirst).append("ms");
+		for (int i = 1; i < marks; i++) {
+			report.append(", ").append(phases[i - 1]).append("->").append(phases[i]).append('=')
+					.append(String.format("%.1f", (nanos[i] - nanos[i - 1]) / 1e6)).append("ms");
+		}
+		report.append(", total=").append(String.format("%.1f", jvmToFirst + (nanos[marks - 1] - nanos[0]) / 1e6))
+				.append("ms, loadedClasses=").append(ManagementFactory.getClassLoadingMXBean().getLoadedClassCount())
+				.append(", sharedArchive=").append(sharedArchive(runtime)).append(']');
+		return report.toString();
+	}
+
+	private static String sharedArchive(RuntimeMXBean runtime) {
+		for (String argument : runtime.getInputArguments()) {
+			if (argument.startsWith("-XX:SharedArchiveFile=")) {
+				return argument.substring("-XX:SharedArchiveFile=".length());
+			}
+		}
+		return "default";
+	}
+}
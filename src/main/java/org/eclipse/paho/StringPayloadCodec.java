@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Sends Strings as UTF-8 payloads with the content type
+ * {@value #CONTENT_TYPE}, as the examples always have.
+ */
+public class StringPayloadCodec implements PayloadCodec<String> {
+
+	public static final String CONTENT_TYPE = "string";
+
+	@Override
+	public String getContentType() {
+		return CONTENT_TYPE;
+	}
+
+	@Override
+	public void encode(String value, MqttMessage message) {
+		message.setPayload(value.getBytes(StandardCharsets.UTF_8));
+		message.setContentType(CONTENT_TYPE);
+		message.setUTF8(true);
+	}
+
+	@Override
+	public String decode(MqttMessage message) {
+		return new String(message.getPayload(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks on a fixed set of single threaded lanes, choosing the lane by
+ * hashing a key, so that tasks with the same key (e.g. the same topic) run one
+ * at a time in the order they were submitted while tasks with different keys
+ * run in parallel.
+ *
+ * Each lane has a bounded queue. When a lane is full {@link #execute} blocks
+ * the submitting thread, so a slow lane pushes back on whoever is feeding it
+ * instead of queueing without limit.
+ */
+public class StripedExecutor {
+
+	private static final Runnable STOP = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+
+	private final List<BlockingQueue<Runnable>> lanes;
+	private final Thread[] threads;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicLong blocked = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param laneCount
+	 *            the number of lanes, each with its own thread
+	 * @param laneCapacity
+	 *            the number of tasks each lane can queue before
+	 *            {@link #execute} blocks
+	 * @param name
+	 *            prefix for the lane thread names
+	 */
+	public StripedExecutor(int laneCount, int laneCapacity, String name) {
+		lanes = new ArrayList<>(laneCount);
+		threads = new Thread[laneCount];
+		for (int i = 0; i < laneCount; i++) {
+			final BlockingQueue<Runnable> lane = new ArrayBlockingQueue<>(laneCapacity);
+			lanes.add(lane);
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runLane(lane);
+				}
+			}, name + "-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	private void runLane(BlockingQueue<Runnable> lane) {
+		while (true) {
+			Runnable task;
+			try {
+				task = lane.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (task == STOP) {
+				return;
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				failures.incrementAndGet();
+				System.err.println("Exception Occured whilst running a task: " + e.getMessage());
+			}
+			queued.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Queues a task on the lane for its key, waiting for space if the lane is
+	 * full.
+	 *
+	 * @param key
+	 *            tasks with equal keys run in submission order
+	 * @param task
+	 *            the task to run
+	 * @throws InterruptedException
+	 *             if interrupted whilst waiting for space
+	 */
+	public void execute(Object key, Runnable task) throws InterruptedException {
+		BlockingQueue<Runnable> lane = lanes.get(laneFor(key));
+		queued.incrementAndGet();
+		if (!lane.offer(task)) {
+			blocked.incrementAndGet();
+			try {
+				lane.put(task);
+			} catch (InterruptedException e) {
+				queued.decrementAndGet();
+				throw e;
+			}
+		}
+	}
+
+	int laneFor(Object key) {
+		int hash = key.hashCode();
+		// Spread the bits as HashMap does, topic hashes differ mostly at the end
+		return ((hash ^ (hash >>> 16)) & 0x7FFFFFFF) % lanes.size();
+	}
+
+	/**
+	 * Waits for every queued task to finish.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return true if every task finished in time
+	 * @throws InterruptedException
+	 *             if interrupted whilst waiting
+	 */
+	public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (queued.get() > 0) {
+			if (System.nanoTime() > deadline) {
+				return false;
+			}
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	/**
+	 * Lets every lane finish the tasks it has queued, then stops its thread.
+	 */
+	public void shutdown() {
+		for (BlockingQueue<Runnable> lane : lanes) {
+			try {
+				lane.put(STOP);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of tasks queued or running
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the number of times {@link #execute} had to wait for a full lane
+	 */
+	public long getBlocked() {
+		return blocked.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	public int getLaneCount() {
+		return lanes.size();
+	}
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A hashed timing wheel that hands back items once their deadline has passed.
+ *
+ * Time is split into ticks and each tick maps onto one of a fixed number of
+ * slots, so adding an item and expiring it are both constant time however
+ * many items are waiting. An item whose deadline is more than a full turn of
+ * the wheel away simply stays in its slot for the extra turns. Deadlines are
+ * only looked at when the wheel is advanced, so items come back up to one
+ * tick late, never early.
+ *
+ * Slots are only allocated once something is added to them. Not thread safe,
+ * the caller must synchronize.
+ *
+ * @param <T>
+ *            the type of the items
+ */
+public class TimingWheel<T> {
+
+	private final long tickMillis;
+	private final List<Entry<T>>[] slots;
+	private long currentTick;
+	private int size;
+
+	/**
+	 * @param tickMillis
+	 *            the resolution of the wheel
+	 * @param slotCount
+	 *            the number of slots, one turn of the wheel is
+	 *            <code>tickMillis * slotCount</code>
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public TimingWheel(long tickMillis, int slotCount) {
+		this.tickMillis = tickMillis;
+		this.slots = new List[slotCount];
+		this.currentTick = System.currentTimeMillis() / tickMillis - 1;
+	}
+
+	/**
+	 * @param deadlineMillis
+	 *            when the item expires, in {@link System#currentTimeMillis()}
+	 *            time
+	 * @param item
+	 *            the item to return once the deadline has passed
+	 */
+	public void add(long deadlineMillis, T item) {
+		// The first tick starting at or after the deadline, so that every item
+		// in a slot has expired by the time it is reached. Ticks already
+		// advanced past are picked up by the next advance.
+		long tick = Math.max((deadlineMillis + tickMillis - 1) / tickMillis, currentTick + 1);
+		int slot = (int) (tick % slots.length);
+		if (slots[slot] == null) {
+			slots[slot] = new ArrayList<>();
+		}
+		slots[slot].add(new Entry<>(deadlineMillis, item));
+		size++;
+	}
+
+	/**
+	 * Removes every item whose deadline is at or before now.
+	 *
+	 * @param nowMillis
+	 *            the current time, in {@link System#currentTimeMillis()} time
+	 * @param expired
+	 *            the list to add the expired items to, in no particular order
+	 */
+	public void advance(long nowMillis, List<T> expired) {
+		long nowTick = nowMillis / tickMillis;
+		// However long it has been, each slot only needs looking at once
+		long from = Math.max(currentTick + 1, nowTick - slots.length + 1);
+		for (long tick = from; tick <= nowTick && size > 0; tick++) {
+			List<Entry<T>> slot = slots[(int) (tick % slots.length)];
+			if (slot == null) {
+				continue;
+			}
+			Iterator<Entry<T>> entries = slot.iterator();
+			while (entries.hasNext()) {
+				Entry<T> entry = entries.next();
+				if (entry.deadline <= nowMillis) {
+					entries.remove();
+					expired.add(entry.item);
+					size--;
+				}
+			}
+		}
+		currentTick = Math.max(currentTick, nowTick);
+	}
+
+	/**
+	 * @return the number of items waiting to expire
+	 */
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		for (List<Entry<T>> slot : slots) {
+			if (slot != null) {
+				slot.clear();
+			}
+		}
+		size = 0;
+	}
+
+	private static class Entry<T> {
+		final long deadline;
+		final T item;
+
+		Entry(long deadline, T item) {
+			this.deadline = deadline;
+			this.item = item;
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.broker.EmbeddedBroker;
+import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.MqttToken;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Sample MQTTv5 Eclipse Paho Java App.
+ * https://github.com/jpwsutton/EclipsePahoJavaMQTTv5Example
+ * 
+ * This example publishes across a large set of long, hierarchical device
+ * topics to show how much bandwidth Topic Aliases save. Aliases are managed in
+ * a {@link TopicAliasTable} bounded by the Topic Alias Maximum the server sent
+ * in its CONNACK, and set on each message through {@link PooledMessage}: a
+ * topic that has an alias is published with an empty topic name and just the
+ * alias, otherwise the topic is sent along with the alias it is given.
+ * 
+ * The same sequence of messages is published twice, without and then with
+ * aliases, and each run is reported as CSV. The bytes on the wire are
+ * estimated from the MQTTv5 packet layout, and when run with
+ * <code>--embedded</code> the bytes the broker actually received are
+ * reported alongside them. If the client refuses an empty topic name the
+ * topic is sent in full with its alias, which saves nothing, and the
+ * <code>fullTopic</code> column counts how often that happened.
+ * 
+ * Options (see {@link SampleOptions}):
+ * <ul>
+ * <li><code>--topics</code> - number of distinct topics (default 5000)</li>
+ * <li><code>--messages</code> - number of messages to publish (default
+ * 100000)</li>
+ * <li><code>--skew</code> - Zipf exponent for picking topics, 0 for uniform
+ * (default 1.0)</li>
+ * <li><code>--size</code> - payload size in bytes (default 16)</li>
+ * <li><code>--inflight</code> - maximum unacknowledged publishes (default
+ * 10)</li>
+ * </ul>
+ * 
+ * @author James Sutton (2017) - Initial Contribution
+ */
+public class TopicAliasExample implements MqttCallback {
+
+	// Topic Alias property: one byte identifier and a two byte integer
+	private static final int TOPIC_ALIAS_PROPERTY_LENGTH = 3;
+
+	// ------ Client Configuration ------ //
+	String broker = "tcp://localhost:1883";
+	String clientId = "PahoJavaV5Client";
+	int qos = 1;
+
+	private boolean emptyTopicAllowed = true;
+	private long fullTopic;
+
+	public TopicAliasExample(SampleOptions options) throws InterruptedException {
+		broker = SampleUtilities.resolveBroker(options, broker);
+		qos = options.getInt("qos", qos);
+		int topicCount = options.getInt("topics", 5000);
+		long messages = options.getLong("messages", 100000);
+		double skew = options.getDouble("skew", 1.0);
+		int payloadSize = options.getInt("size", 16);
+		int inFlight = options.getInt("inflight", 10);
+
+		String[] topics = new String[topicCount];
+		int[] topicLengths = new int[topicCount];
+		for (int i = 0; i < topicCount; i++) {
+			topics[i] = String.format("devices/site-%02d/building-%d/floor-%02d/device-%05d/telemetry", i % 37,
+					i % 5, i % 23, i);
+			topicLengths[i] = topics[i].getBytes(StandardCharsets.UTF_8).length;
+		}
+		double[] cumulative = zipf(topicCount, skew);
+
+		try {
+			MqttAsyncClient asyncClient = new MqttAsyncClient(broker, clientId, new MemoryPersistence());
+			asyncClient.setCallback(this);
+			MqttConnectionOptions conOpts = new MqttConnectionOptionsBuilder().serverURI(broker).cleanSession(true)
+					.topicAliasMaximum(1000).build();
+			IMqttToken connectToken = asyncClient.connect(conOpts);
+			connectToken.waitForCompletion();
+			Integer serverMaximum = ((MqttToken) connectToken).getTopicAliasMaximum();
+			TopicAliasTable aliasTable = new TopicAliasTable(serverMaximum == null ? 0 : serverMaximum);
+			System.out.println("Publishing " + messages + " messages across " + topicCount
+					+ " topics, server Topic Alias Maximum is " + aliasTable.getMaximum());
+
+			EmbeddedBroker embeddedBroker = SampleUtilities.embeddedBroker();
+			MessagePool pool = new MessagePool(inFlight, payloadSize);
+			System.out.println("aliases,messages,estimatedBytes,brokerBytes,brokerBytesPerMessage,fullTopic");
+			for (boolean aliases : new boolean[] { false, true }) {
+				long brokerBytesBefore = embeddedBroker == null ? 0 : embeddedBroker.getBytesIn();
+				fullTopic = 0;
+				long estimated = publishAll(asyncClient, pool, topics, topicLengths, cumulative, messages,
+						payloadSize, aliases ? aliasTable : null);
+				pool.awaitIdle(30, TimeUnit.SECONDS);
+				String observed = "n/a,n/a";
+				if (embeddedBroker != null) {
+					long brokerBytes = embeddedBroker.getBytesIn() - brokerBytesBefore;
+					observed = brokerBytes + "," + String.format("%.1f", (double) brokerBytes / messages);
+				}
+				System.out.println(aliases + "," + messages + "," + estimated + "," + observed + "," + fullTopic);
+			}
+			System.out.println(aliasTable);
+			asyncClient.disconnect().waitForCompletion();
+			asyncClient.close();
+		} catch (MqttException e) {
+			System.err.println("Exception Occured whilst connecting the client: ");
+			e.printStackTrace();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Publishes the messages, with aliases from the table if there is one.
+	 * 
+	 * @return the estimated bytes on the wire
+	 */
+	private long publishAll(MqttAsyncClient asyncClient, MessagePool pool, String[] topics, int[] topicLengths,
+			double[] cumulative, long messages, int payloadSize, TopicAliasTable aliasTable)
+			throws InterruptedException {
+		byte[] payload = new byte[payloadSize];
+		Random random = new Random(42); // The same topics for both runs
+		long estimated = 0;
+		for (long i = 0; i < messages; i++) {
+			int index = pick(cumulative, random.nextDouble());
+			int alias = aliasTable == null ? 0 : aliasTable.aliasFor(topics[index]);
+			PooledMessage message = pool.acquire();
+			message.setFixedPayload(payload);
+			message.setQos(qos);
+			message.setAlias(alias == 0 ? null : Math.abs(alias));
+			String topic = topics[index];
+			if (alias > 0 && emptyTopicAllowed) {
+				topic = "";
+			}
+			try {
+				try {
+					asyncClient.publish(topic, message, message, MessagePool.RELEASER);
+				} catch (IllegalArgumentException e) {
+					// The client checks the topic name itself and wants one
+					emptyTopicAllowed = false;
+					topic = topics[index];
+					asyncClient.publish(topic, message, message, MessagePool.RELEASER);
+				}
+			} catch (MqttException e) {
+				message.release();
+				System.err.println("Exception Occured whilst publishing: " + e.getMessage());
+				continue;
+			}
+			if (alias > 0 && !topic.isEmpty()) {
+				fullTopic++;
+			}
+			estimated += PacketSizes.publishPacketSize(topic.isEmpty() ? 0 : topicLengths[index], qos,
+					alias == 0 ? 0 : TOPIC_ALIAS_PROPERTY_LENGTH, payloadSize);
+		}
+		return estimated;
+	}
+
+	private static double[] zipf(int count, double exponent) {
+		double[] cumulative = new double[count];
+		double total = 0;
+		for (int i = 0; i < count; i++) {
+			total += 1 / Math.pow(i + 1, exponent);
+			cumulative[i] = total;
+		}
+		for (int i = 0; i < count; i++) {
+			cumulative[i] /= total;
+		}
+		return cumulative;
+	}
+
+	private static int pick(double[] cumulative, double value) {
+		int low = 0;
+		int high = cumulative.length - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (cumulative[middle] < value) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @param args
+	 *            - Optional arguments, see {@link SampleOptions}
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		SampleUtilities.printBanner("MQTTv5 Topic Alias Example Java App");
+		SampleOptions options = SampleOptions.parse(args);
+		SampleUtilities.configureConsole(options);
+		new TopicAliasExample(options);
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+	}
+
+	@Override
+	public void disconnected(MqttDisconnectResponse disconnectResponse) {
+		SampleUtilities.console().warn("Disconnection Complete! : " + disconnectResponse.toString());
+	}
+
+	@Override
+	public void mqttErrorOccured(MqttException exception) {
+		SampleUtilities.console().error("MQTT Error Occured: " + exception.getMessage());
+	}
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The Topic Aliases a publisher has told the server about, limited to the
+ * Topic Alias Maximum the server sent in its CONNACK.
+ * 
+ * When the table is full the least recently used topic gives up its alias to
+ * the new one, so hot topics keep their aliases while the long tail of rarely
+ * used topics is sent in full.
+ */
+public class TopicAliasTable {
+
+	private final int maximum;
+	private final LinkedHashMap<String, Integer> aliases;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param maximum
+	 *            the server's Topic Alias Maximum, 0 disables aliasing
+	 */
+	public TopicAliasTable(int maximum) {
+		this.maximum = maximum;
+		this.aliases = new LinkedHashMap<>(Math.max(16, maximum * 2), 0.75f, true);
+	}
+
+	/**
+	 * Looks up the alias for a topic, assigning one if it has none.
+	 * 
+	 * @param topic
+	 *            the topic about to be published to
+	 * @return the alias if the topic already had one, so the PUBLISH can be sent
+	 *         with an empty topic name, otherwise the negative of the newly
+	 *         assigned alias, which must be sent along with the topic name. 0 if
+	 *         aliasing is disabled.
+	 */
+	public int aliasFor(String topic) {
+		if (maximum == 0) {
+			return 0;
+		}
+		Integer alias = aliases.get(topic);
+		if (alias != null) {
+			hits++;
+			return alias;
+		}
+		misses++;
+		if (aliases.size() < maximum) {
+			alias = aliases.size() + 1;
+		} else {
+			Iterator<Map.Entry<String, Integer>> eldest = aliases.entrySet().iterator();
+			alias = eldest.next().getValue();
+			eldest.remove();
+			evictions++;
+		}
+		aliases.put(topic, alias);
+		return -alias;
+	}
+
+	public int getMaximum() {
+		return maximum;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public String toString() {
+		return "TopicAliasTable: [maximum=" + maximum + ", size=" + aliases.size() + ", hits=" + hits + ", misses="
+				+ misses + ", evictions=" + evictions + "]";
+	}
+}
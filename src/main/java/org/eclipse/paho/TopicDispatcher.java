@@ -0,0 +1,334 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Routes incoming messages to a handler per topic filter, for clients with
+ * thousands of subscriptions.
+ *
+ * Every filter registered is given its own Subscription Identifier. A message
+ * that arrives carrying one of them goes straight to that filter's handler
+ * with an array lookup, unless another registered filter could match the same
+ * topic (the broker may then send a single copy for both). Every other
+ * message, including all of them when the broker does not support
+ * Subscription Identifiers or the subscriptions were made without them, is
+ * matched against a tree of the filters indexed by topic level, so routing
+ * costs time proportional to the depth of the topic rather than the number of
+ * filters. Either way each matching filter's handler is called once.
+ *
+ * Filters may use the <code>+</code> and <code>#</code> wildcards, and topics
+ * starting with <code>$</code> are not matched by wildcards at the first
+ * level. Register filters before messages start to arrive: dispatching does
+ * not lock, and registering while dispatching is not safe.
+ */
+public class TopicDispatcher {
+
+	/** The largest Subscription Identifier MQTTv5 allows. */
+	public static final int MAX_SUBSCRIPTION_IDENTIFIER = 268435455;
+
+	private static final class Node {
+		final Map<String, Node> children = new HashMap<>();
+		final List<Route> routes = new ArrayList<>(1);
+	}
+
+	private static final class Route {
+		final String filter;
+		final int qos;
+		final int subscriptionIdentifier;
+		final SharedSubscriptionConsumer.MessageHandler handler;
+		boolean overlaps;
+
+		Route(String filter, int qos, int subscriptionIdentifier,
+				SharedSubscriptionConsumer.MessageHandler handler) {
+			this.filter = filter;
+			this.qos = qos;
+			this.subscriptionIdentifier = subscriptionIdentifier;
+			this.handler = handler;
+		}
+	}
+
+	private final Node root = new Node();
+	private final Map<String, Route> routesByFilter = new HashMap<>();
+	private Route[] routesByIdentifier = new Route[16];
+	private int nextIdentifier = 1;
+
+	private final AtomicLong byIdentifier = new AtomicLong();
+	private final AtomicLong byTree = new AtomicLong();
+	private final AtomicLong unmatched = new AtomicLong();
+
+	/**
+	 * Registers a handler for a topic filter, replacing any handler already
+	 * registered for it.
+	 *
+	 * @param filter
+	 *            the topic filter, may use wildcards
+	 * @param qos
+	 *            the QoS to subscribe at
+	 * @param handler
+	 *            called for every message that matches the filter
+	 * @return the Subscription Identifier to subscribe to the filter with
+	 */
+	public synchronized int register(String filter, int qos, SharedSubscriptionConsumer.MessageHandler handler) {
+		if (routesByFilter.containsKey(filter)) {
+			unregister(filter);
+		}
+		if (nextIdentifier > MAX_SUBSCRIPTION_IDENTIFIER) {
+			throw new IllegalStateException("No Subscription Identifiers left");
+		}
+		Route route = new Route(filter, qos, nextIdentifier++, handler);
+		String[] levels = filter.split("/", -1);
+		List<Route> overlapping = new ArrayList<>();
+		collectOverlapping(root, levels, 0, overlapping);
+		if (!overlapping.isEmpty()) {
+			route.overlaps = true;
+			for (Route other : overlapping) {
+				other.overlaps = true;
+			}
+		}
+
+		Node node = root;
+		for (String level : levels) {
+			Node child = node.children.get(level);
+			if (child == null) {
+				child = new Node();
+				node.children.put(level, child);
+			}
+			node = child;
+		}
+		node.routes.add(route);
+		routesByFilter.put(filter, route);
+		if (route.subscriptionIdentifier >= routesByIdentifier.length) {
+			Route[] grown = new Route[routesByIdentifier.length * 2];
+			System.arraycopy(routesByIdentifier, 0, grown, 0, routesByIdentifier.length);
+			routesByIdentifier = grown;
+		}
+		routesByIdentifier[route.subscriptionIdentifier] = route;
+		return route.subscriptionIdentifier;
+	}
+
+	/**
+	 * Removes the handler for a filter. Filters it overlapped keep routing
+	 * through the tree.
+	 *
+	 * @return true if a handler was registered for the filter
+	 */
+	public synchronized boolean unregister(String filter) {
+		Route route = routesByFilter.remove(filter);
+		if (route == null) {
+			return false;
+		}
+		Node node = root;
+		for (String level : filter.split("/", -1)) {
+			node = node.children.get(level);
+		}
+		node.routes.remove(route);
+		routesByIdentifier[route.subscriptionIdentifier] = null;
+		return true;
+	}
+
+	/**
+	 * Collects the routes whose filters could match a topic that the filter
+	 * given as levels also matches.
+	 */
+	private static void collectOverlapping(Node node, String[] levels, int depth, List<Route> overlapping) {
+		if (depth == levels.length) {
+			overlapping.addAll(node.routes);
+			Node multi = node.children.get("#");
+			if (multi != null) {
+				overlapping.addAll(multi.routes);
+			}
+			return;
+		}
+		String level = levels[depth];
+		if ("#".equals(level)) {
+			// Anything from here down, including this level's parent
+			if (depth > 0) {
+				overlapping.addAll(node.routes);
+			}
+			collectAll(node, overlapping);
+			return;
+		}
+		Node multi = node.children.get("#");
+		if (multi != null) {
+			overlapping.addAll(multi.routes);
+		}
+		if ("+".equals(level)) {
+			for (Map.Entry<String, Node> child : node.children.entrySet()) {
+				if (!"#".equals(child.getKey())) {
+					collectOverlapping(child.getValue(), levels, depth + 1, overlapping);
+				}
+			}
+			return;
+		}
+		Node exact = node.children.get(level);
+		if (exact != null) {
+			collectOverlapping(exact, levels, depth + 1, overlapping);
+		}
+		Node single = node.children.get("+");
+		if (single != null) {
+			collectOverlapping(single, levels, depth + 1, overlapping);
+		}
+	}
+
+	private static void collectAll(Node node, List<Route> routes) {
+		for (Node child : node.children.values()) {
+			routes.addAll(child.routes);
+			collectAll(child, routes);
+		}
+	}
+
+	/**
+	 * Subscribes the client to every registered filter, a hundred to a
+	 * SUBSCRIBE, and waits for each SUBACK.
+	 *
+	 * @param asyncClient
+	 *            a connected client
+	 * @throws MqttException
+	 *             if a subscribe fails
+	 */
+	public void subscribeAll(MqttAsyncClient asyncClient) throws MqttException {
+		List<Route> routes;
+		synchronized (this) {
+			routes = new ArrayList<>(routesByFilter.values());
+		}
+		for (int start = 0; start < routes.size(); start += 100) {
+			int count = Math.min(100, routes.size() - start);
+			String[] filters = new String[count];
+			int[] qos = new int[count];
+			for (int i = 0; i < count; i++) {
+				filters[i] = routes.get(start + i).filter;
+				qos[i] = routes.get(start + i).qos;
+			}
+			asyncClient.subscribe(filters, qos).waitForCompletion(30000);
+		}
+	}
+
+	/**
+	 * Passes a message to the handlers of the filters it matches, using the
+	 * Subscription Identifier it arrived with if it has one.
+	 *
+	 * @return false if no filter matched
+	 * @throws Exception
+	 *             if a handler throws
+	 */
+	public boolean dispatch(String topic, MqttMessage message) throws Exception {
+		return dispatch(topic, message.getSubscriptionIdentifier(), message);
+	}
+
+	/**
+	 * @param topic
+	 *            the topic the message arrived on
+	 * @param subscriptionIdentifier
+	 *            the Subscription Identifier it arrived with, or null
+	 * @param message
+	 *            the message
+	 * @return false if no filter matched
+	 * @throws Exception
+	 *             if a handler throws
+	 */
+	public boolean dispatch(String topic, Integer subscriptionIdentifier, MqttMessage message) throws Exception {
+		if (subscriptionIdentifier != null) {
+			Route[] routes = routesByIdentifier;
+			int id = subscriptionIdentifier;
+			if (id > 0 && id < routes.length) {
+				Route route = routes[id];
+				if (route != null && !route.overlaps) {
+					byIdentifier.incrementAndGet();
+					route.handler.handle(topic, message);
+					return true;
+				}
+			}
+		}
+		byTree.incrementAndGet();
+		List<Route> matches = new ArrayList<>(2);
+		match(root, topic.split("/", -1), 0, topic.startsWith("$"), matches);
+		if (matches.isEmpty()) {
+			unmatched.incrementAndGet();
+			return false;
+		}
+		for (Route route : matches) {
+			route.handler.handle(topic, message);
+		}
+		return true;
+	}
+
+	private static void match(Node node, String[] levels, int depth, boolean system, List<Route> matches) {
+		boolean wildcardsAllowed = !(system && depth == 0);
+		Node multi = wildcardsAllowed ? node.children.get("#") : null;
+		if (multi != null) {
+			matches.addAll(multi.routes);
+		}
+		if (depth == levels.length) {
+			matches.addAll(node.routes);
+			return;
+		}
+		Node exact = node.children.get(levels[depth]);
+		if (exact != null) {
+			match(exact, levels, depth + 1, system, matches);
+		}
+		Node single = wildcardsAllowed ? node.children.get("+") : null;
+		if (single != null) {
+			match(single, levels, depth + 1, system, matches);
+		}
+	}
+
+	/**
+	 * Matches a single filter against a topic, level by level. The dispatcher
+	 * itself walks its tree instead; this is for callers with only a filter or
+	 * two to check, such as {@link RpcServer}, and to compare against.
+	 *
+	 * @return true if the filter matches the topic
+	 */
+	public static boolean matches(String filter, String topic) {
+		String[] filterLevels = filter.split("/", -1);
+		String[] topicLevels = topic.split("/", -1);
+		boolean system = topic.startsWith("$");
+		for (int i = 0; i < filterLevels.length; i++) {
+			String level = filterLevels[i];
+			boolean wildcardsAllowed = !(system && i == 0);
+			if ("#".equals(level) && wildcardsAllowed) {
+				return true;
+			}
+			if (i >= topicLevels.length) {
+				return false;
+			}
+			if (!("+".equals(level) && wildcardsAllowed) && !level.equals(topicLevels[i])) {
+				return false;
+			}
+		}
+		return filterLevels.length == topicLevels.length;
+	}
+
+	/**
+	 * @return the number of filters registered
+	 */
+	public synchronized int size() {
+		return routesByFilter.size();
+	}
+
+	@Override
+	public String toString() {
+		return "TopicDispatcher: [filters=" + size() + ", byIdentifier=" + byIdentifier.get() + ", byTree="
+				+ byTree.get() + ", unmatched=" + unmatched.get() + "]";
+	}
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Records the messages a client receives to a memory-mapped log, so that the
+ * traffic can be played back later with a {@link TrafficReplayer}.
+ *
+ * The log starts with a {@value #HEADER_SIZE} byte header: a magic number,
+ * the format version, the wall clock time the recording started and the
+ * length of the log so far, which is updated after every message so that the
+ * log can be read even if the recorder was never closed. Each message is then
+ * stored as an {@link OfflinePublishBuffer} record, with the topic, QoS,
+ * flags, properties and payload, whose time is the nanoseconds since the
+ * recording started.
+ *
+ * The file is mapped at its full size up front, so recording is a copy into
+ * memory with no system call, and is cut down to the length of the log on
+ * {@link #close()}. Once it is full further messages are counted but not
+ * recorded. A log can be no bigger than 2GB.
+ */
+public class TrafficRecorder {
+
+	static final int MAGIC = 0x50524543; // "PREC"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 24;
+	static final int START_OFFSET = 8;
+	static final int END_OFFSET = 16;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer buffer;
+	private final long startNanos;
+	private int position = HEADER_SIZE;
+	private long recorded;
+	private long dropped;
+	private boolean closed;
+
+	/**
+	 * Reads <code>--record</code> for the file to record to and
+	 * <code>--recordBytes</code> for its maximum size (default 256MB).
+	 *
+	 * @param options
+	 *            the sample's command line options
+	 * @throws IOException
+	 *             if the file could not be created
+	 */
+	public TrafficRecorder(SampleOptions options) throws IOException {
+		this(new File(options.getString("record", "traffic.log")), options.getInt("recordBytes", 256 << 20));
+	}
+
+	/**
+	 * @param file
+	 *            the file to record to, it is overwritten
+	 * @param maxBytes
+	 *            the most the log can grow to
+	 * @throws IOException
+	 *             if the file could not be created
+	 */
+	public TrafficRecorder(File file, int maxBytes) throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(maxBytes, HEADER_SIZE));
+		this.startNanos = System.nanoTime();
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putLong(START_OFFSET, System.currentTimeMillis());
+		buffer.putLong(END_OFFSET, position);
+	}
+
+	/**
+	 * Appends a message to the log.
+	 *
+	 * @param topic
+	 *            the topic it arrived on
+	 * @param message
+	 *            the message
+	 * @return false if the log is full or closed
+	 */
+	public boolean record(String topic, MqttMessage message) {
+		long time = System.nanoTime() - startNanos;
+		byte[] record = OfflinePublishBuffer.encode(topic, message, time);
+		synchronized (this) {
+			if (closed || buffer.capacity() - position < record.length) {
+				dropped++;
+				return false;
+			}
+			buffer.position(position);
+			buffer.put(record);
+			position += record.length;
+			buffer.putLong(END_OFFSET, position);
+			recorded++;
+			return true;
+		}
+	}
+
+	/**
+	 * @param callback
+	 *            the sample's callback
+	 * @return a callback that records each message and then passes it on
+	 */
+	public MqttCallback wrap(final MqttCallback callback) {
+		return new MqttCallback() {
+
+			@Override
+			public void messageArrived(String topic, MqttMessage message) throws Exception {
+				record(topic, message);
+				callback.messageArrived(topic, message);
+			}
+
+			@Override
+			public void deliveryComplete(IMqttDeliveryToken token) {
+				callback.deliveryComplete(token);
+			}
+
+			@Override
+			public void disconnected(MqttDisconnectResponse disconnectResponse) {
+				callback.disconnected(disconnectResponse);
+			}
+
+			@Override
+			public void mqttErrorOccured(MqttException exception) {
+				callback.mqttErrorOccured(exception);
+			}
+		};
+	}
+
+	/**
+	 * Flushes the log to disk and cuts the file down to its length.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		buffer.force();
+		try {
+			// Some platforms refuse to truncate a mapped file, the log is still readable
+			raf.getChannel().truncate(position);
+		} catch (IOException e) {
+			System.err.println("Exception Occured whilst truncating " + file + ": " + e.getMessage());
+		}
+		try {
+			raf.close();
+		} catch (IOException e) {
+			System.err.println("Exception Occured whilst closing " + file + ": " + e.getMessage());
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized long getRecorded() {
+		return recorded;
+	}
+
+	/**
+	 * @return the number of messages not recorded because the log was full
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return the length of the log in bytes
+	 */
+	public synchronized int getBytes() {
+		return position;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "TrafficRecorder: [file=" + file + ", recorded=" + recorded + ", dropped=" + dropped + ", bytes="
+				+ position + "]";
+	}
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.paho.mqttv5.client.IMqttDeliveryToken;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Sample MQTTv5 Eclipse Paho Java App.
+ * https://github.com/jpwsutton/EclipsePahoJavaMQTTv5Example
+ * 
+ * This example records real traffic with a {@link TrafficRecorder} and plays
+ * it back with a {@link TrafficReplayer}, so that changes to a client or
+ * broker can be measured against the shape of production traffic rather than
+ * a synthetic stream. Given <code>--record</code> it subscribes to a filter
+ * and records everything that arrives for a while; given
+ * <code>--replay</code> it publishes a recording at each of a list of speeds
+ * and prints how well each kept up as CSV. Given both, it records and then
+ * replays what it recorded.
+ * 
+ * Options (see {@link SampleOptions}):
+ * <ul>
+ * <li><code>--record</code> - file to record to</li>
+ * <li><code>--recordBytes</code> - the most the recording can grow to
+ * (default 256MB)</li>
+ * <li><code>--filter</code> - topic filter to record (default #)</li>
+ * <li><code>--duration</code> - seconds to record for (default 60)</li>
+ * <li><code>--replay</code> - file to replay</li>
+ * <li><code>--speeds</code> - comma separated replay speeds, 1 for as
+ * recorded and 0 for as fast as possible (default 1,10,0)</li>
+ * <li><code>--replayPrefix</code> - put in front of every replayed topic
+ * (default replay/)</li>
+ * </ul>
+ */
+public class TrafficReplayExample implements MqttCallback {
+
+	String broker = "tcp://localhost:1883";
+	String clientId = "PahoJavaV5Client";
+	int qos = 1;
+
+	public TrafficReplayExample(SampleOptions options) throws InterruptedException {
+		broker = SampleUtilities.resolveBroker(options, broker);
+		qos = options.getInt("qos", qos);
+		try {
+			if (options.has("record")) {
+				record(new TrafficRecorder(options), options.getString("filter", "#"),
+						options.getLong("duration", 60));
+			}
+			String replayFile = options.getString("replay", options.getString("record", null));
+			if (replayFile != null) {
+				replay(new TrafficReplayer(new File(replayFile)), options.getString("speeds", "1,10,0").split(","),
+						options.getString("replayPrefix", "replay/"));
+			} else {
+				System.out.println("Nothing to do, pass --record and/or --replay.");
+			}
+		} catch (IOException | MqttException e) {
+			System.err.println("Exception Occured whilst running the traffic replay: " + e.getMessage());
+		}
+		System.exit(0);
+	}
+
+	private void record(TrafficRecorder recorder, String filter, long seconds)
+			throws MqttException, InterruptedException {
+		MqttAsyncClient subscriber = new MqttAsyncClient(broker, clientId + "-recorder", new MemoryPersistence());
+		subscriber.setCallback(recorder.wrap(this));
+		subscriber.connect(new MqttConnectionOptionsBuilder().serverURI(broker).cleanSession(true).build())
+				.waitForCompletion(30000);
+		subscriber.subscribe(filter, qos).waitForCompletion(30000);
+		System.out.println("Recording " + filter + " to " + recorder.getFile() + " for " + seconds + "s");
+		Thread.sleep(seconds * 1000);
+		subscriber.disconnect().waitForCompletion(5000);
+		subscriber.close();
+		recorder.close();
+		System.out.println(recorder);
+	}
+
+	private void replay(TrafficReplayer replayer, String[] speeds, String topicPrefix)
+			throws MqttException, InterruptedException {
+		System.out.println("Replaying " + replayer.getMessages() + " messages recorded over "
+				+ String.format("%.3f", replayer.getDurationNanos() / 1e9) + "s from " + replayer.getFile());
+		MqttAsyncClient publisher = new MqttAsyncClient(broker, clientId + "-replayer", new MemoryPersistence());
+		publisher.connect(new MqttConnectionOptionsBuilder().serverURI(broker).cleanSession(true).build())
+				.waitForCompletion(30000);
+		System.out.println("speed,messages,replaySeconds,messagesPerSecond,latenessP50Micros,latenessP99Micros,"
+				+ "latenessMaxMicros,acked,failed");
+		for (String speed : speeds) {
+			replayer.replay(publisher, Double.parseDouble(speed.trim()), topicPrefix);
+			// Give the last acks a moment to come back
+			long deadline = System.currentTimeMillis() + 5000;
+			while (replayer.getAcked() + replayer.getFailed() < replayer.getPublished()
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			LatencyHistogram lateness = replayer.getLateness();
+			System.out.println(String.format("%s,%d,%.3f,%.1f,%d,%d,%d,%d,%d", speed.trim(),
+					replayer.getPublished(), replayer.getElapsedNanos() / 1e9,
+					replayer.getPublished() / Math.max(1e-9, replayer.getElapsedNanos() / 1e9),
+					lateness.getValueAtPercentile(50) / 1000, lateness.getValueAtPercentile(99) / 1000,
+					lateness.getMaxValue() / 1000, replayer.getAcked(), replayer.getFailed()));
+		}
+		publisher.disconnect().waitForCompletion(5000);
+		publisher.close();
+	}
+
+	/**
+	 * @param args
+	 *            - Optional arguments, see {@link SampleOptions}
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		SampleUtilities.printBanner("MQTTv5 Traffic Replay Example Java App");
+		new TrafficReplayExample(SampleOptions.parse(args));
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+		// Recorded by the recorder's wrapper
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+	}
+
+	@Override
+	public void disconnected(MqttDisconnectResponse disconnectResponse) {
+		System.out.println("Disconnection Complete! : " + disconnectResponse.toString());
+	}
+
+	@Override
+	public void mqttErrorOccured(MqttException exception) {
+		System.out.println("MQTT Error Occured: " + exception.getMessage());
+	}
+}
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Publishes a log written by a {@link TrafficRecorder} back through a client.
+ *
+ * Each message is sent with the topic, QoS, flags, properties and payload it
+ * was recorded with, at the same offset from the start of the replay as it
+ * arrived from the start of the recording, divided by the speed: 1 replays the
+ * traffic as it happened, 10 ten times faster keeping the same shape, and 0
+ * sends every message as fast as the client will take them. How far behind
+ * schedule each message went out is recorded, so a replay that could not keep
+ * up is easy to spot.
+ *
+ * The log is memory-mapped read only, so a replay reads it straight out of
+ * the page cache.
+ */
+public class TrafficReplayer {
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final int end;
+	private final long startMillis;
+	private final int messages;
+	private final long durationNanos;
+
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong acked = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final LatencyHistogram lateness = new LatencyHistogram("lateness");
+	private long elapsedNanos;
+
+	private final MqttActionListener listener = new MqttActionListener() {
+
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			acked.incrementAndGet();
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			failed.incrementAndGet();
+		}
+	};
+
+	/**
+	 * @param file
+	 *            a log written by a {@link TrafficRecorder}
+	 * @throws IOException
+	 *             if the file could not be read or is not a traffic log
+	 */
+	public TrafficReplayer(File file) throws IOException {
+		this.file = file;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			// The mapping stays valid after the file is closed
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		if (buffer.capacity() < TrafficRecorder.HEADER_SIZE || buffer.getInt(0) != TrafficRecorder.MAGIC) {
+			throw new IOException(file + " is not a traffic log");
+		}
+		if (buffer.getInt(4) != TrafficRecorder.VERSION) {
+			throw new IOException(file + " is version " + buffer.getInt(4) + " of the traffic log format");
+		}
+		this.startMillis = buffer.getLong(TrafficRecorder.START_OFFSET);
+		this.end = (int) Math.min(buffer.getLong(TrafficRecorder.END_OFFSET), buffer.capacity());
+
+		int count = 0;
+		long lastTime = 0;
+		int position = TrafficRecorder.HEADER_SIZE;
+		while (position < end) {
+			int length = buffer.getInt(position);
+			if (length < 12 || length > end - position) {
+				throw new IOException(file + " is corrupt at byte " + position);
+			}
+			lastTime = buffer.getLong(position + 4);
+			position += length;
+			count++;
+		}
+		this.messages = count;
+		this.durationNanos = lastTime;
+	}
+
+	/**
+	 * Replays the whole log, returning once every message has been handed to
+	 * the client.
+	 *
+	 * @param asyncClient
+	 *            the client to publish with, it must be connected
+	 * @param speed
+	 *            how many times faster than recorded to replay, 0 for as fast
+	 *            as possible
+	 * @param topicPrefix
+	 *            put in front of every topic, so that a replay can be kept
+	 *            apart from the live traffic, or an empty string
+	 * @throws InterruptedException
+	 *             if interrupted whilst waiting for the next message
+	 */
+	public void replay(MqttAsyncClient asyncClient, double speed, String topicPrefix) throws InterruptedException {
+		published.set(0);
+		acked.set(0);
+		failed.set(0);
+		lateness.reset();
+
+		long start = System.nanoTime();
+		int position = TrafficRecorder.HEADER_SIZE;
+		while (position < end) {
+			byte[] record = new byte[buffer.getInt(position)];
+			buffer.position(position);
+			buffer.get(record);
+			position += record.length;
+
+			long due = start;
+			if (speed > 0) {
+				due += (long) (OfflinePublishBuffer.timeOf(record) / speed);
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+			}
+			publish(asyncClient, topicPrefix + OfflinePublishBuffer.topicOf(record),
+					OfflinePublishBuffer.decode(record));
+			if (speed > 0) {
+				lateness.record(System.nanoTime() - due);
+			}
+		}
+		elapsedNanos = System.nanoTime() - start;
+	}
+
+	private void publish(MqttAsyncClient asyncClient, String topic, MqttMessage message)
+			throws InterruptedException {
+		while (true) {
+			try {
+				asyncClient.publish(topic, message, null, listener);
+				published.incrementAndGet();
+				return;
+			} catch (MqttException e) {
+				// Most likely the client's own in-flight limit, give it a moment
+				if (!asyncClient.isConnected()) {
+					failed.incrementAndGet();
+					return;
+				}
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				LockSupport.parkNanos(50000);
+			}
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the wall clock time the recording started
+	 */
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	/**
+	 * @return the number of messages in the log
+	 */
+	public int getMessages() {
+		return messages;
+	}
+
+	/**
+	 * @return the time from the start of the recording to the last message
+	 */
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	public long getPublished() {
+		return published.get();
+	}
+
+	public long getAcked() {
+		return acked.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return how long the last replay took to hand every message to the
+	 *         client
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return how far behind schedule each message was published, empty when
+	 *         replaying as fast as possible
+	 */
+	public LatencyHistogram getLateness() {
+		return lateness;
+	}
+
+	@Override
+	public String toString() {
+		return "TrafficReplayer: [file=" + file + ", messages=" + messages + ", recordedSeconds="
+				+ String.format("%.3f", durationNanos / 1e9) + ", published=" + published.get() + ", acked="
+				+ acked.get() + ", failed=" + failed.get() + ", replaySeconds="
+				+ String.format("%.3f", elapsedNanos / 1e9) + ", " + lateness + "]";
+	}
+}
@@ -0,0 +1,600 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.broker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The state of a single client connection to the {@link EmbeddedBroker}. Only
+ * ever used from the broker's selector thread.
+ *
+ * A connection with a Session Expiry Interval also holds the client's session:
+ * once the network connection closes it stays registered with the broker,
+ * queueing QoS 1 and 2 messages, until the client connects again without
+ * Clean Start and {@link #resume(BrokerConnection)} moves the session over, or
+ * the session expires.
+ */
+class BrokerConnection {
+
+	/**
+	 * Publishing the reason code as the payload to this topic makes the broker
+	 * disconnect the publisher with that reason code, in the same way as the
+	 * Eclipse Paho interoperability test broker.
+	 */
+	static final String DISCONNECT_COMMAND_TOPIC = "cmd/disconnectWithRC";
+
+	private static final int MAX_PACKET_ID = 65535;
+	private static final long SESSION_NEVER_EXPIRES = 0xFFFFFFFFL;
+
+	private final EmbeddedBroker broker;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+	private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+	private boolean closeWhenFlushed = false;
+
+	String clientId;
+	private boolean connected = false;
+	private BrokerMessage will;
+	private long sessionExpiryInterval = 0;
+	private long sessionExpiresAt;
+
+	// Limits the client asked for in its CONNECT
+	private int clientReceiveMaximum = 65535;
+	private int clientMaximumPacketSize = 0;
+	private int clientTopicAliasMaximum = 0;
+
+	private final Map<Integer, String> inboundAliases = new HashMap<>();
+	private final Map<String, Integer> outboundAliases = new HashMap<>();
+	private final Set<Integer> inboundQos2 = new HashSet<>();
+
+	private int nextPacketId = 1;
+	// In the order they were sent, so that a resumed session resends them in order
+	private final Map<Integer, PendingDelivery> outboundInFlight = new LinkedHashMap<>();
+	private final Set<Integer> outboundReleased = new HashSet<>();
+	private final ArrayDeque<PendingDelivery> pending = new ArrayDeque<>();
+
+	private static final class PendingDelivery {
+		final BrokerMessage message;
+		final int qos;
+		final List<Integer> subscriptionIdentifiers;
+
+		PendingDelivery(BrokerMessage message, int qos, List<Integer> subscriptionIdentifiers) {
+			this.message = message;
+			this.qos = qos;
+			this.subscriptionIdentifiers = subscriptionIdentifiers;
+		}
+	}
+
+	BrokerConnection(EmbeddedBroker broker, SocketChannel channel, SelectionKey key) {
+		this.broker = broker;
+		this.channel = channel;
+		this.key = key;
+	}
+
+	void onReadable() throws IOException {
+		int read = channel.read(readBuffer);
+		if (read < 0) {
+			close();
+			return;
+		}
+		broker.bytesIn.addAndGet(read);
+		readBuffer.flip();
+		int length;
+		while ((length = PacketCodec.packetLength(readBuffer)) > 0) {
+			if (broker.maximumPacketSize > 0 && length > broker.maximumPacketSize) {
+				disconnect(0x95, "Packet too large");
+				return;
+			}
+			int end = readBuffer.position() + length;
+			int firstByte = readBuffer.get() & 0xFF;
+			PacketCodec.readVariableInt(readBuffer);
+			ByteBuffer body = readBuffer.slice();
+			body.limit(end - readBuffer.position());
+			readBuffer.position(end);
+			broker.packetsIn.incrementAndGet();
+			handle(firstByte, body);
+			if (!channel.isOpen() || closeWhenFlushed) {
+				return;
+			}
+		}
+		readBuffer.compact();
+		if (!readBuffer.hasRemaining()) {
+			// A packet bigger than the buffer, make room for it.
+			ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+			readBuffer.flip();
+			bigger.put(readBuffer);
+			readBuffer = bigger;
+		}
+	}
+
+	private void handle(int firstByte, ByteBuffer body) throws IOException {
+		int type = firstByte >> 4;
+		if (!connected && type != PacketCodec.CONNECT) {
+			close();
+			return;
+		}
+		switch (type) {
+		case PacketCodec.CONNECT:
+			handleConnect(body);
+			break;
+		case PacketCodec.PUBLISH:
+			handlePublish(firstByte, body);
+			break;
+		case PacketCodec.PUBACK:
+		case PacketCodec.PUBCOMP:
+			int completed = body.getShort() & 0xFFFF;
+			outboundInFlight.remove(completed);
+			outboundReleased.remove(completed);
+			sendPending();
+			break;
+		case PacketCodec.PUBREC:
+			handlePubrec(body);
+			break;
+		case PacketCodec.PUBREL:
+			int packetId = body.getShort() & 0xFFFF;
+			inboundQos2.remove(packetId);
+			sendAck(PacketCodec.PUBCOMP, packetId);
+			break;
+		case PacketCodec.SUBSCRIBE:
+			handleSubscribe(body);
+			break;
+		case PacketCodec.UNSUBSCRIBE:
+			handleUnsubscribe(body);
+			break;
+		case PacketCodec.PINGREQ:
+			send(new PacketCodec.Builder().toPacket(PacketCodec.PINGRESP << 4));
+			break;
+		case PacketCodec.DISCONNECT:
+			int reasonCode = body.hasRemaining() ? body.get() & 0xFF : 0;
+			if (body.hasRemaining()) {
+				Integer sessionExpiry = PacketProperties.read(body)
+						.getInteger(PacketProperties.SESSION_EXPIRY_INTERVAL);
+				if (sessionExpiry != null) {
+					sessionExpiryInterval = sessionExpiry & SESSION_NEVER_EXPIRES;
+				}
+			}
+			if (reasonCode != 0x04) {
+				// Anything but "Disconnect with Will Message" discards the will
+				will = null;
+			}
+			close();
+			break;
+		default:
+			// AUTH is not supported
+			disconnect(0x82, "Unexpected packet type " + type);
+			break;
+		}
+	}
+
+	private void handleConnect(ByteBuffer body) throws IOException {
+		if (connected) {
+			disconnect(0x82, "Second CONNECT");
+			return;
+		}
+		PacketCodec.readString(body); // Protocol Name
+		int level = body.get();
+		if (level != 5) {
+			PacketCodec.Builder connack = new PacketCodec.Builder().writeByte(0).writeByte(0x84);
+			PacketProperties.EMPTY.write(connack);
+			send(connack.toPacket(PacketCodec.CONNACK << 4));
+			closeWhenFlushed();
+			return;
+		}
+		int flags = body.get();
+		boolean cleanStart = (flags & 0x02) != 0;
+		body.getShort(); // Keep Alive, not enforced
+		PacketProperties properties = PacketProperties.read(body);
+		Integer sessionExpiry = properties.getInteger(PacketProperties.SESSION_EXPIRY_INTERVAL);
+		if (sessionExpiry != null) {
+			sessionExpiryInterval = sessionExpiry & SESSION_NEVER_EXPIRES;
+		}
+		Integer receiveMaximum = properties.getInteger(PacketProperties.RECEIVE_MAXIMUM);
+		if (receiveMaximum != null) {
+			clientReceiveMaximum = receiveMaximum;
+		}
+		Integer maximumPacketSize = properties.getInteger(PacketProperties.MAXIMUM_PACKET_SIZE);
+		if (maximumPacketSize != null) {
+			clientMaximumPacketSize = maximumPacketSize;
+		}
+		Integer topicAliasMaximum = properties.getInteger(PacketProperties.TOPIC_ALIAS_MAXIMUM);
+		if (topicAliasMaximum != null) {
+			clientTopicAliasMaximum = topicAliasMaximum;
+		}
+
+		clientId = PacketCodec.readString(body);
+		PacketProperties connackProperties = new PacketProperties();
+		if (clientId.isEmpty()) {
+			clientId = "embedded-" + System.identityHashCode(this);
+			connackProperties.add(PacketProperties.ASSIGNED_CLIENT_IDENTIFIER, clientId);
+		}
+		if ((flags & 0x04) != 0) {
+			PacketProperties willProperties = PacketProperties.read(body);
+			String willTopic = PacketCodec.readString(body);
+			byte[] willPayload = PacketCodec.readBinary(body);
+			will = new BrokerMessage(willTopic, willPayload, (flags >> 3) & 0x03, (flags & 0x20) != 0,
+					willProperties.without(PacketProperties.WILL_DELAY_INTERVAL), clientId);
+		}
+		// User Name and Password are accepted but not checked
+
+		connackProperties.add(PacketProperties.RECEIVE_MAXIMUM, broker.receiveMaximum);
+		connackProperties.add(PacketProperties.TOPIC_ALIAS_MAXIMUM, broker.topicAliasMaximum);
+		connackProperties.add(PacketProperties.RETAIN_AVAILABLE, 0);
+		connackProperties.add(PacketProperties.WILDCARD_SUBSCRIPTION_AVAILABLE, 1);
+		connackProperties.add(PacketProperties.SUBSCRIPTION_IDENTIFIER_AVAILABLE, 1);
+		connackProperties.add(PacketProperties.SHARED_SUBSCRIPTION_AVAILABLE, 1);
+		if (broker.maximumPacketSize > 0) {
+			connackProperties.add(PacketProperties.MAXIMUM_PACKET_SIZE, broker.maximumPacketSize);
+		}
+
+		BrokerConnection previous = broker.clients.put(clientId, this);
+		if (previous != null) {
+			previous.disconnect(0x8E, "Session taken over");
+		}
+		boolean sessionPresent = previous != null && !cleanStart && !previous.isExpired();
+		if (sessionPresent) {
+			resume(previous);
+		} else {
+			// Start a new session, forget anything the client had before
+			broker.subscriptions.removeAll(clientId);
+		}
+		connected = true;
+		broker.connects.incrementAndGet();
+
+		PacketCodec.Builder connack = new PacketCodec.Builder().writeByte(sessionPresent ? 1 : 0).writeByte(0);
+		connackProperties.write(connack);
+		send(connack.toPacket(PacketCodec.CONNACK << 4));
+		if (sessionPresent) {
+			resend();
+		}
+	}
+
+	/**
+	 * Takes over the session of a client's previous connection: its outgoing
+	 * messages in flight and queued, and the incoming QoS 2 messages it had
+	 * not yet been sent a PUBREL for. Subscriptions are kept by client ID, so
+	 * they stay where they are.
+	 */
+	private void resume(BrokerConnection previous) {
+		nextPacketId = previous.nextPacketId;
+		outboundInFlight.putAll(previous.outboundInFlight);
+		outboundReleased.addAll(previous.outboundReleased);
+		pending.addAll(previous.pending);
+		inboundQos2.addAll(previous.inboundQos2);
+		previous.outboundInFlight.clear();
+		previous.outboundReleased.clear();
+		previous.pending.clear();
+		previous.inboundQos2.clear();
+	}
+
+	/**
+	 * Resends the messages that were in flight when the session was last
+	 * connected, with the DUP flag set, then any that were queued meanwhile.
+	 */
+	private void resend() throws IOException {
+		for (Map.Entry<Integer, PendingDelivery> entry : new ArrayList<>(outboundInFlight.entrySet())) {
+			if (outboundReleased.contains(entry.getKey())) {
+				sendAck(PacketCodec.PUBREL, entry.getKey());
+			} else if (!sendPublish(entry.getKey(), entry.getValue(), true)) {
+				outboundInFlight.remove(entry.getKey());
+			}
+		}
+		sendPending();
+	}
+
+	/**
+	 * @return true if the client is connected
+	 */
+	boolean isOnline() {
+		return connected && channel.isOpen() && !closeWhenFlushed;
+	}
+
+	/**
+	 * @return true if the connection has closed and its session, if it had
+	 *         one, has expired
+	 */
+	boolean isExpired() {
+		if (channel.isOpen()) {
+			return false;
+		}
+		return sessionExpiryInterval == 0
+				|| (sessionExpiryInterval != SESSION_NEVER_EXPIRES && System.nanoTime() - sessionExpiresAt > 0);
+	}
+
+	private void handlePublish(int firstByte, ByteBuffer body) throws IOException {
+		int qos = (firstByte >> 1) & 0x03;
+		boolean retain = (firstByte & 0x01) != 0;
+		String topic = PacketCodec.readString(body);
+		int packetId = qos > 0 ? body.getShort() & 0xFFFF : 0;
+		PacketProperties properties = PacketProperties.read(body);
+		Integer alias = properties.getInteger(PacketProperties.TOPIC_ALIAS);
+		if (alias != null) {
+			if (alias == 0 || alias > broker.topicAliasMaximum) {
+				disconnect(0x94, "Topic Alias invalid");
+				return;
+			}
+			if (topic.isEmpty()) {
+				topic = inboundAliases.get(alias);
+				if (topic == null) {
+					disconnect(0x82, "Unknown Topic Alias " + alias);
+					return;
+				}
+			} else {
+				inboundAliases.put(alias, topic);
+			}
+			properties = properties.without(PacketProperties.TOPIC_ALIAS);
+		}
+		byte[] payload = new byte[body.remaining()];
+		body.get(payload);
+
+		if (qos == 1) {
+			sendAck(PacketCodec.PUBACK, packetId);
+		} else if (qos == 2) {
+			// QoS 1 is acknowledged straight away, so only QoS 2 can exceed it
+			if (!inboundQos2.contains(packetId) && inboundQos2.size() >= broker.receiveMaximum) {
+				disconnect(0x93, "Receive Maximum exceeded");
+				return;
+			}
+			sendAck(PacketCodec.PUBREC, packetId);
+			if (!inboundQos2.add(packetId)) {
+				// A resend of a message we already have, don't deliver it twice
+				return;
+			}
+		}
+
+		if (DISCONNECT_COMMAND_TOPIC.equals(topic)) {
+			int reasonCode;
+			try {
+				reasonCode = Integer.parseInt(new String(payload, StandardCharsets.UTF_8).trim());
+			} catch (NumberFormatException e) {
+				return; // Not a reason code, ignore the command
+			}
+			if (reasonCode >= 0 && reasonCode <= 0xFF) {
+				disconnect(reasonCode, null);
+			}
+			return;
+		}
+		broker.route(new BrokerMessage(topic, payload, qos, retain, properties, clientId));
+	}
+
+	private void handlePubrec(ByteBuffer body) throws IOException {
+		int packetId = body.getShort() & 0xFFFF;
+		int reasonCode = body.hasRemaining() ? body.get() & 0xFF : 0;
+		if (reasonCode >= 0x80) {
+			outboundInFlight.remove(packetId);
+			sendPending();
+		} else {
+			outboundReleased.add(packetId);
+			sendAck(PacketCodec.PUBREL, packetId);
+		}
+	}
+
+	private void handleSubscribe(ByteBuffer body) throws IOException {
+		int packetId = body.getShort() & 0xFFFF;
+		PacketProperties properties = PacketProperties.read(body);
+		Integer subscriptionIdentifier = properties.getInteger(PacketProperties.SUBSCRIPTION_IDENTIFIER);
+		PacketCodec.Builder suback = new PacketCodec.Builder().writeShort(packetId);
+		PacketProperties.EMPTY.write(suback);
+		while (body.hasRemaining()) {
+			String topicFilter = PacketCodec.readString(body);
+			int options = body.get();
+			broker.subscriptions.add(new Subscription(clientId, topicFilter, options, subscriptionIdentifier));
+			suback.writeByte(options & 0x03); // Grant the requested QoS
+		}
+		send(suback.toPacket(PacketCodec.SUBACK << 4));
+	}
+
+	private void handleUnsubscribe(ByteBuffer body) throws IOException {
+		int packetId = body.getShort() & 0xFFFF;
+		PacketProperties.read(body);
+		PacketCodec.Builder unsuback = new PacketCodec.Builder().writeShort(packetId);
+		PacketProperties.EMPTY.write(unsuback);
+		while (body.hasRemaining()) {
+			boolean removed = broker.subscriptions.remove(clientId, PacketCodec.readString(body));
+			unsuback.writeByte(removed ? 0x00 : 0x11); // Success or No subscription existed
+		}
+		send(unsuback.toPacket(PacketCodec.UNSUBACK << 4));
+	}
+
+	/**
+	 * @return true if a QoS 1 or 2 message sent now would not have to be
+	 *         queued behind the client's Receive Maximum
+	 */
+	boolean canDeliverNow() {
+		return isOnline() && outboundInFlight.size() < clientReceiveMaximum && pending.isEmpty();
+	}
+
+	/**
+	 * Sends a message to this client, queueing it if the client's Receive
+	 * Maximum has been reached or, for QoS 1 and 2, if the client is
+	 * disconnected and has a session.
+	 */
+	void deliver(BrokerMessage message, int qos, List<Integer> subscriptionIdentifiers) throws IOException {
+		if (!isOnline()) {
+			if (qos > 0) {
+				pending.add(new PendingDelivery(message, qos, subscriptionIdentifiers));
+			}
+			return;
+		}
+		if (qos > 0 && (outboundInFlight.size() >= clientReceiveMaximum || !pending.isEmpty())) {
+			pending.add(new PendingDelivery(message, qos, subscriptionIdentifiers));
+			return;
+		}
+		writePublish(new PendingDelivery(message, qos, subscriptionIdentifiers));
+	}
+
+	private void sendPending() throws IOException {
+		while (!pending.isEmpty() && outboundInFlight.size() < clientReceiveMaximum) {
+			writePublish(pending.poll());
+		}
+	}
+
+	private void writePublish(PendingDelivery delivery) throws IOException {
+		int packetId = delivery.qos > 0 ? nextPacketId() : 0;
+		if (delivery.qos > 0) {
+			outboundInFlight.put(packetId, delivery);
+		}
+		if (!sendPublish(packetId, delivery, false) && delivery.qos > 0) {
+			outboundInFlight.remove(packetId);
+		}
+	}
+
+	/**
+	 * @return false if the message was too big for the client, and so was
+	 *         discarded
+	 */
+	private boolean sendPublish(int packetId, PendingDelivery delivery, boolean dup) throws IOException {
+		BrokerMessage message = delivery.message;
+		List<Integer> subscriptionIdentifiers = delivery.subscriptionIdentifiers;
+		int qos = delivery.qos;
+		PacketProperties properties = message.properties;
+		String topic = message.topic;
+		Integer newAlias = null;
+		if (!subscriptionIdentifiers.isEmpty() || clientTopicAliasMaximum > 0) {
+			properties = properties.without(PacketProperties.SUBSCRIPTION_IDENTIFIER);
+			for (Integer subscriptionIdentifier : subscriptionIdentifiers) {
+				properties.add(PacketProperties.SUBSCRIPTION_IDENTIFIER, subscriptionIdentifier);
+			}
+			Integer alias = outboundAliases.get(topic);
+			if (alias != null) {
+				topic = "";
+				properties.add(PacketProperties.TOPIC_ALIAS, alias);
+			} else if (outboundAliases.size() < clientTopicAliasMaximum) {
+				newAlias = outboundAliases.size() + 1;
+				properties.add(PacketProperties.TOPIC_ALIAS, newAlias);
+			}
+		}
+
+		PacketCodec.Builder publish = new PacketCodec.Builder().writeString(topic);
+		if (qos > 0) {
+			publish.writeShort(packetId);
+		}
+		properties.write(publish);
+		publish.writeBytes(message.payload, 0, message.payload.length);
+		ByteBuffer packet = publish.toPacket(
+				PacketCodec.PUBLISH << 4 | (dup ? 0x08 : 0) | qos << 1 | (message.retain ? 1 : 0));
+		if (clientMaximumPacketSize > 0 && packet.remaining() > clientMaximumPacketSize) {
+			// Too big for the client, the spec says to discard it. The client never
+			// saw any new alias, so it is left for the next message on this topic.
+			return false;
+		}
+		send(packet);
+		if (newAlias != null) {
+			outboundAliases.put(topic, newAlias);
+		}
+		return true;
+	}
+
+	private int nextPacketId() {
+		do {
+			nextPacketId = nextPacketId == MAX_PACKET_ID ? 1 : nextPacketId + 1;
+		} while (outboundInFlight.containsKey(nextPacketId));
+		return nextPacketId;
+	}
+
+	private void sendAck(int type, int packetId) throws IOException {
+		// PUBREL is the only acknowledgement with flags set
+		int firstByte = type << 4 | (type == PacketCodec.PUBREL ? 0x02 : 0);
+		send(new PacketCodec.Builder().writeShort(packetId).toPacket(firstByte));
+	}
+
+	/**
+	 * Sends the client a DISCONNECT with the given reason code, then closes the
+	 * connection once it has been written.
+	 */
+	void disconnect(int reasonCode, String reasonString) {
+		if (!channel.isOpen() || closeWhenFlushed) {
+			return;
+		}
+		PacketCodec.Builder disconnect = new PacketCodec.Builder().writeByte(reasonCode);
+		PacketProperties properties = new PacketProperties();
+		if (reasonString != null) {
+			properties.add(PacketProperties.REASON_STRING, reasonString);
+		}
+		properties.write(disconnect);
+		try {
+			send(disconnect.toPacket(PacketCodec.DISCONNECT << 4));
+			closeWhenFlushed();
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	private void closeWhenFlushed() {
+		closeWhenFlushed = true;
+		if (writeQueue.isEmpty()) {
+			close();
+		}
+	}
+
+	void send(ByteBuffer packet) throws IOException {
+		writeQueue.add(packet);
+		flush();
+	}
+
+	void flush() throws IOException {
+		while (!writeQueue.isEmpty()) {
+			ByteBuffer head = writeQueue.peek();
+			broker.bytesOut.addAndGet(channel.write(head));
+			if (head.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			writeQueue.poll();
+		}
+		if (closeWhenFlushed) {
+			close();
+		} else if (key.isValid()) {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	void close() {
+		if (!channel.isOpen()) {
+			return;
+		}
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+		if (clientId != null && broker.clients.get(clientId) == this) {
+			if (sessionExpiryInterval == 0) {
+				broker.clients.remove(clientId);
+				broker.subscriptions.removeAll(clientId);
+			} else {
+				// Keep the session, with its subscriptions, until it expires
+				sessionExpiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(sessionExpiryInterval);
+			}
+		}
+		if (will != null) {
+			BrokerMessage message = will;
+			will = null;
+			broker.route(message);
+		}
+	}
+}
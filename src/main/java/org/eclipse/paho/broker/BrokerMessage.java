@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.broker;
+
+/**
+ * An application message being routed through the {@link EmbeddedBroker}.
+ * The properties never include a Topic Alias or Subscription Identifier, those
+ * are added per subscriber when the message is sent on.
+ */
+class BrokerMessage {
+
+	final String topic;
+	final byte[] payload;
+	final int qos;
+	final boolean retain;
+	final PacketProperties properties;
+	final String publisherId;
+
+	BrokerMessage(String topic, byte[] payload, int qos, boolean retain, PacketProperties properties,
+			String publisherId) {
+		this.topic = topic;
+		this.payload = payload;
+		this.qos = qos;
+		this.retain = retain;
+		this.properties = properties;
+		this.publisherId = publisherId;
+	}
+}
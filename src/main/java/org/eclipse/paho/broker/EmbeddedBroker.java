@@ -0,0 +1,428 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.broker;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.SampleOptions;
+import org.eclipse.paho.SampleUtilities;
+
+/**
+ * A small in-process MQTTv5 broker, so that the samples, benchmarks and
+ * regression checks can run without a network or an external server.
+ *
+ * All connections are served by a single NIO selector thread, which keeps the
+ * overhead low and predictable. It supports:
+ * <ul>
+ * <li>CONNECT / CONNACK with properties, including Receive Maximum, Topic Alias
+ * Maximum and Maximum Packet Size in both directions, and Will messages.</li>
+ * <li>SUBSCRIBE / UNSUBSCRIBE with <code>+</code> and <code>#</code> wildcards,
+ * No Local and Subscription Identifiers.</li>
+ * <li>Shared subscriptions (<code>$share/{ShareName}/{filter}</code>), each
+ * message going to one member of the share, in turn, preferring members that
+ * have not reached their Receive Maximum.</li>
+ * <li>QoS 0, 1 and 2 flows for both incoming and outgoing messages.</li>
+ * <li>Topic Aliases for both incoming and outgoing messages.</li>
+ * <li>Server initiated DISCONNECT with a reason code, either through
+ * {@link #disconnect(String, int)} or by publishing the reason code to
+ * <code>cmd/disconnectWithRC</code>.</li>
+ * <li>Sessions that outlive the connection, for clients that connect with a
+ * Session Expiry Interval. Their subscriptions are kept and QoS 1 and 2
+ * messages are queued whilst they are disconnected, and messages still in
+ * flight are resent when they reconnect without Clean Start. Sessions are only
+ * kept in memory, and one that has expired is discarded the next time a
+ * message is routed to it or its client connects.</li>
+ * </ul>
+ * Retained messages are not supported.
+ *
+ * <pre>
+ * EmbeddedBroker broker = EmbeddedBroker.start(0); // ephemeral port
+ * MqttAsyncClient client = new MqttAsyncClient(broker.getServerURI(), ...);
+ * ...
+ * broker.stop();
+ * </pre>
+ */
+public class EmbeddedBroker implements Runnable {
+
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final Thread selectorThread;
+	private volatile boolean running = true;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	// Only touched by the selector thread. Clients that have disconnected but
+	// whose session has not yet expired keep their closed connection here.
+	final Map<String, BrokerConnection> clients = new HashMap<>();
+	final SubscriptionTree subscriptions = new SubscriptionTree();
+	private final Map<String, Integer> shareCursors = new HashMap<>();
+
+	volatile int receiveMaximum = 65535;
+	volatile int topicAliasMaximum = 1000;
+	volatile int maximumPacketSize = 0;
+
+	final AtomicLong bytesIn = new AtomicLong();
+	final AtomicLong bytesOut = new AtomicLong();
+	final AtomicLong packetsIn = new AtomicLong();
+	final AtomicLong connects = new AtomicLong();
+
+	private EmbeddedBroker(int port) throws IOException {
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress("localhost", port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		this.selectorThread = new Thread(this, "EmbeddedBroker-" + getPort());
+		selectorThread.setDaemon(true);
+	}
+
+	/**
+	 * Starts a broker listening on localhost.
+	 *
+	 * @param port
+	 *            the port to listen on, or 0 for an ephemeral port
+	 * @return the running broker
+	 * @throws IOException
+	 *             if the port could not be bound
+	 */
+	public static EmbeddedBroker start(int port) throws IOException {
+		EmbeddedBroker broker = new EmbeddedBroker(port);
+		broker.selectorThread.start();
+		return broker;
+	}
+
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * @return the URI to pass to the client, e.g. tcp://localhost:41234
+	 */
+	public String getServerURI() {
+		return "tcp://localhost:" + getPort();
+	}
+
+	/**
+	 * @return the number of bytes received from clients
+	 */
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	/**
+	 * @return the number of bytes sent to clients
+	 */
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/**
+	 * @return the number of packets received from clients
+	 */
+	public long getPacketsIn() {
+		return packetsIn.get();
+	}
+
+	/**
+	 * @return the number of successful CONNECTs since the broker started
+	 */
+	public long getConnectCount() {
+		return connects.get();
+	}
+
+	/**
+	 * Sets the Receive Maximum sent to clients that connect from now on.
+	 */
+	public void setReceiveMaximum(int receiveMaximum) {
+		this.receiveMaximum = receiveMaximum;
+	}
+
+	/**
+	 * Sets the Topic Alias Maximum sent to clients that connect from now on.
+	 */
+	public void setTopicAliasMaximum(int topicAliasMaximum) {
+		this.topicAliasMaximum = topicAliasMaximum;
+	}
+
+	/**
+	 * Sets the Maximum Packet Size sent to clients that connect from now on, 0
+	 * for no limit.
+	 */
+	public void setMaximumPacketSize(int maximumPacketSize) {
+		this.maximumPacketSize = maximumPacketSize;
+	}
+
+	/**
+	 * Sends a DISCONNECT with the given reason code to a client and closes its
+	 * connection.
+	 *
+	 * @param clientId
+	 *            the client to disconnect
+	 * @param reasonCode
+	 *            the MQTTv5 reason code, e.g. 0x8B Server shutting down
+	 */
+	public void disconnect(final String clientId, final int reasonCode) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				BrokerConnection connection = clients.get(clientId);
+				if (connection != null) {
+					connection.disconnect(reasonCode, null);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sends a DISCONNECT with the given reason code to every connected client.
+	 *
+	 * @param reasonCode
+	 *            the MQTTv5 reason code, e.g. 0x8B Server shutting down
+	 */
+	public void disconnectAll(final int reasonCode) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				for (BrokerConnection connection : new ArrayList<>(clients.values())) {
+					connection.disconnect(reasonCode, null);
+				}
+			}
+		});
+	}
+
+	private void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Sends a message to every client with a matching subscription. A client
+	 * with more than one matching subscription receives a single copy at the
+	 * highest of their QoS, with all of the Subscription Identifiers. Each
+	 * matching shared subscription sends its own copy to one of its members.
+	 */
+	void route(BrokerMessage message) {
+		Map<String, List<Integer>> identifiers = new LinkedHashMap<>();
+		Map<String, Integer> grantedQos = new HashMap<>();
+		Map<String, List<Subscription>> shares = null;
+		for (Subscription subscription : subscriptions.match(message.topic)) {
+			if (subscription.isShared()) {
+				if (shares == null) {
+					shares = new LinkedHashMap<>();
+				}
+				String share = subscription.shareName + "/" + subscription.topicFilter;
+				List<Subscription> members = shares.get(share);
+				if (members == null) {
+					members = new ArrayList<>();
+					shares.put(share, members);
+				}
+				members.add(subscription);
+				continue;
+			}
+			if (subscription.noLocal && subscription.clientId.equals(message.publisherId)) {
+				continue;
+			}
+			List<Integer> ids = identifiers.get(subscription.clientId);
+			if (ids == null) {
+				ids = new ArrayList<>(1);
+				identifiers.put(subscription.clientId, ids);
+				grantedQos.put(subscription.clientId, subscription.qos);
+			} else {
+				grantedQos.put(subscription.clientId, Math.max(subscription.qos, grantedQos.get(subscription.clientId)));
+			}
+			if (subscription.subscriptionIdentifier != null) {
+				ids.add(subscription.subscriptionIdentifier);
+			}
+		}
+		for (Map.Entry<String, List<Integer>> entry : identifiers.entrySet()) {
+			BrokerConnection connection = session(entry.getKey());
+			if (connection == null) {
+				continue;
+			}
+			deliver(connection, message, Math.min(message.qos, grantedQos.get(entry.getKey())), entry.getValue());
+		}
+		if (shares != null) {
+			for (Map.Entry<String, List<Subscription>> share : shares.entrySet()) {
+				routeShared(share.getKey(), share.getValue(), message);
+			}
+		}
+	}
+
+	/**
+	 * @return the connection holding the client's session, which may be
+	 *         closed, or null if there is no session or it has expired
+	 */
+	private BrokerConnection session(String clientId) {
+		BrokerConnection connection = clients.get(clientId);
+		if (connection != null && connection.isExpired()) {
+			clients.remove(clientId);
+			subscriptions.removeAll(clientId);
+			return null;
+		}
+		return connection;
+	}
+
+	/**
+	 * Sends a message to the next member of a share in turn, skipping members
+	 * that are disconnected or have reached their Receive Maximum unless every
+	 * member has. A disconnected member is only picked if no member is
+	 * connected.
+	 */
+	private void routeShared(String share, List<Subscription> members, BrokerMessage message) {
+		Integer cursor = shareCursors.get(share);
+		int start = cursor == null ? 0 : cursor;
+		Subscription chosen = null;
+		BrokerConnection chosenConnection = null;
+		for (int i = 0; i < members.size(); i++) {
+			int index = (start + i) % members.size();
+			Subscription member = members.get(index);
+			BrokerConnection connection = session(member.clientId);
+			if (connection == null) {
+				continue;
+			}
+			if (chosen == null || connection.canDeliverNow()
+					|| (connection.isOnline() && !chosenConnection.isOnline())) {
+				chosen = member;
+				chosenConnection = connection;
+				shareCursors.put(share, index + 1);
+				if (connection.canDeliverNow()) {
+					break;
+				}
+			}
+		}
+		if (chosen != null) {
+			List<Integer> ids = new ArrayList<>(1);
+			if (chosen.subscriptionIdentifier != null) {
+				ids.add(chosen.subscriptionIdentifier);
+			}
+			deliver(chosenConnection, message, Math.min(message.qos, chosen.qos), ids);
+		}
+	}
+
+	private static void deliver(BrokerConnection connection, BrokerMessage message, int qos,
+			List<Integer> subscriptionIdentifiers) {
+		try {
+			connection.deliver(message, qos, subscriptionIdentifiers);
+		} catch (IOException e) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Closes every connection and stops listening.
+	 */
+	public void stop() {
+		running = false;
+		selector.wakeup();
+		try {
+			selectorThread.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select();
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					BrokerConnection connection = (BrokerConnection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.flush();
+						}
+					} catch (IOException | RuntimeException e) {
+						connection.close();
+					}
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Exception Occured in the embedded broker: " + e.getMessage());
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof BrokerConnection) {
+					((BrokerConnection) key.attachment()).close();
+				}
+			}
+			try {
+				serverChannel.close();
+				selector.close();
+			} catch (IOException e) {
+				// Nothing more to clean up
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new BrokerConnection(this, channel, key));
+	}
+
+	/**
+	 * Runs the broker on its own. <code>--port</code> sets the port (default
+	 * 1883), <code>--receiveMaximum</code>, <code>--topicAliasMaximum</code> and
+	 * <code>--maximumPacketSize</code> set the limits sent in the CONNACK.
+	 *
+	 * @param args
+	 *            - Optional arguments, see {@link SampleOptions}
+	 * @throws IOException
+	 *             if the port could not be bound
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		SampleUtilities.printBanner("MQTTv5 Embedded Broker");
+		SampleOptions options = SampleOptions.parse(args);
+		EmbeddedBroker broker = start(options.getInt("port", 1883));
+		broker.setReceiveMaximum(options.getInt("receiveMaximum", broker.receiveMaximum));
+		broker.setTopicAliasMaximum(options.getInt("topicAliasMaximum", broker.topicAliasMaximum));
+		broker.setMaximumPacketSize(options.getInt("maximumPacketSize", broker.maximumPacketSize));
+		System.out.println("Listening on " + broker.getServerURI());
+		broker.selectorThread.join();
+	}
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.broker;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encoding and decoding of the MQTTv5 data types used by the
+ * {@link EmbeddedBroker}.
+ */
+final class PacketCodec {
+
+	static final int CONNECT = 1;
+	static final int CONNACK = 2;
+	static final int PUBLISH = 3;
+	static final int PUBACK = 4;
+	static final int PUBREC = 5;
+	static final int PUBREL = 6;
+	static final int PUBCOMP = 7;
+	static final int SUBSCRIBE = 8;
+	static final int SUBACK = 9;
+	static final int UNSUBSCRIBE = 10;
+	static final int UNSUBACK = 11;
+	static final int PINGREQ = 12;
+	static final int PINGRESP = 13;
+	static final int DISCONNECT = 14;
+	static final int AUTH = 15;
+
+	private PacketCodec() {
+	}
+
+	/**
+	 * Works out whether a whole packet is available at the buffer's position.
+	 *
+	 * @return the total length of the packet including its fixed header, or -1
+	 *         if more bytes are needed
+	 */
+	static int packetLength(ByteBuffer in) {
+		int position = in.position() + 1;
+		int value = 0;
+		int multiplier = 1;
+		for (int i = 0; i < 4; i++) {
+			if (position >= in.limit()) {
+				return -1;
+			}
+			byte digit = in.get(position++);
+			value += (digit & 0x7F) * multiplier;
+			if ((digit & 0x80) == 0) {
+				int total = position - in.position() + value;
+				return total <= in.remaining() ? total : -1;
+			}
+			multiplier *= 128;
+		}
+		throw new IllegalArgumentException("Malformed remaining length");
+	}
+
+	static int readVariableInt(ByteBuffer in) {
+		int value = 0;
+		int multiplier = 1;
+		byte digit;
+		do {
+			digit = in.get();
+			value += (digit & 0x7F) * multiplier;
+			multiplier *= 128;
+		} while ((digit & 0x80) != 0);
+		return value;
+	}
+
+	static int variableIntLength(int value) {
+		int length = 1;
+		while (value > 127) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	static String readString(ByteBuffer in) {
+		return new String(readBinary(in), StandardCharsets.UTF_8);
+	}
+
+	static byte[] readBinary(ByteBuffer in) {
+		byte[] bytes = new byte[in.getShort() & 0xFFFF];
+		in.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * A growable buffer used to build the variable header and payload of a
+	 * packet.
+	 */
+	static final class Builder {
+
+		private byte[] bytes = new byte[64];
+		private int size;
+
+		private void ensure(int extra) {
+			if (size + extra > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+			}
+		}
+
+		Builder writeByte(int value) {
+			ensure(1);
+			bytes[size++] = (byte) value;
+			return this;
+		}
+
+		Builder writeShort(int value) {
+			ensure(2);
+			bytes[size++] = (byte) (value >> 8);
+			bytes[size++] = (byte) value;
+			return this;
+		}
+
+		Builder writeInt(int value) {
+			writeShort(value >>> 16);
+			return writeShort(value);
+		}
+
+		Builder writeVariableInt(int value) {
+			do {
+				int digit = value & 0x7F;
+				value >>>= 7;
+				writeByte(value > 0 ? digit | 0x80 : digit);
+			} while (value > 0);
+			return this;
+		}
+
+		Builder writeString(String value) {
+			return writeBinary(value.getBytes(StandardCharsets.UTF_8));
+		}
+
+		Builder writeBinary(byte[] value) {
+			writeShort(value.length);
+			return writeBytes(value, 0, value.length);
+		}
+
+		Builder writeBytes(byte[] value, int offset, int length) {
+			ensure(length);
+			System.arraycopy(value, offset, bytes, size, length);
+			size += length;
+			return this;
+		}
+
+		Builder writeBytes(ByteBuffer value) {
+			int length = value.remaining();
+			ensure(length);
+			value.duplicate().get(bytes, size, length);
+			size += length;
+			return this;
+		}
+
+		int size() {
+			return size;
+		}
+
+		byte[] array() {
+			return bytes;
+		}
+
+		/**
+		 * @param firstByte
+		 *            the packet type and flags
+		 * @return the complete packet, ready to be written
+		 */
+		ByteBuffer toPacket(int firstByte) {
+			ByteBuffer packet = ByteBuffer.allocate(1 + variableIntLength(size) + size);
+			packet.put((byte) firstByte);
+			int value = size;
+			do {
+				int digit = value & 0x7F;
+				value >>>= 7;
+				packet.put((byte) (value > 0 ? digit | 0x80 : digit));
+			} while (value > 0);
+			packet.put(bytes, 0, size);
+			packet.flip();
+			return packet;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.broker;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The properties section of an MQTTv5 packet, kept as an ordered list of
+ * identifier / value pairs so that they can be forwarded unchanged.
+ *
+ * Values are held as an {@link Integer} for byte, two byte, four byte and
+ * variable byte integer properties, a {@link String} for UTF-8 strings, a
+ * <code>byte[]</code> for binary data and a <code>String[2]</code> for user
+ * properties.
+ */
+class PacketProperties {
+
+	static final int PAYLOAD_FORMAT_INDICATOR = 0x01;
+	static final int MESSAGE_EXPIRY_INTERVAL = 0x02;
+	static final int CONTENT_TYPE = 0x03;
+	static final int RESPONSE_TOPIC = 0x08;
+	static final int CORRELATION_DATA = 0x09;
+	static final int SUBSCRIPTION_IDENTIFIER = 0x0B;
+	static final int SESSION_EXPIRY_INTERVAL = 0x11;
+	static final int ASSIGNED_CLIENT_IDENTIFIER = 0x12;
+	static final int SERVER_KEEP_ALIVE = 0x13;
+	static final int AUTHENTICATION_METHOD = 0x15;
+	static final int AUTHENTICATION_DATA = 0x16;
+	static final int REQUEST_PROBLEM_INFORMATION = 0x17;
+	static final int WILL_DELAY_INTERVAL = 0x18;
+	static final int REQUEST_RESPONSE_INFORMATION = 0x19;
+	static final int RESPONSE_INFORMATION = 0x1A;
+	static final int SERVER_REFERENCE = 0x1C;
+	static final int REASON_STRING = 0x1F;
+	static final int RECEIVE_MAXIMUM = 0x21;
+	static final int TOPIC_ALIAS_MAXIMUM = 0x22;
+	static final int TOPIC_ALIAS = 0x23;
+	static final int MAXIMUM_QOS = 0x24;
+	static final int RETAIN_AVAILABLE = 0x25;
+	static final int USER_PROPERTY = 0x26;
+	static final int MAXIMUM_PACKET_SIZE = 0x27;
+	static final int WILDCARD_SUBSCRIPTION_AVAILABLE = 0x28;
+	static final int SUBSCRIPTION_IDENTIFIER_AVAILABLE = 0x29;
+	static final int SHARED_SUBSCRIPTION_AVAILABLE = 0x2A;
+
+	static final PacketProperties EMPTY = new PacketProperties();
+
+	private final List<Integer> ids = new ArrayList<>();
+	private final List<Object> values = new ArrayList<>();
+
+	PacketProperties add(int id, Object value) {
+		ids.add(id);
+		values.add(value);
+		return this;
+	}
+
+	/**
+	 * @return the first value with the given identifier, or null
+	 */
+	Object get(int id) {
+		int index = ids.indexOf(id);
+		return index < 0 ? null : values.get(index);
+	}
+
+	Integer getInteger(int id) {
+		return (Integer) get(id);
+	}
+
+	/**
+	 * @return a copy of these properties without any with the given identifier
+	 */
+	PacketProperties without(int id) {
+		PacketProperties copy = new PacketProperties();
+		for (int i = 0; i < ids.size(); i++) {
+			if (ids.get(i) != id) {
+				copy.add(ids.get(i), values.get(i));
+			}
+		}
+		return copy;
+	}
+
+	boolean isEmpty() {
+		return ids.isEmpty();
+	}
+
+	static PacketProperties read(ByteBuffer in) {
+		int length = PacketCodec.readVariableInt(in);
+		int end = in.position() + length;
+		PacketProperties properties = new PacketProperties();
+		while (in.position() < end) {
+			int id = PacketCodec.readVariableInt(in);
+			switch (id) {
+			case PAYLOAD_FORMAT_INDICATOR:
+			case REQUEST_PROBLEM_INFORMATION:
+			case REQUEST_RESPONSE_INFORMATION:
+			case MAXIMUM_QOS:
+			case RETAIN_AVAILABLE:
+			case WILDCARD_SUBSCRIPTION_AVAILABLE:
+			case SUBSCRIPTION_IDENTIFIER_AVAILABLE:
+			case SHARED_SUBSCRIPTION_AVAILABLE:
+				properties.add(id, in.get() & 0xFF);
+				break;
+			case SERVER_KEEP_ALIVE:
+			case RECEIVE_MAXIMUM:
+			case TOPIC_ALIAS_MAXIMUM:
+			case TOPIC_ALIAS:
+				properties.add(id, in.getShort() & 0xFFFF);
+				break;
+			case MESSAGE_EXPIRY_INTERVAL:
+			case SESSION_EXPIRY_INTERVAL:
+			case WILL_DELAY_INTERVAL:
+			case MAXIMUM_PACKET_SIZE:
+				properties.add(id, in.getInt());
+				break;
+			case SUBSCRIPTION_IDENTIFIER:
+				properties.add(id, PacketCodec.readVariableInt(in));
+				break;
+			case CONTENT_TYPE:
+			case RESPONSE_TOPIC:
+			case ASSIGNED_CLIENT_IDENTIFIER:
+			case AUTHENTICATION_METHOD:
+			case RESPONSE_INFORMATION:
+			case SERVER_REFERENCE:
+			case REASON_STRING:
+				properties.add(id, PacketCodec.readString(in));
+				break;
+			case CORRELATION_DATA:
+			case AUTHENTICATION_DATA:
+				properties.add(id, PacketCodec.readBinary(in));
+				break;
+			case USER_PROPERTY:
+				properties.add(id, new String[] { PacketCodec.readString(in), PacketCodec.readString(in) });
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown property identifier: " + id);
+			}
+		}
+		return properties;
+	}
+
+	void write(PacketCodec.Builder out) {
+		PacketCodec.Builder body = new PacketCodec.Builder();
+		for (int i = 0; i < ids.size(); i++) {
+			int id = ids.get(i);
+			Object value = values.get(i);
+			body.writeVariableInt(id);
+			switch (id) {
+			case PAYLOAD_FORMAT_INDICATOR:
+			case REQUEST_PROBLEM_INFORMATION:
+			case REQUEST_RESPONSE_INFORMATION:
+			case MAXIMUM_QOS:
+			case RETAIN_AVAILABLE:
+			case WILDCARD_SUBSCRIPTION_AVAILABLE:
+			case SUBSCRIPTION_IDENTIFIER_AVAILABLE:
+			case SHARED_SUBSCRIPTION_AVAILABLE:
+				body.writeByte((Integer) value);
+				break;
+			case SERVER_KEEP_ALIVE:
+			case RECEIVE_MAXIMUM:
+			case TOPIC_ALIAS_MAXIMUM:
+			case TOPIC_ALIAS:
+				body.writeShort((Integer) value);
+				break;
+			case MESSAGE_EXPIRY_INTERVAL:
+			case SESSION_EXPIRY_INTERVAL:
+			case WILL_DELAY_INTERVAL:
+			case MAXIMUM_PACKET_SIZE:
+				body.writeInt((Integer) value);
+				break;
+			case SUBSCRIPTION_IDENTIFIER:
+				body.writeVariableInt((Integer) value);
+				break;
+			case CORRELATION_DATA:
+			case AUTHENTICATION_DATA:
+				body.writeBinary((byte[]) value);
+				break;
+			case USER_PROPERTY:
+				String[] pair = (String[]) value;
+				body.writeString(pair[0]);
+				body.writeString(pair[1]);
+				break;
+			default:
+				body.writeString((String) value);
+			}
+		}
+		out.writeVariableInt(body.size());
+		out.writeBytes(body.array(), 0, body.size());
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("[");
+		for (int i = 0; i < ids.size(); i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			Object value = values.get(i);
+			builder.append(ids.get(i)).append('=').append(
+					value instanceof String[] ? String.join(":", (String[]) value) : value);
+		}
+		return builder.append(']').toString();
+	}
+}
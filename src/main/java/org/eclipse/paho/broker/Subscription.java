@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.broker;
+
+/**
+ * A client's subscription to a topic filter. A filter of the form
+ * <code>$share/{ShareName}/{filter}</code> is a shared subscription: its
+ * share name is kept separately from the filter it matches on.
+ */
+class Subscription {
+
+	static final String SHARE_PREFIX = "$share/";
+
+	final String clientId;
+	final String topicFilter;
+	final String shareName;
+	final int qos;
+	final boolean noLocal;
+	final Integer subscriptionIdentifier;
+
+	Subscription(String clientId, String filter, int options, Integer subscriptionIdentifier) {
+		this.clientId = clientId;
+		this.shareName = shareNameOf(filter);
+		this.topicFilter = topicFilterOf(filter);
+		this.qos = options & 0x03;
+		// No Local is not allowed on a shared subscription
+		this.noLocal = shareName == null && (options & 0x04) != 0;
+		this.subscriptionIdentifier = subscriptionIdentifier;
+	}
+
+	/**
+	 * @return the share name if the filter is a shared subscription, otherwise
+	 *         null
+	 */
+	static String shareNameOf(String filter) {
+		if (!filter.startsWith(SHARE_PREFIX)) {
+			return null;
+		}
+		int end = filter.indexOf('/', SHARE_PREFIX.length());
+		return end < 0 ? null : filter.substring(SHARE_PREFIX.length(), end);
+	}
+
+	/**
+	 * @return the filter with any share name removed
+	 */
+	static String topicFilterOf(String filter) {
+		String shareName = shareNameOf(filter);
+		return shareName == null ? filter : filter.substring(SHARE_PREFIX.length() + shareName.length() + 1);
+	}
+
+	boolean isShared() {
+		return shareName != null;
+	}
+
+	boolean sameShare(String otherShareName) {
+		return shareName == null ? otherShareName == null : shareName.equals(otherShareName);
+	}
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2017 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.broker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Subscriptions indexed by topic level, so that finding the subscribers for a
+ * topic costs time proportional to the depth of the topic rather than the
+ * number of subscriptions. Handles the <code>+</code> and <code>#</code>
+ * wildcards, and does not match topics starting with <code>$</code> against
+ * wildcards at the first level.
+ *
+ * A client can hold one plain subscription and one subscription per share
+ * name to the same filter, see {@link Subscription#shareName}.
+ */
+class SubscriptionTree {
+
+	private static final class Node {
+		final Map<String, Node> children = new HashMap<>();
+		final List<Subscription> subscriptions = new ArrayList<>();
+	}
+
+	private final Node root = new Node();
+
+	/**
+	 * Adds a subscription, replacing any existing subscription by the same
+	 * client to the same filter and share name.
+	 */
+	void add(Subscription subscription) {
+		Node node = root;
+		for (String level : subscription.topicFilter.split("/", -1)) {
+			Node child = node.children.get(level);
+			if (child == null) {
+				child = new Node();
+				node.children.put(level, child);
+			}
+			node = child;
+		}
+		removeFrom(node, subscription.clientId, subscription.shareName);
+		node.subscriptions.add(subscription);
+	}
+
+	/**
+	 * @param filter
+	 *            the filter as given in the UNSUBSCRIBE, including any
+	 *            <code>$share/{ShareName}/</code> prefix
+	 * @return true if the client had a subscription to the filter
+	 */
+	boolean remove(String clientId, String filter) {
+		Node node = root;
+		for (String level : Subscription.topicFilterOf(filter).split("/", -1)) {
+			node = node.children.get(level);
+			if (node == null) {
+				return false;
+			}
+		}
+		return removeFrom(node, clientId, Subscription.shareNameOf(filter));
+	}
+
+	/**
+	 * Removes every subscription held by the client.
+	 */
+	void removeAll(String clientId) {
+		removeAll(root, clientId);
+	}
+
+	private void removeAll(Node node, String clientId) {
+		for (Iterator<Subscription> it = node.subscriptions.iterator(); it.hasNext();) {
+			if (it.next().clientId.equals(clientId)) {
+				it.remove();
+			}
+		}
+		for (Node child : node.children.values()) {
+			removeAll(child, clientId);
+		}
+	}
+
+	private static boolean removeFrom(Node node, String clientId, String shareName) {
+		boolean removed = false;
+		for (Iterator<Subscription> it = node.subscriptions.iterator(); it.hasNext();) {
+			Subscription subscription = it.next();
+			if (subscription.clientId.equals(clientId) && subscription.sameShare(shareName)) {
+				it.remove();
+				removed = true;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @return every subscription whose filter matches the topic
+	 */
+	List<Subscription> match(String topic) {
+		List<Subscription> matches = new ArrayList<>();
+		match(root, topic.split("/", -1), 0, topic.startsWith("$"), matches);
+		return matches;
+	}
+
+	private void match(Node node, String[] levels, int depth, boolean system, List<Subscription> matches) {
+		boolean wildcardsAllowed = !(system && depth == 0);
+		Node multi = wildcardsAllowed ? node.children.get("#") : null;
+		if (multi != null) {
+			matches.addAll(multi.subscriptions);
+		}
+		if (depth == levels.length) {
+			matches.addAll(node.subscriptions);
+			return;
+		}
+		Node exact = node.children.get(levels[depth]);
+		if (exact != null) {
+			match(exact, levels, depth + 1, system, matches);
+		}
+		Node single = wildcardsAllowed ? node.children.get("+") : null;
+		if (single != null) {
+			match(single, levels, depth + 1, system, matches);
+		}
+	}
+}